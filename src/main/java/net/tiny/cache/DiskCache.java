@@ -13,6 +13,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -59,6 +60,8 @@ public abstract class DiskCache<K, V> implements Cache<K, V> {
 	private final Map<K, Policy<K>> policies = Collections.synchronizedMap(new HashMap<K, Policy<K>>());
 	private final FilenameGenerator filenameGenerator = new FilenameGenerator();
 	private final AtomicLong cacheSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
 	private final File cacheDir;
 	private long sizeLimit;
 	private long maxAge;
@@ -170,6 +173,11 @@ public abstract class DiskCache<K, V> implements Cache<K, V> {
 				throw new IllegalStateException("'" + key + "' : " + e.getMessage());
 			}
 		}
+		if (null != value) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
 		return value;
 	}
 
@@ -218,6 +226,27 @@ public abstract class DiskCache<K, V> implements Cache<K, V> {
 		return (int)cacheSize.get();
 	}
 
+	/**
+	 * @return number of the entries
+	 */
+	public int size() {
+		return fileCache.size();
+	}
+
+	/**
+	 * @return number of the gets returning a value
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of the gets returning <code>null</code>
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
 	protected V removeNext() {
 		K leastUsedKey = null;
 		synchronized (policies) {
@@ -9,6 +9,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -36,6 +37,8 @@ public abstract class MemoryCache<K, V> implements Cache<K, V> {
 	private final Map<K, Reference<V>> softMap = Collections.synchronizedMap(new HashMap<K, Reference<V>>());
 	private final Map<K, Policy<K>> policies = Collections.synchronizedMap(new HashMap<K, Policy<K>>());
 	private final AtomicLong cacheSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
 	private int sizeLimit;
 	private long maxAge;
 
@@ -133,6 +136,11 @@ public abstract class MemoryCache<K, V> implements Cache<K, V> {
 					cacheSize.addAndGet(-policy.size);
 			}
 		}
+		if (null != value) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
 		return value;
 	}
 
@@ -169,6 +177,27 @@ public abstract class MemoryCache<K, V> implements Cache<K, V> {
 		return (int)cacheSize.get();
 	}
 
+	/**
+	 * @return number of the entries
+	 */
+	public int size() {
+		return softMap.size();
+	}
+
+	/**
+	 * @return number of the gets returning a value
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return number of the gets returning <code>null</code>
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
 	protected V removeNext() {
 		Policy<K> minUsage = null;
 		K leastUsedKey = null;
@@ -0,0 +1,248 @@
+package net.tiny.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * A thread-per-task executor which starts every task on a new virtual thread.
+ * Blocking handlers park their virtual thread instead of holding a platform thread,
+ * so tens of thousands of I/O bound tasks can run at the same time.
+ *
+ * On a JVM without virtual threads (before Java 21) it falls back to a daemon platform thread
+ * per task, not pooled, so use a thread pool there. <code>EmbeddedServer</code> does so itself.
+ * While paused, new tasks are started but wait before running until resumed.
+ *
+ * <code>
+ * pool.class = net.tiny.service.VirtualThreadExecutor
+ * pool.name = http
+ * pool.max = 10000
+ * </code>
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService implements PausableExecutorService {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreadExecutor.class.getName());
+
+    protected String name = "virtual";
+    //Max running tasks, 0 is unlimited
+    protected int max = 0;
+
+    private ThreadFactory factory;
+    private Semaphore permits;
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile boolean shutdown = false;
+    private boolean isPaused;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition unpaused = lock.newCondition();
+    private final Condition terminated = lock.newCondition();
+
+    public VirtualThreadExecutor() {
+    }
+
+    VirtualThreadExecutor(ThreadFactory factory) {
+        this.factory = factory;
+    }
+
+    public static boolean isSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    private synchronized ThreadFactory getFactory() {
+        if (null == factory) {
+            factory = VirtualThreads.factory(name + "-");
+            if (null == factory) {
+                LOGGER.warning(String.format("[%s] Virtual threads not supported by this JVM, use platform threads.", name));
+                final AtomicInteger counter = new AtomicInteger();
+                factory = r -> {
+                    Thread t = new Thread(r, name + "-" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                };
+            }
+            if (max > 0) {
+                permits = new Semaphore(max);
+            }
+        }
+        return factory;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (null == command) {
+            throw new NullPointerException();
+        }
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        final ThreadFactory f = getFactory();
+        running.incrementAndGet();
+        Thread thread = null;
+        try {
+            thread = f.newThread(() -> {
+                try {
+                    run(command);
+                } finally {
+                    threads.remove(Thread.currentThread());
+                    done();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        } catch (RuntimeException e) {
+            // Not started, the task is refused
+            abort(thread);
+            throw new RejectedExecutionException(e);
+        } catch (Error e) {
+            // e.g. out of memory for a platform thread
+            abort(thread);
+            throw e;
+        }
+    }
+
+    private void abort(Thread thread) {
+        if (null != thread) {
+            threads.remove(thread);
+        }
+        done();
+    }
+
+    private void done() {
+        if (running.decrementAndGet() == 0 && shutdown) {
+            signalTerminated();
+        }
+    }
+
+    private void run(Runnable command) {
+        try {
+            awaitUnpaused();
+            if (null != permits) {
+                permits.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            command.run();
+        } finally {
+            if (null != permits) {
+                permits.release();
+            }
+        }
+    }
+
+    private void awaitUnpaused() throws InterruptedException {
+        lock.lock();
+        try {
+            while (isPaused) {
+                unpaused.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalTerminated() {
+        lock.lock();
+        try {
+            terminated.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveCount() {
+        return running.get();
+    }
+
+    @Override
+    public void pause() {
+        lock.lock();
+        try {
+            isPaused = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void resume() {
+        lock.lock();
+        try {
+            isPaused = false;
+            unpaused.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isPaused() {
+        lock.lock();
+        try {
+            return isPaused;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        if (running.get() == 0) {
+            signalTerminated();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        return new ArrayList<>();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && running.get() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!isTerminated()) {
+                if (nanos <= 0L) {
+                    return false;
+                }
+                nanos = terminated.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s#%d {name:%s, max:%d, virtual:%s}",
+                getClass().getSimpleName(), hashCode(), name, max, isSupported());
+    }
+}
@@ -0,0 +1,24 @@
+package net.tiny.service;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual thread support of the running JVM.
+ * This is the Java 8 version, the Java 21 version is packaged in
+ * <code>META-INF/versions/21</code> of the multi-release jar.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * @return a factory of virtual threads or <code>null</code> if not supported
+     */
+    static ThreadFactory factory(String prefix) {
+        return null;
+    }
+}
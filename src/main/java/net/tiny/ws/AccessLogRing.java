@@ -0,0 +1,285 @@
+package net.tiny.ws;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * Lock-free ring of preallocated access log records.
+ *
+ * The request threads claim a slot with a CAS, copy the references of the exchange
+ * into the record and publish its sequence. One writer thread consumes the records
+ * in order and hands them to the sink in batches. A record failing in the sink is
+ * reported and skipped, and a line is dropped if the writer is no longer running.
+ */
+final class AccessLogRing implements Runnable {
+
+    /**
+     * What a request thread does when the ring is full.
+     */
+    enum Policy {
+        /** Wait for the writer */
+        BLOCK,
+        /** Drop the line */
+        DROP,
+        /** Wait for one line of the sample rate, drop the others */
+        SAMPLE
+    }
+
+    interface Sink {
+        void write(Record record);
+        void flush();
+    }
+
+    /**
+     * An access log line before formatting, the fields are only references.
+     * The headers of an exchange are not reused, the writer reads them later.
+     */
+    static final class Record {
+        InetSocketAddress remote;
+        String user;
+        String method;
+        URI uri;
+        String protocol;
+        int status;
+        Headers requestHeaders;
+        Headers responseHeaders;
+        /** Epoch millis of the response */
+        long time;
+        /** Nanos taken */
+        long elapsed;
+        /** Nanos of the phases, {@link RequestPhases#NONE} if not timed */
+        long queue = RequestPhases.NONE;
+        long filters = RequestPhases.NONE;
+        long handler = RequestPhases.NONE;
+        long close = RequestPhases.NONE;
+
+        Record set(HttpExchange exchange, long time, long elapsed) {
+            remote = exchange.getRemoteAddress();
+            final HttpPrincipal principal = exchange.getPrincipal();
+            user = (null != principal) ? principal.getUsername() : null;
+            method = exchange.getRequestMethod();
+            uri = exchange.getRequestURI();
+            protocol = exchange.getProtocol();
+            status = exchange.getResponseCode();
+            requestHeaders = exchange.getRequestHeaders();
+            responseHeaders = exchange.getResponseHeaders();
+            this.time = time;
+            this.elapsed = elapsed;
+            final RequestPhases phases = RequestPhases.current();
+            if (null != phases) {
+                queue = phases.getQueue();
+                filters = phases.getFilters();
+                handler = phases.getHandler();
+                close = phases.getClose();
+            } else {
+                queue = filters = handler = close = RequestPhases.NONE;
+            }
+            return this;
+        }
+
+        void clear() {
+            remote = null;
+            user = null;
+            method = null;
+            uri = null;
+            protocol = null;
+            requestHeaders = null;
+            responseHeaders = null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AccessLogRing.class.getName());
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50L);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    private final Record[] records;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private volatile long consumed = 0L;
+    private final Policy policy;
+    private final int sampleRate;
+    private final int batchSize;
+    private final Sink sink;
+    private final AtomicLong full = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean waiting = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param size capacity, rounded up to a power of 2
+     */
+    AccessLogRing(int size, int batchSize, Policy policy, int sampleRate, Sink sink) {
+        final int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.records = new Record[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            records[i] = new Record();
+            published.set(i, -1L);
+        }
+        this.mask = capacity - 1;
+        this.batchSize = Math.max(1, batchSize);
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.sink = sink;
+        this.writer = new Thread(this, "AccessLogger");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Called by the request threads.
+     *
+     * @return false if the line was dropped
+     */
+    boolean publish(HttpExchange exchange, long time, long elapsed) {
+        boolean blocking = false;
+        long seq;
+        while (true) {
+            seq = next.get();
+            if (seq - consumed >= records.length) {
+                if (closed || !writer.isAlive()) {
+                    // Nobody to wait for
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                if (!blocking) {
+                    if (policy == Policy.DROP
+                            || (policy == Policy.SAMPLE && full.incrementAndGet() % sampleRate != 0L)) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    blocking = true;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+            if (next.compareAndSet(seq, seq + 1L)) {
+                break;
+            }
+        }
+        final int index = (int) (seq & mask);
+        records[index].set(exchange, time, elapsed);
+        published.lazySet(index, seq);
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Hand the published records to the sink in order.
+     *
+     * @return number of records
+     */
+    int drain(int max) {
+        long seq = consumed;
+        int count = 0;
+        while (count < max) {
+            final int index = (int) (seq & mask);
+            if (published.get(index) != seq) {
+                break;
+            }
+            final Record record = records[index];
+            try {
+                sink.write(record);
+            } catch (Throwable e) {
+                failed(e);
+            } finally {
+                record.clear();
+            }
+            seq++;
+            count++;
+        }
+        if (count > 0) {
+            consumed = seq;
+        }
+        return count;
+    }
+
+    /**
+     * The first failure is logged as a warning, the next ones as fine.
+     */
+    private void failed(Throwable e) {
+        final long count = failed.incrementAndGet();
+        final Level level = (count == 1L) ? Level.WARNING : Level.FINE;
+        if (LOGGER.isLoggable(level)) {
+            LOGGER.log(level, String.format("[LOG] Access log line #%d not written - %s", count, e.getMessage()), e);
+        }
+    }
+
+    private void flush() {
+        try {
+            sink.flush();
+        } catch (Throwable e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (drain(batchSize) > 0) {
+                flush();
+                continue;
+            }
+            if (closed && next.get() == consumed) {
+                break;
+            }
+            waiting = true;
+            if (published.get((int) (consumed & mask)) != consumed && !closed) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+            waiting = false;
+        }
+        flush();
+    }
+
+    /**
+     * Stop the writer after the published records are written.
+     */
+    void close(long timeout) {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int capacity() {
+        return records.length;
+    }
+
+    /**
+     * @return number of records waiting for the writer
+     */
+    long pending() {
+        return next.get() - consumed;
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of records or flushes failed in the sink
+     */
+    long getFailed() {
+        return failed.get();
+    }
+}
@@ -0,0 +1,270 @@
+package net.tiny.ws;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * An Apache log format compiled once into field writers.
+ *
+ * The fields append straight into a reused <code>StringBuilder</code>,
+ * a line costs no allocation beyond the strings the exchange already holds.
+ * The phases (%Z) are known when the server records metrics, otherwise they are '-'.
+ *
+ * <pre>
+ * %h %a  remote address        %l     always '-'
+ * %u     remote user or '-'    %t     time of the response
+ * %T     seconds taken, x.xxx  %D     microseconds taken
+ * %r     request line          %m %U %q %H  method, path, query, protocol
+ * %s %&gt;s status code          %b %B  response length, '0' if unknown
+ * %I     request body length   %O     response body length
+ * %{X}i  request header X      %{X}o  response header X
+ * %Z     microseconds of the phases, <code>q=12 f=40 h=510 c=8</code>
+ * %{X}Z  microseconds of the phase X, one of queue, filters, handler, close
+ * %%     '%'
+ * </pre>
+ *
+ * @see https://httpd.apache.org/docs/current/mod/mod_log_config.html
+ */
+final class AccessLogTemplate {
+
+    interface Field {
+        void write(AccessLogRing.Record record, StringBuilder out);
+    }
+
+    private static final String EMPTY = "-";
+
+    private final String format;
+    private final Field[] fields;
+
+    /**
+     * Remote address, the text of the last address is reused since most lines come from a few clients.
+     */
+    private static final class HostField implements Field {
+        private volatile Host last = new Host(null, EMPTY);
+
+        @Override
+        public void write(AccessLogRing.Record r, StringBuilder out) {
+            if (null == r.remote) {
+                out.append(EMPTY);
+                return;
+            }
+            final InetAddress address = r.remote.getAddress();
+            Host host = last;
+            if (!address.equals(host.address)) {
+                host = new Host(address, address.getHostAddress());
+                last = host;
+            }
+            out.append(host.text);
+        }
+    }
+
+    private static final class Host {
+        final InetAddress address;
+        final String text;
+
+        Host(InetAddress address, String text) {
+            this.address = address;
+            this.text = text;
+        }
+    }
+
+    private AccessLogTemplate(String format, Field[] fields) {
+        this.format = format;
+        this.fields = fields;
+    }
+
+    /**
+     * @param format e.g. <code>%h %l %u [%t] "%r" %&gt;s %b</code>
+     * @throws IllegalArgumentException if a token is not supported
+     */
+    static AccessLogTemplate compile(String format) {
+        final List<Field> fields = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+        final int length = format.length();
+        int i = 0;
+        while (i < length) {
+            final char c = format.charAt(i++);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i >= length) {
+                throw new IllegalArgumentException("Incomplete token at the end of '" + format + "'");
+            }
+            if (format.charAt(i) == '%') {
+                literal.append('%');
+                i++;
+                continue;
+            }
+            String name = null;
+            if (format.charAt(i) == '>' || format.charAt(i) == '<') {
+                // Final or original status, the same here
+                i++;
+            }
+            if (i < length && format.charAt(i) == '{') {
+                final int end = format.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed '{' in '" + format + "'");
+                }
+                name = format.substring(i + 1, end);
+                i = end + 1;
+            }
+            if (i >= length) {
+                throw new IllegalArgumentException("Incomplete token at the end of '" + format + "'");
+            }
+            if (literal.length() > 0) {
+                fields.add(literal(literal.toString()));
+                literal.setLength(0);
+            }
+            fields.add(field(format.charAt(i++), name));
+        }
+        if (literal.length() > 0) {
+            fields.add(literal(literal.toString()));
+        }
+        return new AccessLogTemplate(format, fields.toArray(new Field[fields.size()]));
+    }
+
+    private static Field literal(final String text) {
+        return (r, out) -> out.append(text);
+    }
+
+    private static Field field(char token, final String name) {
+        switch (token) {
+        case 'h':
+        case 'a':
+            return new HostField();
+        case 'l':
+            return literal(EMPTY);
+        case 'u':
+            return (r, out) -> out.append(null != r.user ? r.user : EMPTY);
+        case 't':
+            return (r, out) -> out.append(HttpDateFormat.formatAccessLog(r.time));
+        case 'T':
+            return (r, out) -> {
+                final long millis = r.elapsed / 1000000L;
+                out.append(millis / 1000L).append('.');
+                final long fraction = millis % 1000L;
+                if (fraction < 100L) {
+                    out.append('0');
+                }
+                if (fraction < 10L) {
+                    out.append('0');
+                }
+                out.append(fraction);
+            };
+        case 'D':
+            return (r, out) -> out.append(r.elapsed / 1000L);
+        case 'r':
+            return (r, out) -> out.append(r.method).append(' ').append(r.uri).append(' ').append(r.protocol);
+        case 'm':
+            return (r, out) -> out.append(r.method);
+        case 'U':
+            return (r, out) -> out.append(r.uri.getRawPath());
+        case 'q':
+            return (r, out) -> {
+                final String query = r.uri.getRawQuery();
+                if (null != query) {
+                    out.append('?').append(query);
+                }
+            };
+        case 'H':
+            return (r, out) -> out.append(r.protocol);
+        case 's':
+            return (r, out) -> out.append(r.status);
+        case 'b':
+        case 'B':
+        case 'O':
+            return (r, out) -> appendLength(r.responseHeaders, out);
+        case 'I':
+            return (r, out) -> appendLength(r.requestHeaders, out);
+        case 'i':
+            checkName(token, name);
+            return (r, out) -> appendHeader(r.requestHeaders, name, out);
+        case 'o':
+            checkName(token, name);
+            return (r, out) -> appendHeader(r.responseHeaders, name, out);
+        case 'Z':
+            return phase(name);
+        default:
+            throw new IllegalArgumentException("Unsupported access log token '%" + token + "'");
+        }
+    }
+
+    private static Field phase(String name) {
+        if (null == name) {
+            return (r, out) -> {
+                out.append("q=");
+                appendMicros(r.queue, out);
+                out.append(" f=");
+                appendMicros(r.filters, out);
+                out.append(" h=");
+                appendMicros(r.handler, out);
+                out.append(" c=");
+                appendMicros(r.close, out);
+            };
+        }
+        switch (name) {
+        case "queue":
+            return (r, out) -> appendMicros(r.queue, out);
+        case "filters":
+            return (r, out) -> appendMicros(r.filters, out);
+        case "handler":
+            return (r, out) -> appendMicros(r.handler, out);
+        case "close":
+            return (r, out) -> appendMicros(r.close, out);
+        default:
+            throw new IllegalArgumentException("Unsupported phase '%{" + name + "}Z'");
+        }
+    }
+
+    private static void appendMicros(long nanos, StringBuilder out) {
+        if (nanos == RequestPhases.NONE) {
+            out.append(EMPTY);
+        } else {
+            out.append(nanos / 1000L);
+        }
+    }
+
+    private static void checkName(char token, String name) {
+        if (null == name || name.isEmpty()) {
+            throw new IllegalArgumentException("Header name required by '%{X}" + token + "'");
+        }
+    }
+
+    private static void appendLength(Headers headers, StringBuilder out) {
+        final String length = headers.getFirst("Content-length");
+        out.append(null != length ? length : "0");
+    }
+
+    private static void appendHeader(Headers headers, String name, StringBuilder out) {
+        final String value = headers.getFirst(name);
+        out.append(null != value ? value : EMPTY);
+    }
+
+    /**
+     * Append a line, without the line separator.
+     */
+    void write(AccessLogRing.Record record, StringBuilder out) {
+        for (Field field : fields) {
+            field.write(record, out);
+        }
+    }
+
+    String format(AccessLogRing.Record record) {
+        final StringBuilder out = new StringBuilder(128);
+        write(record, out);
+        return out.toString();
+    }
+
+    String getFormat() {
+        return format;
+    }
+
+    @Override
+    public String toString() {
+        return format;
+    }
+}
@@ -1,230 +1,432 @@
-package net.tiny.ws;
-
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.Writer;
-import java.text.MessageFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Locale;
-
-//import java.util.logging.ConsoleHandler;
-//import java.util.logging.Formatter;
-//import java.util.logging.Handler;
-//import java.util.logging.Level;
-//import java.util.logging.LogRecord;
-//import java.util.logging.Logger;
-
-import com.sun.net.httpserver.Filter;
-import com.sun.net.httpserver.Headers;
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpPrincipal;
-
-/**
- * @see https://qiita.com/ryounagaoka/items/e7782ab29ff9fbe8f891
- *
- */
-public class AccessLogger extends Filter {
-
-    /*
-     * LogFormat "%h %l %u %t \"%r\" %>s %b" common
-     * Exp:
-     * 127.0.0.1 - username [10/0ct/2011:13:55:36 -0700] "GET /index.html HTTP/1.0" 200 2326
-     **/
-    public static final String COMMON_FORMAT = "%h %l %u [%t] \"%r\" %>s %b";
-
-    /*
-     * LogFormat "%h %l %u %t \"%r\" %>s %b \"%{Referer}i\" ¥"%{User-agent}i¥" combined
-     * Exp:
-     * 127.0.0.1 - username [10/0ct/2011:13:55:36 -0700] "GET /index.html HTTP/1.0" 200 2326 "http://webserver:8080/index.html" "Mozilla/4.08 [en] (Win98; I ; Nav)"
-     **/
-    public static final String COMBINED_FORMAT = "%h %l %u %t %T \"%r\" %>s %b \"%{Referer}i\" \"%{User-agent}i\"";
-
-    public static enum Format {
-        COMMON,
-        COMBINED
-    }
-
-    private static final String[] PATTERN_KEYS = new String[] {
-        "%h", "%l", "%u", "%t", "%T", "%r", "%>s", "%b", "%{Referer}i", "%{User-agent}i" };
-
-    private static	final SimpleDateFormat DATE_FORMAT =
-            new SimpleDateFormat("d/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
-
-
-    private static String COMMON_PATTERN = null;
-    private static String COMBINED_PATTERN = null;
-//    private static	final String LS = System.getProperty("line.separator");
-//    private static Logger LOGGER = null;
-//
-//    static class AccessLogFormatter extends Formatter {
-//        @Override
-//        public String format(LogRecord record) {
-//            return record.getMessage() + LS;
-//        }
-//    }
-//
-//    static {
-//        LOGGER = Logger.getLogger(AccessLogger.class.getName());
-//        LOGGER.setUseParentHandlers(false);
-//        Handler logHandler = new ConsoleHandler();
-//        Formatter formatter = new AccessLogFormatter();
-//        logHandler. setFormatter(formatter); logHandler. setLevel(Level.INFO);
-//        LOGGER.addHandler(logHandler);
-//    }
-
-    static String getPattern(final String pattern) {
-        StringBuilder builder = new StringBuilder(pattern);
-        for(int i=0; i<PATTERN_KEYS. length; i++) {
-            String sub = "{" + i + "}";
-            int pos = builder. indexOf(PATTERN_KEYS[i]);
-            if(pos >= 0) {
-                builder = builder.insert(pos, sub);
-                pos = pos + sub.length();
-                builder = builder.delete(pos, pos + PATTERN_KEYS[i].length());
-            }
-        }
-        return builder.toString();
-    }
-
-    static String common() {
-        if(COMMON_PATTERN == null)
-            COMMON_PATTERN = getPattern(COMMON_FORMAT);
-        return COMMON_PATTERN;
-    }
-
-    static String combined() {
-        if(COMBINED_PATTERN == null)
-            COMBINED_PATTERN = getPattern(COMBINED_FORMAT);
-        return COMBINED_PATTERN;
-    }
-
-    private Format format = Format.COMBINED;
-    private String formatPattern = combined();
-    private String logFile = null;
-    private PrintWriter writer;
-
-    public AccessLogger() {
-        writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.err)));
-    }
-
-    @Override
-    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
-        final long start = System.currentTimeMillis();
-        if(null != chain) {
-            chain.doFilter(exchange);
-        }
-        String log = format(exchange, formatPattern, (System.currentTimeMillis()-start));
-        writeAccessLog(log);
-    }
-
-    @Override
-    public String description() {
-        return "Access log filter";
-    }
-
-    public String getFile() {
-        return logFile;
-    }
-
-    public void setFile(String file) {
-        this.logFile = file;
-        if(null == writer) {
-            try {
-                setLogger(new PrintWriter(new BufferedWriter(new FileWriter(logFile))));
-            } catch (IOException ex) {
-                throw new IllegalArgumentException("Cant not access log file '" + file + "'", ex);
-            }
-        }
-    }
-
-    protected void setLogger(Writer logger) {
-        if (logger instanceof PrintWriter) {
-            writer = (PrintWriter)logger;
-        } else {
-            if (!(logger instanceof BufferedWriter)) {
-                writer = new PrintWriter(new BufferedWriter(logger));
-            } else {
-                writer = new PrintWriter(logger);
-            }
-        }
-    }
-
-    void writeAccessLog(String log) {
-        writer.println(log);
-//        if (null != writer) {
-//            writer.println(log);
-//        } else {
-//            LOGGER.info(log);
-//        }
-    }
-
-    public String getFormatPattern() {
-        return formatPattern;
-    }
-    public void setFormatPattern(String pattern) {
-        this.formatPattern = pattern;
-    }
-
-    public String getFormat() {
-        return format.name();
-    }
-
-    public void setFormat(String format) {
-        switch (Format.valueOf(format.toUpperCase())) {
-        case COMMON:
-            setFormatPattern(common());
-            break;
-        case COMBINED:
-        default:
-            setFormatPattern(combined());
-            break;
-        }
-    }
-
-    String formatDate(Date date) {
-        synchronized(DATE_FORMAT) {
-            return DATE_FORMAT.format(date);
-        }
-    }
-
-    private String format(HttpExchange exchange, String formatPattern, long time) {
-        final String host = exchange.getRemoteAddress().getAddress().getHostAddress();
-        String identity = "-";
-        String username = "-";
-        final HttpPrincipal principal = exchange.getPrincipal();
-        if (principal!=null) {
-            username = principal.getUsername();
-        }
-        final String date = formatDate(Calendar.getInstance().getTime());
-        final String request = exchange.getRequestMethod() + " "
-                + exchange.getRequestURI() + " "
-                + exchange.getProtocol();
-        final String code = Integer.toString(exchange.getResponseCode());
-        String size = exchange.getResponseHeaders().getFirst("Content-length");
-        if(size == null) {
-            size = "0";
-        }
-
-        final Headers headers = exchange.getRequestHeaders();
-        final String agent = headers.getFirst("User-agent");
-        String referer = headers.getFirst("Referer");
-        if(null == referer) {
-            referer = "";
-        }
-        String timeTaken = String.format("%.3f", ((float)time/1000f));
-        return MessageFormat.format(formatPattern,
-                host, identity, username, date, timeTaken, request, code, size, referer, agent);
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-        if(null != writer) {
-            writer.close();
-        }
-    }
-}
+package net.tiny.ws;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Date;
+
+//import java.util.logging.ConsoleHandler;
+//import java.util.logging.Formatter;
+//import java.util.logging.Handler;
+//import java.util.logging.Level;
+//import java.util.logging.LogRecord;
+//import java.util.logging.Logger;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The Apache log format is compiled once, see {@link AccessLogTemplate} for the tokens.
+ *
+ * In the async mode the request threads only publish the exchange references into a ring buffer,
+ * a background writer formats the lines and flushes them in batches.
+ *
+ * A log file is rotated by size or time, see {@link RollingLogWriter}.
+ *
+ * @see https://qiita.com/ryounagaoka/items/e7782ab29ff9fbe8f891
+ *
+ */
+public class AccessLogger extends Filter {
+
+    /*
+     * LogFormat "%h %l %u %t \"%r\" %>s %b" common
+     * Exp:
+     * 127.0.0.1 - username [10/0ct/2011:13:55:36 -0700] "GET /index.html HTTP/1.0" 200 2326
+     **/
+    public static final String COMMON_FORMAT = "%h %l %u [%t] \"%r\" %>s %b";
+
+    /*
+     * LogFormat "%h %l %u %t \"%r\" %>s %b \"%{Referer}i\" ¥"%{User-agent}i¥" combined
+     * Exp:
+     * 127.0.0.1 - username [10/0ct/2011:13:55:36 -0700] "GET /index.html HTTP/1.0" 200 2326 "http://webserver:8080/index.html" "Mozilla/4.08 [en] (Win98; I ; Nav)"
+     **/
+    public static final String COMBINED_FORMAT = "%h %l %u %t %T \"%r\" %>s %b \"%{Referer}i\" \"%{User-agent}i\"";
+
+    public static enum Format {
+        COMMON,
+        COMBINED
+    }
+
+    private static final String[] PATTERN_KEYS = new String[] {
+        "%h", "%l", "%u", "%t", "%T", "%r", "%>s", "%b", "%{Referer}i", "%{User-agent}i" };
+
+
+    private static String COMMON_PATTERN = null;
+    private static String COMBINED_PATTERN = null;
+    private static final String LS = System.getProperty("line.separator");
+//    private static Logger LOGGER = null;
+//
+//    static class AccessLogFormatter extends Formatter {
+//        @Override
+//        public String format(LogRecord record) {
+//            return record.getMessage() + LS;
+//        }
+//    }
+//
+//    static {
+//        LOGGER = Logger.getLogger(AccessLogger.class.getName());
+//        LOGGER.setUseParentHandlers(false);
+//        Handler logHandler = new ConsoleHandler();
+//        Formatter formatter = new AccessLogFormatter();
+//        logHandler. setFormatter(formatter); logHandler. setLevel(Level.INFO);
+//        LOGGER.addHandler(logHandler);
+//    }
+
+    static String getPattern(final String pattern) {
+        StringBuilder builder = new StringBuilder(pattern);
+        for(int i=0; i<PATTERN_KEYS. length; i++) {
+            String sub = "{" + i + "}";
+            int pos = builder. indexOf(PATTERN_KEYS[i]);
+            if(pos >= 0) {
+                builder = builder.insert(pos, sub);
+                pos = pos + sub.length();
+                builder = builder.delete(pos, pos + PATTERN_KEYS[i].length());
+            }
+        }
+        return builder.toString();
+    }
+
+    static String common() {
+        if(COMMON_PATTERN == null)
+            COMMON_PATTERN = getPattern(COMMON_FORMAT);
+        return COMMON_PATTERN;
+    }
+
+    static String combined() {
+        if(COMBINED_PATTERN == null)
+            COMBINED_PATTERN = getPattern(COMBINED_FORMAT);
+        return COMBINED_PATTERN;
+    }
+
+    private Format format = Format.COMBINED;
+    private String formatPattern = combined();
+    private AccessLogTemplate template = AccessLogTemplate.compile(COMBINED_FORMAT);
+    private String logFile = null;
+    private long maxSize = 0L;
+    private String rollover = RollingLogWriter.Rollover.NONE.name();
+    private boolean compress = false;
+    private boolean mapped = false;
+    private volatile RollingLogWriter rolling = null;
+    private volatile PrintWriter writer;
+    private boolean async = false;
+    private int bufferSize = 8192;
+    private int batchSize = 256;
+    private AccessLogRing.Policy policy = AccessLogRing.Policy.BLOCK;
+    private int sampleRate = 10;
+    private volatile AccessLogRing ring = null;
+    /** Lines dropped by the closed rings */
+    private volatile long dropped = 0L;
+    private final ThreadLocal<Line> lines = ThreadLocal.withInitial(Line::new);
+
+    /**
+     * Reused buffers of a line.
+     */
+    static final class Line {
+        final AccessLogRing.Record record = new AccessLogRing.Record();
+        final StringBuilder builder = new StringBuilder(256);
+        char[] chars = new char[256];
+
+        void write(AccessLogTemplate template, AccessLogRing.Record r, Writer out) throws IOException {
+            builder.setLength(0);
+            template.write(r, builder);
+            builder.append(LS);
+            final int length = builder.length();
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            builder.getChars(0, length, chars, 0);
+            // One write, the lines of concurrent threads do not interleave
+            out.write(chars, 0, length);
+        }
+    }
+
+    public AccessLogger() {
+        writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.err)));
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        final long start = System.nanoTime();
+        if(null != chain) {
+            chain.doFilter(exchange);
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (async) {
+            getRing().publish(exchange, System.currentTimeMillis(), elapsed);
+            return;
+        }
+        final Line line = lines.get();
+        try {
+            line.write(template, line.record.set(exchange, System.currentTimeMillis(), elapsed), writer());
+        } finally {
+            line.record.clear();
+        }
+    }
+
+    private AccessLogRing getRing() {
+        AccessLogRing r = ring;
+        if (null == r) {
+            synchronized (this) {
+                r = ring;
+                if (null == r) {
+                    final Line line = new Line();
+                    r = new AccessLogRing(bufferSize, batchSize, policy, sampleRate, new AccessLogRing.Sink() {
+                        @Override
+                        public void write(AccessLogRing.Record record) {
+                            try {
+                                line.write(template, record, writer());
+                            } catch (IOException e) {
+                                // PrintWriter does not throw
+                            }
+                        }
+                        @Override
+                        public void flush() {
+                            writer().flush();
+                        }
+                    });
+                    ring = r;
+                }
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public String description() {
+        return "Access log filter";
+    }
+
+    public String getFile() {
+        return logFile;
+    }
+
+    /**
+     * @param file the log file, opened with the first line
+     */
+    public void setFile(String file) {
+        this.logFile = file;
+    }
+
+    /**
+     * @param size max bytes of a log file before rotation, not rotated by size if not positive
+     */
+    public void setMaxSize(long size) {
+        this.maxSize = size;
+    }
+
+    /**
+     * @param rollover 'NONE', 'HOURLY' or 'DAILY'
+     */
+    public void setRollover(String rollover) {
+        this.rollover = RollingLogWriter.Rollover.valueOf(rollover.toUpperCase()).name();
+    }
+
+    /**
+     * @param compress gzip the rotated log files in background
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * @param mapped append into a preallocated memory mapped log file
+     */
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    private PrintWriter writer() {
+        if (null != logFile && null == rolling) {
+            openFile();
+        }
+        return writer;
+    }
+
+    private synchronized void openFile() {
+        if (null != rolling) {
+            return;
+        }
+        try {
+            final RollingLogWriter file = new RollingLogWriter(new File(logFile), maxSize,
+                    RollingLogWriter.Rollover.valueOf(rollover), compress, mapped);
+            // The rolling writer buffers itself, a line is never split
+            writer = new PrintWriter(file);
+            rolling = file;
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cant not access log file '" + logFile + "'", ex);
+        }
+    }
+
+    protected void setLogger(Writer logger) {
+        if (logger instanceof PrintWriter) {
+            writer = (PrintWriter)logger;
+        } else {
+            if (!(logger instanceof BufferedWriter)) {
+                writer = new PrintWriter(new BufferedWriter(logger));
+            } else {
+                writer = new PrintWriter(logger);
+            }
+        }
+    }
+
+    void writeAccessLog(String log) {
+        writer().println(log);
+//        if (null != writer) {
+//            writer.println(log);
+//        } else {
+//            LOGGER.info(log);
+//        }
+    }
+
+    public String getFormatPattern() {
+        return formatPattern;
+    }
+    /**
+     * @param pattern the message format form of a log format, e.g. "{0} {1} {2}"
+     * @see #getPattern(String)
+     */
+    public void setFormatPattern(String pattern) {
+        this.template = AccessLogTemplate.compile(getFormat(pattern));
+        this.formatPattern = pattern;
+    }
+
+    public String getLogFormat() {
+        return template.getFormat();
+    }
+
+    /**
+     * @param format an Apache log format, e.g. "%h %l %u %t \"%r\" %>s %b %D %{X-Request-Id}o"
+     */
+    public void setLogFormat(String format) {
+        this.template = AccessLogTemplate.compile(format);
+        this.formatPattern = getPattern(format);
+    }
+
+    /**
+     * Inverse of {@link #getPattern(String)}.
+     */
+    static String getFormat(final String pattern) {
+        String format = pattern;
+        for(int i=0; i<PATTERN_KEYS.length; i++) {
+            format = format.replace("{" + i + "}", PATTERN_KEYS[i]);
+        }
+        return format;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * @param size number of records of the ring buffer, rounded up to a power of 2
+     */
+    public void setBufferSize(int size) {
+        this.bufferSize = size;
+    }
+
+    /**
+     * @param size max lines written between two flushes
+     */
+    public void setBatchSize(int size) {
+        this.batchSize = size;
+    }
+
+    public String getPolicy() {
+        return policy.name();
+    }
+
+    /**
+     * @param policy when the ring buffer is full, 'BLOCK', 'DROP' or 'SAMPLE'
+     */
+    public void setPolicy(String policy) {
+        this.policy = AccessLogRing.Policy.valueOf(policy.toUpperCase());
+    }
+
+    /**
+     * @param rate one of the lines is kept by the 'SAMPLE' policy
+     */
+    public void setSampleRate(int rate) {
+        this.sampleRate = rate;
+    }
+
+    /**
+     * @return number of lines dropped by a full ring buffer
+     */
+    public long getDropped() {
+        final AccessLogRing r = ring;
+        return dropped + ((null != r) ? r.getDropped() : 0L);
+    }
+
+    /**
+     * @return number of lines waiting for the async writer
+     */
+    public long getPending() {
+        final AccessLogRing r = ring;
+        return (null != r) ? r.pending() : 0L;
+    }
+
+    /**
+     * Write the pending lines and stop the async writer.
+     * The logger can still be used after, the file and the writer are opened again.
+     */
+    public void close() {
+        final AccessLogRing r;
+        synchronized (this) {
+            // A new ring is started by the next line, e.g. of a restarted server
+            r = ring;
+            ring = null;
+        }
+        if (null != r) {
+            r.close(3000L);
+            synchronized (this) {
+                dropped += r.getDropped();
+            }
+        }
+        if (null != rolling) {
+            writer.close();
+            // Opened again by the next line
+            rolling = null;
+        } else {
+            writer().flush();
+        }
+    }
+
+    public String getFormat() {
+        return format.name();
+    }
+
+    public void setFormat(String format) {
+        this.format = Format.valueOf(format.toUpperCase());
+        switch (this.format) {
+        case COMMON:
+            setFormatPattern(common());
+            break;
+        case COMBINED:
+        default:
+            setFormatPattern(combined());
+            break;
+        }
+    }
+
+    String formatDate(Date date) {
+        return HttpDateFormat.formatAccessLog(date);
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        final AccessLogRing r = ring;
+        if (null != r) {
+            r.close(3000L);
+        }
+        if(null != writer) {
+            writer.close();
+        }
+    }
+}
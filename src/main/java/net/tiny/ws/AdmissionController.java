@@ -0,0 +1,174 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Admission control of the embedded server.
+ *
+ * Wraps the server executor and sheds requests when the queue is too deep,
+ * when a request waited in the queue too long, or when the executor rejects it.
+ * A shed request never reaches its handler, the {@link #filter()} at the head
+ * of every context answers it with a pre-built 503 and Retry-After. The requests
+ * shed before the queue are answered by a small bounded pool, not by the dispatcher
+ * thread of the server, so a slow client does not stall the other connections.
+ *
+ * <code>
+ * server.builder.maxQueue = 200
+ * server.builder.maxQueueWait = 500
+ * server.builder.retryAfter = 1
+ * </code>
+ */
+public class AdmissionController implements Executor, Constants {
+
+    private static final ThreadLocal<Boolean> SHED = new ThreadLocal<>();
+    private static final int SHEDDERS = 2;
+    private static final int SHED_QUEUE = 256;
+
+    private final Executor delegate;
+    private final int maxQueue;
+    private final long maxQueueWait;
+    private final String retryAfter;
+    private final Filter filter = new ShedFilter();
+    private final ThreadPoolExecutor shedder;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shedByQueue = new AtomicLong();
+    private final AtomicLong shedByWait = new AtomicLong();
+    private final AtomicLong shedByReject = new AtomicLong();
+
+    /**
+     * @param delegate the executor of exchanges
+     * @param maxQueue max number of waiting exchanges, 0 is unlimited
+     * @param maxQueueWait max wait time in the queue (ms), 0 is unlimited
+     * @param retryAfter value of Retry-After header (second)
+     */
+    public AdmissionController(Executor delegate, int maxQueue, long maxQueueWait, int retryAfter) {
+        this.delegate = delegate;
+        this.maxQueue = maxQueue;
+        this.maxQueueWait = TimeUnit.MILLISECONDS.toNanos(maxQueueWait);
+        this.retryAfter = Integer.toString(retryAfter);
+        // Idle threads end, nothing to shut down. The dispatcher answers itself only
+        // when this pool is full too.
+        this.shedder = new ThreadPoolExecutor(SHEDDERS, SHEDDERS, 30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(SHED_QUEUE), r -> {
+                    final Thread thread = new Thread(r, "AdmissionShedder");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.shedder.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (maxQueue > 0 && queued.get() >= maxQueue) {
+            shedByQueue.incrementAndGet();
+            shedder.execute(() -> shed(task));
+            return;
+        }
+        final long enqueued = System.nanoTime();
+        queued.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                if (maxQueueWait > 0L && System.nanoTime() - enqueued > maxQueueWait) {
+                    shedByWait.incrementAndGet();
+                    shed(task);
+                } else {
+                    admitted.incrementAndGet();
+                    task.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            shedByReject.incrementAndGet();
+            shedder.execute(() -> shed(task));
+        }
+    }
+
+    /**
+     * Run the exchange on the current thread, the filter only answers 503.
+     */
+    private void shed(Runnable task) {
+        SHED.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            SHED.remove();
+        }
+    }
+
+    public Filter filter() {
+        return filter;
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getShedByQueue() {
+        return shedByQueue.get();
+    }
+
+    public long getShedByWait() {
+        return shedByWait.get();
+    }
+
+    public long getShedByReject() {
+        return shedByReject.get();
+    }
+
+    public long getShed() {
+        return shedByQueue.get() + shedByWait.get() + shedByReject.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s {queued:%d, admitted:%d, shed:%d(queue:%d, wait:%d, reject:%d)}",
+                getClass().getSimpleName(), getQueued(), getAdmitted(), getShed(),
+                getShedByQueue(), getShedByWait(), getShedByReject());
+    }
+
+    class ShedFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!Boolean.TRUE.equals(SHED.get())) {
+                chain.doFilter(exchange);
+                return;
+            }
+            try {
+                final Headers headers = exchange.getResponseHeaders();
+                headers.set(HEADER_CONTENT_TYPE, MIME_TYPE_HTML);
+                headers.set(HEADER_RETRY_AFTER, retryAfter);
+                headers.set(HEADER_CONNECTION, "close");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, SERVICE_UNAVAILABLE.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(SERVICE_UNAVAILABLE);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Load shedding filter";
+        }
+    }
+}
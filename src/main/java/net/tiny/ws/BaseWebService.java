@@ -24,9 +24,18 @@ public abstract class BaseWebService implements WebServiceHandler {
     protected String path;
     protected List<Filter> filters = new ArrayList<>();
     protected Authenticator auth = null;
+    protected long maxBodySize = -1L;
 
     @Override
     public void handle(HttpExchange he) throws IOException {
+        final RequestPhases phases = RequestPhases.current();
+        long saved = 0L;
+        long start = 0L;
+        long executed = 0L;
+        if (null != phases) {
+            saved = phases.enter();
+            start = System.nanoTime();
+        }
         try {
             final Headers headers = he.getResponseHeaders();
             final String allowedMethods = getAllowedMethods();
@@ -38,6 +47,9 @@ public abstract class BaseWebService implements WebServiceHandler {
             case DELETE:
                 if (isAllowedMethod(method)) {
                     execute(method, he);
+                    if (null != phases) {
+                        executed = System.nanoTime();
+                    }
                 } else {
                     headers.set(HEADER_ALLOW, allowedMethods);
                     he.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, NO_RESPONSE_LENGTH);
@@ -52,14 +64,48 @@ public abstract class BaseWebService implements WebServiceHandler {
                 he.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, NO_RESPONSE_LENGTH);
                 break;
             }
+        } catch (RequestBody.TooLargeException ex) {
+            RequestBody.refuse(he);
+            LOGGER.fine(String.format("[%s] %s", path, ex.getMessage()));
         } catch (RuntimeException | IOException ex) {
             he.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, NO_RESPONSE_LENGTH);
             LOGGER.log(Level.WARNING, ex.getMessage(), ex);
         } finally {
             he.close();
+            if (null != phases) {
+                final long end = System.nanoTime();
+                if (executed == 0L) {
+                    executed = end;
+                }
+                phases.handler(executed - start, end - executed);
+                phases.leave(saved, end - start);
+            }
+        }
+    }
+
+    /**
+     * Write an object as the JSON response. A body fitting a pooled buffer is sent
+     * with its length, a larger one is sent chunked while it is serialized.
+     */
+    protected void sendJson(HttpExchange he, int status, Object value) throws IOException {
+        he.getResponseHeaders().set(HEADER_CONTENT_TYPE, MIME_TYPE_JSON);
+        final ResponseWriter out = getResponseWriter(he, status);
+        try {
+            new JsonWriter(out).value(value);
+            out.close();
+        } finally {
+            out.discard();
         }
     }
 
+    /**
+     * @return the writer of the response body, sent by its close
+     * @see ResponseWriter
+     */
+    protected ResponseWriter getResponseWriter(HttpExchange he, int status) {
+        return ResponseWriter.of(he, status);
+    }
+
     protected boolean doGetOnly() {
         return false;
     }
@@ -81,6 +127,23 @@ public abstract class BaseWebService implements WebServiceHandler {
         this.path = path;
         return this;
     }
+    /**
+     * Limit the request body of this route, a larger one is refused with '413 Request Entity Too Large'.
+     *
+     * @param size max bytes, -1 for no limit
+     */
+    public WebServiceHandler setMaxBodySize(long size) {
+        this.maxBodySize = size;
+        return this;
+    }
+
+    /**
+     * @return max bytes of the request body or -1 for no limit
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
     @Override
     public boolean hasFilters() {
         return !filters.isEmpty();
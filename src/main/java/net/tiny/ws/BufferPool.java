@@ -0,0 +1,83 @@
+package net.tiny.ws;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of heap buffers of one size.
+ *
+ * A buffer is taken by {@link #acquire()} and given back by {@link #release(ByteBuffer)},
+ * a pool empty allocates a new one. At most <code>retained</code> free buffers are kept,
+ * the others are left to the garbage collector.
+ *
+ * <code>
+ *  ByteBuffer buffer = BufferPool.DEFAULT.acquire();
+ *  try {
+ *      int n = in.read(buffer.array(), 0, buffer.capacity());
+ *  } finally {
+ *      BufferPool.DEFAULT.release(buffer);
+ *  }
+ * </code>
+ */
+public final class BufferPool {
+
+    /** The buffers of {@link Constants#DEFAULT_BUFFER_SIZE} shared by the server */
+    public static final BufferPool DEFAULT = new BufferPool(Constants.DEFAULT_BUFFER_SIZE, 256);
+
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final int size;
+    private final int retained;
+
+    public BufferPool(int size, int retained) {
+        if (size <= 0 || retained < 0) {
+            throw new IllegalArgumentException(String.format("Illegal pool size %d or retained %d", size, retained));
+        }
+        this.size = size;
+        this.retained = retained;
+    }
+
+    /**
+     * @return a cleared buffer backed by an array
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = free.poll();
+        if (null == buffer) {
+            return ByteBuffer.allocate(size);
+        }
+        count.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer, a buffer of another size is ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (null == buffer || buffer.capacity() != size || !buffer.hasArray()) {
+            return;
+        }
+        if (count.incrementAndGet() > retained) {
+            count.decrementAndGet();
+            return;
+        }
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return size;
+    }
+
+    /**
+     * @return number of the free buffers
+     */
+    public int getFree() {
+        return count.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool(%d) free:%d/%d", size, count.get(), retained);
+    }
+}
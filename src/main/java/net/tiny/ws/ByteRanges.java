@@ -0,0 +1,264 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The byte ranges of a 'Range: bytes=...' request header.
+ *
+ * A single range is answered as a 206 with Content-Range, several ranges as
+ * 'multipart/byteranges'. The slices are written straight from the file channel
+ * or the cached buffer, only the requested bytes are sent.
+ *
+ * @see https://tools.ietf.org/html/rfc7233
+ */
+public final class ByteRanges implements Constants {
+
+    /** Max ranges of a request, more are ignored and the whole content is sent. */
+    static final int MAX_RANGES = 16;
+    private static final String UNIT = "bytes";
+
+    private final long length;
+    private final long[] starts;
+    private final long[] ends;
+
+    private ByteRanges(long length, long[] starts, long[] ends) {
+        this.length = length;
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * @param header the value of the 'Range' header
+     * @param length the length of the content
+     * @return the satisfiable ranges, empty if none, <code>null</code> if the header should be ignored
+     */
+    public static ByteRanges parse(String header, long length) {
+        if (null == header) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, UNIT + "=", 0, UNIT.length() + 1)) {
+            return null;
+        }
+        final String[] specs = header.substring(UNIT.length() + 1).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        final long[] starts = new long[specs.length];
+        final long[] ends = new long[specs.length];
+        int count = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // Suffix range '-n' : the last n bytes
+                    final long suffix = Long.parseLong(spec.substring(1).trim());
+                    if (suffix <= 0L) {
+                        continue;
+                    }
+                    start = Math.max(0L, length - suffix);
+                    end = length - 1L;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash).trim());
+                    final String last = spec.substring(dash + 1).trim();
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1L);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < 0L) {
+                return null;
+            }
+            if (start >= length) {
+                // Not satisfiable
+                continue;
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+        final long[] s = new long[count];
+        final long[] e = new long[count];
+        System.arraycopy(starts, 0, s, 0, count);
+        System.arraycopy(ends, 0, e, 0, count);
+        return new ByteRanges(length, s, e);
+    }
+
+    /**
+     * Check the 'If-Range' validator of a request.
+     *
+     * @param header the value of the 'If-Range' header
+     * @param lastModified the modified time of the content
+     * @param etag the entity tag of the content or <code>null</code>
+     * @return true if the ranges can be served
+     */
+    public static boolean isRangeValid(String header, long lastModified, String etag) {
+        if (null == header) {
+            return true;
+        }
+        header = header.trim();
+        if (header.startsWith("\"") || header.startsWith("W/")) {
+            // Strong comparison only
+            return null != etag && header.equals(etag);
+        }
+        try {
+            return HttpDateFormat.parse(header).getTime() == (lastModified / 1000L) * 1000L;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public boolean isSatisfiable() {
+        return starts.length > 0;
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    public long getEnd(int index) {
+        return ends[index];
+    }
+
+    public long getLength(int index) {
+        return ends[index] - starts[index] + 1L;
+    }
+
+    public String getContentRange(int index) {
+        return UNIT + " " + starts[index] + "-" + ends[index] + "/" + length;
+    }
+
+    /**
+     * Send the ranges of a content.
+     *
+     * @param he the exchange, the Content-Type header is already set
+     * @param source the content
+     */
+    public void send(HttpExchange he, Source source) throws IOException {
+        final Headers headers = he.getResponseHeaders();
+        if (!isSatisfiable()) {
+            headers.remove(HEADER_CONTENT_TYPE);
+            headers.set(HEADER_CONTENT_RANGE, UNIT + " */" + length);
+            he.sendResponseHeaders(416, -1);
+            return;
+        }
+        if (starts.length == 1) {
+            headers.set(HEADER_CONTENT_RANGE, getContentRange(0));
+            he.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, getLength(0));
+            source.write(he.getResponseBody(), starts[0], getLength(0));
+            return;
+        }
+
+        final String contentType = headers.getFirst(HEADER_CONTENT_TYPE);
+        final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + Long.toHexString(System.nanoTime());
+        final byte[][] heads = new byte[starts.length][];
+        long total = 0L;
+        for (int i = 0; i < starts.length; i++) {
+            final StringBuilder part = new StringBuilder(128)
+                    .append("\r\n--").append(boundary).append("\r\n");
+            if (null != contentType) {
+                part.append(HEADER_CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+            }
+            part.append(HEADER_CONTENT_RANGE).append(": ").append(getContentRange(i)).append("\r\n\r\n");
+            heads[i] = part.toString().getBytes(StandardCharsets.ISO_8859_1);
+            total += heads[i].length + getLength(i);
+        }
+        final byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        total += tail.length;
+
+        headers.set(HEADER_CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        he.sendResponseHeaders(HttpURLConnection.HTTP_PARTIAL, total);
+        final OutputStream out = he.getResponseBody();
+        for (int i = 0; i < starts.length; i++) {
+            out.write(heads[i]);
+            source.write(out, starts[i], getLength(i));
+        }
+        out.write(tail);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(UNIT).append('=');
+        for (int i = 0; i < starts.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(starts[i]).append('-').append(ends[i]);
+        }
+        return sb.append('/').append(length).toString();
+    }
+
+    /**
+     * The content of the ranges.
+     */
+    public interface Source {
+        void write(OutputStream out, long position, long count) throws IOException;
+    }
+
+    public static Source of(final FileChannel channel) {
+        return (out, position, count) -> {
+            if (out instanceof FileTransfer) {
+                ((FileTransfer) out).transferFrom(channel, position, count);
+                return;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, DEFAULT_BUFFER_SIZE));
+            final long end = position + count;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                final int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                out.write(buffer.array(), 0, n);
+                position += n;
+            }
+        };
+    }
+
+    public static Source of(final byte[] contents) {
+        return (out, position, count) -> out.write(contents, (int) position, (int) count);
+    }
+
+    public static Source of(final ByteBuffer contents) {
+        return (out, position, count) -> {
+            final ByteBuffer slice = contents.duplicate();
+            slice.position((int) position);
+            slice.limit((int) (position + count));
+            if (out instanceof FileTransfer) {
+                ((FileTransfer) out).write(slice);
+                return;
+            }
+            final byte[] chunk = new byte[(int) Math.min(count, DEFAULT_BUFFER_SIZE)];
+            while (slice.hasRemaining()) {
+                final int n = Math.min(chunk.length, slice.remaining());
+                slice.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        };
+    }
+}
@@ -0,0 +1,454 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * Compresses the responses of the handlers with gzip or deflate.
+ *
+ * The coding is negotiated from the 'Accept-Encoding' of the request. A response is
+ * compressed while it is written, without the 'Content-Length' and chunked, if its type
+ * is compressible and its length unknown or over the threshold. A response already
+ * encoded, a partial content or a response without body is sent as it is.
+ * A compressed response has its 'ETag' suffixed by the coding and no 'Accept-Ranges',
+ * 'Accept-Encoding' is added to its 'Vary'. The deflaters are reused from a pool.
+ *
+ * <code>
+ * gzip.class = net.tiny.ws.CompressionFilter
+ * gzip.threshold = 1024
+ * gzip.level = 6
+ * api.filters = ${logger}, ${gzip}
+ * </code>
+ */
+public class CompressionFilter extends Filter implements Constants {
+
+    private static final String GZIP = "gzip";
+
+    private int threshold = 1024;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int poolSize = 64;
+    // Built by the configuration, only read by the request threads
+    private volatile DeflaterPool gzipPool = new DeflaterPool(level, true, poolSize);
+    private volatile DeflaterPool deflatePool = new DeflaterPool(level, false, poolSize);
+
+    @Override
+    public String description() {
+        return "Compresses the responses with gzip or deflate";
+    }
+
+    /**
+     * @param bytes the min length of a response to compress, default 1024
+     */
+    public void setThreshold(int bytes) {
+        this.threshold = bytes;
+    }
+
+    /**
+     * @param level the compression level 1-9, default 6
+     */
+    public void setLevel(int level) {
+        this.level = level;
+        pools();
+    }
+
+    /**
+     * @param size the max number of the idle deflaters kept by each coding
+     */
+    public void setPoolSize(int size) {
+        this.poolSize = size;
+        pools();
+    }
+
+    private void pools() {
+        gzipPool = new DeflaterPool(level, true, poolSize);
+        deflatePool = new DeflaterPool(level, false, poolSize);
+    }
+
+    @Override
+    public void doFilter(HttpExchange he, Chain chain) throws IOException {
+        final String coding = HttpHandlerHelper.getAcceptedEncoding(
+                he.getRequestHeaders().getFirst(HEADER_ACCEPT_ENCODING));
+        if (null == coding || "HEAD".equals(he.getRequestMethod())) {
+            chain.doFilter(he);
+            return;
+        }
+        chain.doFilter(new CompressedExchange(he, coding, GZIP.equals(coding) ? gzipPool : deflatePool));
+    }
+
+    /**
+     * Add 'Accept-Encoding' to the 'Vary' of the response unless already there.
+     */
+    static void vary(Headers headers) {
+        final List<String> values = headers.get(HEADER_VARY);
+        if (null == values || values.isEmpty()) {
+            headers.set(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+            return;
+        }
+        for (String value : values) {
+            for (String token : value.split(",")) {
+                token = token.trim();
+                if ("*".equals(token) || HEADER_ACCEPT_ENCODING.equalsIgnoreCase(token)) {
+                    return;
+                }
+            }
+        }
+        headers.set(HEADER_VARY, String.join(", ", values) + ", " + HEADER_ACCEPT_ENCODING);
+    }
+
+    /**
+     * The tag of the encoded representation, suffixed by its coding as the precompressed
+     * variants of <code>FileContentCache</code>, e.g. <code>"abc"</code> to <code>"abc-gzip"</code>.
+     */
+    static String encodedETag(String etag, String coding) {
+        if (!etag.endsWith("\"") || etag.length() < 2) {
+            return null;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+    }
+
+    /**
+     * @return true if the type is text, JSON, XML or JavaScript
+     */
+    static boolean isCompressible(String contentType) {
+        if (null == contentType) {
+            return false;
+        }
+        final String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.contains("json") || type.contains("xml")
+                || type.contains("javascript");
+    }
+
+    /**
+     * The exchange given to the next filters and the handler.
+     */
+    final class CompressedExchange extends HttpExchange {
+        private final HttpExchange exchange;
+        private final String coding;
+        private final DeflaterPool pool;
+        private OutputStream body = null;
+
+        CompressedExchange(HttpExchange exchange, String coding, DeflaterPool pool) {
+            this.exchange = exchange;
+            this.coding = coding;
+            this.pool = pool;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            final Headers headers = exchange.getResponseHeaders();
+            final boolean compressible = isCompressible(headers.getFirst(HEADER_CONTENT_TYPE));
+            if (compressible) {
+                vary(headers);
+            }
+            if (!compressible
+                    || responseLength < 0L
+                    || (responseLength > 0L && responseLength < threshold)
+                    || rCode == HttpURLConnection.HTTP_PARTIAL
+                    || rCode == HttpURLConnection.HTTP_NO_CONTENT
+                    || rCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                    || headers.containsKey(HEADER_CONTENT_ENCODING)) {
+                exchange.sendResponseHeaders(rCode, responseLength);
+                return;
+            }
+            headers.remove(HEADER_CONTENT_LENGTH);
+            headers.set(HEADER_CONTENT_ENCODING, coding);
+            // The identity validator and byte ranges do not apply to the encoded bytes
+            headers.remove(HEADER_ACCEPT_RANGES);
+            final String etag = headers.getFirst(HEADER_ETAG);
+            if (null != etag) {
+                final String encoded = encodedETag(etag, coding);
+                if (null != encoded) {
+                    headers.set(HEADER_ETAG, encoded);
+                } else {
+                    headers.remove(HEADER_ETAG);
+                }
+            }
+            exchange.sendResponseHeaders(rCode, 0L);
+            body = new DeflatingStream(exchange.getResponseBody(), pool, GZIP.equals(coding));
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            if (null != body) {
+                return body;
+            }
+            if (exchange.getResponseCode() != -1) {
+                // Not compressed, the stream of the exchange keeps its file transfer
+                return exchange.getResponseBody();
+            }
+            // Taken before the headers, bound to the stream chosen by them
+            return new OutputStream() {
+                private OutputStream target() {
+                    return (null != body) ? body : exchange.getResponseBody();
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    target().write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    target().write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    target().flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    target().close();
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            if (null != body) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // The connection is closed by the exchange
+                }
+            }
+            exchange.close();
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return exchange.getRequestHeaders();
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return exchange.getResponseHeaders();
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return exchange.getRequestURI();
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return exchange.getRequestMethod();
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return exchange.getHttpContext();
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return exchange.getRequestBody();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return exchange.getRemoteAddress();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return exchange.getResponseCode();
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return exchange.getLocalAddress();
+        }
+
+        @Override
+        public String getProtocol() {
+            return exchange.getProtocol();
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return exchange.getAttribute(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            exchange.setAttribute(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            exchange.setStreams(i, o);
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return exchange.getPrincipal();
+        }
+    }
+
+    /**
+     * Deflaters of one level and format, reset and kept when given back.
+     */
+    static final class DeflaterPool {
+        private final ConcurrentLinkedQueue<Deflater> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+        private final int level;
+        private final boolean nowrap;
+        private final int retained;
+
+        DeflaterPool(int level, boolean nowrap, int retained) {
+            this.level = level;
+            this.nowrap = nowrap;
+            this.retained = retained;
+        }
+
+        Deflater acquire() {
+            final Deflater deflater = idle.poll();
+            if (null == deflater) {
+                return new Deflater(level, nowrap);
+            }
+            count.decrementAndGet();
+            return deflater;
+        }
+
+        void release(Deflater deflater) {
+            if (count.incrementAndGet() > retained) {
+                count.decrementAndGet();
+                deflater.end();
+                return;
+            }
+            deflater.reset();
+            idle.offer(deflater);
+        }
+
+        int getIdle() {
+            return count.get();
+        }
+    }
+
+    /**
+     * Deflates into a pooled buffer, with the gzip header and trailer if asked.
+     */
+    static final class DeflatingStream extends OutputStream {
+        private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+        private final OutputStream out;
+        private final DeflaterPool pool;
+        private final CRC32 crc;
+        private Deflater deflater;
+        private ByteBuffer buffer;
+        private byte[] array;
+        private boolean started = false;
+
+        DeflatingStream(OutputStream out, DeflaterPool pool, boolean gzip) {
+            this.out = out;
+            this.pool = pool;
+            this.crc = gzip ? new CRC32() : null;
+            this.deflater = pool.acquire();
+            this.buffer = BufferPool.DEFAULT.acquire();
+            this.array = buffer.array();
+        }
+
+        private void start() throws IOException {
+            if (null == deflater) {
+                throw new IOException("Stream closed");
+            }
+            if (!started) {
+                started = true;
+                if (null != crc) {
+                    out.write(GZIP_HEADER);
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start();
+            if (len == 0) {
+                return;
+            }
+            if (null != crc) {
+                crc.update(b, off, len);
+            }
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Send what is deflated so far, the client can inflate it.
+         */
+        @Override
+        public void flush() throws IOException {
+            start();
+            int n;
+            do {
+                n = deflate(Deflater.SYNC_FLUSH);
+            } while (n == array.length);
+            out.flush();
+        }
+
+        private int deflate(int flush) throws IOException {
+            final int n = deflater.deflate(array, 0, array.length, flush);
+            if (n > 0) {
+                out.write(array, 0, n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (null == deflater) {
+                return;
+            }
+            try {
+                start();
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(Deflater.NO_FLUSH);
+                }
+                if (null != crc) {
+                    trailer((int) crc.getValue());
+                    trailer((int) deflater.getBytesRead());
+                }
+                out.close();
+            } finally {
+                pool.release(deflater);
+                BufferPool.DEFAULT.release(buffer);
+                deflater = null;
+                buffer = null;
+            }
+        }
+
+        private void trailer(int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >> 24) & 0xff);
+        }
+    }
+}
@@ -5,8 +5,10 @@ public interface Constants {
     String DEFALUT_SERVER_NAME   = "Embedded Server v1.0";
 
     String HTTP_PARAMETER_ATTRIBUTE = "parameters";
+    String HTTP_ROUTE_ATTRIBUTE = "route";
     byte[] NOT_FOUND    = "<!DOCTYPE html><html><head><title>404 - Not Found</title></head><body>404 - Not Found</body></html>".getBytes();
     byte[] SERVER_ERROR = "<!DOCTYPE html><html><head><title>500 - Error</title></head><body>500 - Error</body></html>".getBytes();
+    byte[] SERVICE_UNAVAILABLE = "<!DOCTYPE html><html><head><title>503 - Service Unavailable</title></head><body>503 - Service Unavailable</body></html>".getBytes();
     String HEADER_ALLOW          = "Allow";
     String HEADER_LAST_MODIFIED  = "Last-Modified";
     String HEADER_CONTENT_TYPE   = "Content-Type";
@@ -14,6 +16,16 @@ public interface Constants {
     String HEADER_SET_COOKIE     = "Set-Cookie";
     String HEADER_CACHE_CONTROL  = "Cache-Control";
     String HEADER_CONNECTION     = "Connection";
+    String HEADER_RETRY_AFTER    = "Retry-After";
+    String HEADER_ACCEPT_ENCODING  = "Accept-Encoding";
+    String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    String HEADER_VARY           = "Vary";
+    String HEADER_RANGE          = "Range";
+    String HEADER_IF_RANGE       = "If-Range";
+    String HEADER_ACCEPT_RANGES  = "Accept-Ranges";
+    String HEADER_CONTENT_RANGE  = "Content-Range";
+    String HEADER_ETAG           = "ETag";
+    String HEADER_IF_NONE_MATCH  = "If-None-Match";
 
     int NO_RESPONSE_LENGTH = -1;
     int DEFAULT_BUFFER_SIZE = 8192;
@@ -61,5 +73,12 @@ public interface Constants {
         public String getType() {
             return type;
         }
+
+        /**
+         * @return true if a text type worth compressing
+         */
+        public boolean isCompressible() {
+            return type.startsWith("text/") || this == JSON || this == SVG;
+        }
     }
 }
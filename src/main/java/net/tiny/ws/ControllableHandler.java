@@ -29,9 +29,15 @@ public class ControllableHandler extends BaseWebService implements ControllerSer
 
     @Override
     protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
-        String req = he.getRequestURI()
+        final Router.Match route = Router.route(he);
+        String req;
+        if (null != route) {
+            req = route.getPathInfo();
+        } else {
+            req = he.getRequestURI()
                     .toString()
                     .substring(path().length() + 1);
+        }
         if (!isVaildRequest(req)) {
             // Not found
             he.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
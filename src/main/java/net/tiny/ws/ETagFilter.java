@@ -0,0 +1,247 @@
+package net.tiny.ws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import net.tiny.ws.cache.FileContentCache;
+
+/**
+ * Tags the 200 responses of GET requests with a strong ETag hashed from the body,
+ * and answers 304 when the tag matches the 'If-None-Match' header of the request.
+ *
+ * The body is held until the exchange is closed. A body larger than the max length
+ * or a response already tagged by the handler is sent as is.
+ */
+public class ETagFilter extends Filter implements Constants {
+
+    private int maxLength = 256 * 1024;
+
+    public ETagFilter maxLength(int length) {
+        this.maxLength = length;
+        return this;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        final String method = exchange.getRequestMethod();
+        if (!HTTP_METHOD.GET.name().equals(method)) {
+            chain.doFilter(exchange);
+            return;
+        }
+        final TaggedExchange tagged = new TaggedExchange(exchange, maxLength);
+        try {
+            chain.doFilter(tagged);
+        } finally {
+            tagged.close();
+        }
+    }
+
+    @Override
+    public String description() {
+        return "HTTP ETag Filter";
+    }
+
+    static final class Body extends ByteArrayOutputStream {
+        Body(int size) {
+            super(size);
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Holds the response headers and body until closed.
+     */
+    static final class TaggedExchange extends HttpExchange {
+        private final HttpExchange exchange;
+        private final int maxLength;
+        private final OutputStream out;
+        private Body body = null;
+        private int code = -1;
+        private long length = 0L;
+        private boolean passed = false;
+        private boolean closed = false;
+
+        TaggedExchange(HttpExchange exchange, int maxLength) {
+            this.exchange = exchange;
+            this.maxLength = maxLength;
+            this.out = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (!passed && null != body && body.size() + len > TaggedExchange.this.maxLength) {
+                        pass();
+                    }
+                    if (passed) {
+                        exchange.getResponseBody().write(b, off, len);
+                    } else if (null != body) {
+                        body.write(b, off, len);
+                    } else {
+                        throw new IOException("Response headers not sent");
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (passed) {
+                        exchange.getResponseBody().flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    TaggedExchange.this.close();
+                }
+            };
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            if (code != -1) {
+                throw new IOException("Response headers already sent");
+            }
+            code = rCode;
+            length = responseLength;
+            if (rCode != HttpURLConnection.HTTP_OK || responseLength < 0L || responseLength > maxLength
+                    || exchange.getResponseHeaders().containsKey(HEADER_ETAG)) {
+                passed = true;
+                exchange.sendResponseHeaders(rCode, responseLength);
+                return;
+            }
+            body = new Body((int) Math.max(responseLength, 512L));
+        }
+
+        /**
+         * Give up tagging, send the headers and the held body.
+         */
+        private void pass() throws IOException {
+            passed = true;
+            exchange.sendResponseHeaders(code, length);
+            body.writeTo(exchange.getResponseBody());
+            body = null;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (!passed && null != body) {
+                    final String etag = FileContentCache.etag(body.buffer());
+                    final Headers headers = exchange.getResponseHeaders();
+                    headers.set(HEADER_ETAG, etag);
+                    final String match = exchange.getRequestHeaders().getFirst(HEADER_IF_NONE_MATCH);
+                    if (null != match && RequestHelper.matchETag(match, etag)) {
+                        headers.remove(HEADER_CONTENT_LENGTH);
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, NO_RESPONSE_LENGTH);
+                    } else if (body.size() == 0) {
+                        exchange.sendResponseHeaders(code, NO_RESPONSE_LENGTH);
+                    } else {
+                        // The length is known now, even if the handler asked for chunks
+                        exchange.sendResponseHeaders(code, body.size());
+                        body.writeTo(exchange.getResponseBody());
+                    }
+                }
+            } catch (IOException e) {
+                BaseWebService.LOGGER.warning(String.format("[ETag] %s %s", exchange.getRequestURI(), e.getMessage()));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return out;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return passed ? exchange.getResponseCode() : code;
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return exchange.getRequestHeaders();
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return exchange.getResponseHeaders();
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return exchange.getRequestURI();
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return exchange.getRequestMethod();
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return exchange.getHttpContext();
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return exchange.getRequestBody();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return exchange.getRemoteAddress();
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return exchange.getLocalAddress();
+        }
+
+        @Override
+        public String getProtocol() {
+            return exchange.getProtocol();
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return exchange.getAttribute(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            exchange.setAttribute(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            exchange.setStreams(i, o);
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return exchange.getPrincipal();
+        }
+    }
+}
@@ -7,7 +7,6 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.security.KeyStore;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -15,6 +14,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -25,7 +25,6 @@ import java.util.logging.Logger;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.TrustManagerFactory;
 
@@ -35,6 +34,10 @@ import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsParameters;
 import com.sun.net.httpserver.HttpsServer;
+import com.sun.net.httpserver.spi.HttpServerProvider;
+
+import net.tiny.service.VirtualThreadExecutor;
+import net.tiny.ws.nio.NioHttpServerProvider;
 
 /**
  * @see https://github.com/calebrob6/json-server
@@ -51,6 +54,7 @@ public class EmbeddedServer implements Controllable, Closeable {
     private static final int DEFAULT_PORT = 8080;
     private static final long DEFAULT_STOP_TIME = 100L; //Delay 100ms
     private static final int DEFAULT_BACKLOG = 1;
+    private static final int DEFAULT_RETRY_AFTER = 1; //Retry after 1s
     private static final int MIN_PORT = 80;
     private static final int MAX_PORT = 9999;
     private static final int RANDOM_MIN_PORT = 8080;
@@ -63,8 +67,32 @@ public class EmbeddedServer implements Controllable, Closeable {
     //Inner executor，External executor priority
     private ExecutorService executor;
     private BlockingQueue<Boolean> eventQueue;
+    private AdmissionController admission;
+    private volatile InflightTracker inflight = new InflightTracker();
+    private MetricsFilter metrics;
+    private Router router;
     private String mark = "HTTP";
 
+    /**
+     * HTTP server engines.
+     * JDK is the default com.sun.net.httpserver implementation,
+     * NIO is a selector based non-blocking engine (HTTP only).
+     */
+    public static enum Engine {
+        JDK,
+        NIO;
+
+        HttpServerProvider provider(int acceptors) {
+            switch (this) {
+            case NIO:
+                return new NioHttpServerProvider(acceptors);
+            case JDK:
+            default:
+                return HttpServerProvider.provider();
+            }
+        }
+    }
+
     private EmbeddedServer(Builder builder) {
         this.builder = builder;
     }
@@ -97,6 +125,8 @@ public class EmbeddedServer implements Controllable, Closeable {
         if (isStarted()) {
             return;
         }
+        // A tracker drained by the last stop refuses everything
+        inflight = new InflightTracker();
 
         InetSocketAddress address;
         if("localhost".equalsIgnoreCase(builder.bind)) {
@@ -105,27 +135,53 @@ public class EmbeddedServer implements Controllable, Closeable {
             address = new InetSocketAddress(builder.bind, builder.port) ;
         }
 
+        // The builder may have been changed after build()
+        Builder.checkEngine(builder.ssl, builder.engine);
+        final HttpServerProvider provider = builder.engine.provider(builder.acceptors);
         String url;
         if (builder.ssl != null) {
-            HttpsServer httpsServer = HttpsServer.create(address, builder.backlog);
+            HttpsServer httpsServer = provider.createHttpsServer(address, builder.backlog);
             httpsServer.setHttpsConfigurator(builder.ssl.httpsConfigurator());
             httpServer = httpsServer;
             url = String.format("https://%s:%d", builder.bind, builder.port);
             mark = "HTTPS";
         } else {
-            httpServer = HttpServer.create(address, builder.backlog);
+            httpServer = provider.createHttpServer(address, builder.backlog);
             url = String.format("http://%s:%d", builder.bind, builder.port);
             mark = "HTTP";
         }
 
+        Executor exchangeExecutor;
         if(null != builder.executor) {
-            httpServer.setExecutor(builder.executor);
+            exchangeExecutor = builder.executor;
         } else {
             //创建访问进程池
-            executor = Executors.newCachedThreadPool();
-            httpServer.setExecutor(executor);
+            if (builder.virtual && VirtualThreadExecutor.isSupported()) {
+                executor = new VirtualThreadExecutor();
+            } else {
+                if (builder.virtual) {
+                    LOGGER.warning(String.format("[%s:%d] Virtual threads not supported by this JVM, use a cached thread pool.",
+                            mark, builder.port));
+                }
+                executor = Executors.newCachedThreadPool();
+            }
+            exchangeExecutor = executor;
+        }
+        if (builder.maxQueue > 0 || builder.maxQueueWait > 0L) {
+            admission = new AdmissionController(exchangeExecutor,
+                    builder.maxQueue, builder.maxQueueWait, builder.retryAfter);
+            exchangeExecutor = admission;
+        }
+        if (builder.metrics) {
+            // Stamp the queue wait of the exchanges
+            exchangeExecutor = RequestPhases.executor(exchangeExecutor);
         }
+        httpServer.setExecutor(exchangeExecutor);
 
+        router = new Router();
+        if (builder.metrics) {
+            metrics = new MetricsFilter(router);
+        }
         for (WebServiceHandler handler : builder.handlers) {
             try {
                 handle(handler);
@@ -134,26 +190,40 @@ public class EmbeddedServer implements Controllable, Closeable {
                         mark, builder.port, handler.toString(), e.getMessage()), e);
             }
         }
+        if (!router.getRoutes().isEmpty()) {
+            // One context dispatches all the routes
+            HttpContext serverContext = httpServer.createContext("/");
+            serverContext.setHandler(router);
+            addServerFilters(serverContext.getFilters());
+            LOGGER.fine(String.format("[%s:%d] bind %d route(s) : %s", mark, builder.port,
+                    router.getRoutes().size(), router.getRoutes()));
+        }
 
         httpServer.start();
 
         eventQueue = new ArrayBlockingQueue<Boolean>(1);
-        LOGGER.info(String.format("[%s:%d] Embedded server listen on %s", mark, builder.port, url));
+        LOGGER.info(String.format("[%s:%d] Embedded server(%s) listen on %s", mark, builder.port, builder.engine.name(), url));
     }
 
     private void handle(WebServiceHandler handler) {
-        HttpContext serverContext = httpServer.createContext(handler.path());
-        serverContext.setHandler(handler);
-        LOGGER.fine(String.format("[%s:%d] bind a handler on '%s'", mark, builder.port, handler.path()));
+        if (!handler.isAuth()) {
+            // Routed by the compiled route table
+            router.add(handler, routeFilters(handler));
+        } else {
+            // The authenticator of a context sets the principal of the exchange
+            if (Router.isTemplate(handler.path())) {
+                throw new IllegalArgumentException("Path parameters not support with authenticator.");
+            }
+            HttpContext serverContext = httpServer.createContext(handler.path());
+            serverContext.setHandler(handler);
+            LOGGER.fine(String.format("[%s:%d] bind a handler on '%s'", mark, builder.port, handler.path()));
 
-        //Set filter of handler
-        if (handler.hasFilters()) {
+            //Set filter of handler
             List<Filter> filters = serverContext.getFilters();
-            filters.addAll(handler.getFilters());
-        }
+            addServerFilters(filters);
+            filters.addAll(routeFilters(handler));
 
-        //Set authenticator
-        if (handler.isAuth()) {
+            //Set authenticator
             serverContext.setAuthenticator(handler.getAuth());
         }
 
@@ -163,6 +233,31 @@ public class EmbeddedServer implements Controllable, Closeable {
         }
     }
 
+    private List<Filter> routeFilters(WebServiceHandler handler) {
+        final List<Filter> filters = new ArrayList<>(handler.getFilters());
+        if (handler instanceof BaseWebService && ((BaseWebService) handler).getMaxBodySize() >= 0L) {
+            // Refuse a large body before any filter reads it
+            filters.add(0, RequestBody.limit(((BaseWebService) handler).getMaxBodySize()));
+        }
+        if (builder.metrics) {
+            // Record the own time of each filter
+            filters.replaceAll(RequestPhases::timed);
+        }
+        return filters;
+    }
+
+    private void addServerFilters(List<Filter> filters) {
+        if (null != admission) {
+            // Shed requests before any other filter
+            filters.add(admission.filter());
+        }
+        filters.add(inflight);
+        if (null != metrics) {
+            // Time the exchanges accepted by the tracker
+            filters.add(metrics);
+        }
+    }
+
     protected void dispose() {
     }
 
@@ -170,6 +265,48 @@ public class EmbeddedServer implements Controllable, Closeable {
         return builder.port;
     }
 
+    /**
+     * @return the admission controller or <code>null</code> if load shedding is disabled
+     */
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    /**
+     * @return the TLS handshake statistics or <code>null</code> if not HTTPS
+     */
+    public HandshakeMonitor getHandshakes() {
+        return null != builder.ssl ? builder.ssl.monitor : null;
+    }
+
+    /**
+     * @return the route table of the handlers without authenticator
+     */
+    public Router getRouter() {
+        return router;
+    }
+
+    /**
+     * @return the tracker of the exchanges being processed, a new one on each listen
+     */
+    public InflightTracker getInflight() {
+        return inflight;
+    }
+
+    /**
+     * @return the executor running the exchanges, given by the builder or created by the server
+     */
+    public ExecutorService getExecutor() {
+        return null != builder.executor ? builder.executor : executor;
+    }
+
+    /**
+     * @return the metrics of the routes or <code>null</code> if metrics are disabled
+     */
+    public MetricsFilter getMetrics() {
+        return metrics;
+    }
+
     @Override
     public void close() {
         if (!isStarted()) {
@@ -188,17 +325,27 @@ public class EmbeddedServer implements Controllable, Closeable {
         task.start();
     }
 
-    private void stopServer(long delay) throws Exception {
+    /**
+     * Drain the server: refuse new exchanges, wait for the in-flight ones
+     * until the deadline and then close the listener and the connections.
+     *
+     * @param timeout drain timeout (ms)
+     */
+    private void stopServer(long timeout) throws Exception {
+        final long deadline = System.currentTimeMillis() + timeout;
         try {
-//            String[] names =
-//                boundNames.keySet().toArray(new String[boundNames.size()]);
-//             for(String name : names) {
-//                 unbind(name);
-//            }
+            inflight.drain();
             dispose();
-            Thread.sleep(delay);
-               shutdownExecutor(executor, delay);
-            httpServer.stop(1);
+            if (!inflight.awaitIdle(timeout)) {
+                final List<String> requests = inflight.getActiveRequests();
+                LOGGER.warning(String.format("[%s:%d] Drain timeout %dms, %d request(s) cut off : %s",
+                        mark, builder.port, timeout, requests.size(), requests));
+            } else {
+                LOGGER.fine(String.format("[%s:%d] Drained, %d request(s) completed, %d refused",
+                        mark, builder.port, inflight.getCompleted(), inflight.getRefused()));
+            }
+            httpServer.stop(0);
+            shutdownExecutor(executor, Math.max(deadline - System.currentTimeMillis(), 0L));
         } finally {
             httpServer = null;
             eventQueue.offer(Boolean.TRUE);
@@ -212,10 +359,10 @@ public class EmbeddedServer implements Controllable, Closeable {
         pool.shutdown(); // Disable new tasks from being submitted
         try {
           // Wait a while for existing tasks to terminate
-          if (!pool.awaitTermination(timeout, TimeUnit.SECONDS)) {
+          if (!pool.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
             pool.shutdownNow(); // Cancel currently executing tasks
             // Wait a while for tasks to respond to being cancelled
-            if (!pool.awaitTermination(timeout, TimeUnit.SECONDS)) {
+            if (!pool.awaitTermination(DEFAULT_STOP_TIME, TimeUnit.MILLISECONDS)) {
                 LOGGER.warning(String.format("[%s:%d] Pool did not terminate.", mark, builder.port));
             }
           }
@@ -333,10 +480,16 @@ public class EmbeddedServer implements Controllable, Closeable {
 
 
     public static class SSL {
+        static final String SESSION_TICKET_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
         String file;
         String password;
         boolean clientAuth = false;
+        int sessionCacheSize = 0; // 0: JDK default (20480)
+        int sessionTimeout = 0;   // 0: JDK default (86400s)
+        boolean sessionTickets = true;
         HttpsConfigurator https = null;
+        final HandshakeMonitor monitor = new HandshakeMonitor();
 
         public SSL file(String f) {
             file = f;
@@ -350,8 +503,26 @@ public class EmbeddedServer implements Controllable, Closeable {
             clientAuth = enable;
             return this;
         }
+        public SSL sessionCache(int size, int timeout) {
+            sessionCacheSize = size;
+            sessionTimeout = timeout;
+            return this;
+        }
+        /**
+         * Stateless session resumption (JDK 13+, enabled by default).
+         * The JDK reads the setting once per JVM on the first TLS usage, so it is not set
+         * here but given at start : <code>-Djdk.tls.server.enableSessionTicketExtension=false</code>.
+         * A warning is logged if the JVM setting differs.
+         */
+        public SSL sessionTickets(boolean enable) {
+            sessionTickets = enable;
+            return this;
+        }
 
         public HttpsConfigurator httpsConfigurator() {
+            if (https != null) {
+                return https;
+            }
             if(file == null || password == null || password.isEmpty()) {
                 throw new IllegalArgumentException("KeyStore file or password is illegal.");
             }
@@ -370,41 +541,49 @@ public class EmbeddedServer implements Controllable, Closeable {
                 TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
                 tmf.init(ks);
 
+                checkSessionTickets();
                 SSLContext sslContext = SSLContext.getInstance("TLS");
                 // setup the HTTPS context and parameters
                 sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
-                https = new SSLConfigurator(sslContext, clientAuth);
+                // setup the server session cache for abbreviated handshakes
+                if (sessionCacheSize > 0) {
+                    sslContext.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+                }
+                if (sessionTimeout > 0) {
+                    sslContext.getServerSessionContext().setSessionTimeout(sessionTimeout);
+                }
+                https = new SSLConfigurator(monitor.wrap(sslContext), clientAuth);
                 return https;
             } catch (Exception ex) {
                 throw new RuntimeException(ex.getMessage(), ex);
             }
         }
+
+        private void checkSessionTickets() {
+            final String value = System.getProperty(SESSION_TICKET_PROPERTY);
+            final boolean enabled = (value == null) || Boolean.parseBoolean(value);
+            if (enabled != sessionTickets) {
+                LOGGER.warning(String.format("[SSL] Session tickets %s ignored, start the JVM with -D%s=%s",
+                        sessionTickets ? "enabled" : "disabled", SESSION_TICKET_PROPERTY, sessionTickets));
+            }
+        }
     }
 
     static class SSLConfigurator extends HttpsConfigurator {
 
         final boolean clientAuth;
+        final SSLParameters sslParameters;
         public SSLConfigurator(SSLContext context, boolean auth) {
             super(context);
             clientAuth = auth;
+            // Computed once, the server copies them into each new engine
+            sslParameters = context.getDefaultSSLParameters();
+            sslParameters.setNeedClientAuth(clientAuth);
         }
 
         @Override
         public void configure(HttpsParameters params) {
-            try {
-                // initialize the SSL context
-                SSLContext c = SSLContext.getDefault();
-                SSLEngine engine = c.createSSLEngine();
-                params.setNeedClientAuth(clientAuth);
-                params.setCipherSuites(engine.getEnabledCipherSuites());
-                params.setProtocols(engine.getEnabledProtocols());
-
-                // get the default parameters
-                SSLParameters defaultSSLParameters = c.getDefaultSSLParameters();
-                params.setSSLParameters(defaultSSLParameters);
-            } catch (NoSuchAlgorithmException ex) {
-                throw new RuntimeException(ex.getMessage(), ex);
-            }
+            params.setSSLParameters(sslParameters);
         }
     }
 
@@ -437,8 +616,15 @@ public class EmbeddedServer implements Controllable, Closeable {
         int port = DEFAULT_PORT;
         long stopTimeout = DEFAULT_STOP_TIME; //Delay 100ms
         int backlog = DEFAULT_BACKLOG;
+        Engine engine = Engine.JDK;
+        int acceptors = 1;
         SSL ssl;
         ExecutorService executor;
+        boolean virtual = false;
+        int maxQueue = 0;
+        long maxQueueWait = 0L;
+        int retryAfter = DEFAULT_RETRY_AFTER;
+        boolean metrics = false;
         RandomPorts random;
 
         List<WebServiceHandler> handlers = new ArrayList<>();
@@ -470,11 +656,65 @@ public class EmbeddedServer implements Controllable, Closeable {
             return this;
         }
 
+        public Builder engine(Engine e) {
+            engine = e;
+            return this;
+        }
+
+        public Builder engine(String name) {
+            return engine(Engine.valueOf(name.toUpperCase()));
+        }
+
+        /**
+         * Number of listeners bound to the same port with SO_REUSEPORT (NIO engine only).
+         */
+        public Builder acceptors(int n) {
+            acceptors = n;
+            return this;
+        }
+
         public Builder executor(ExecutorService e) {
             executor = e;
             return this;
         }
 
+        /**
+         * Run each request on its own virtual thread when no executor is given.
+         * Ignored on a JVM without virtual threads, a cached thread pool is used.
+         */
+        public Builder virtual(boolean enable) {
+            virtual = enable;
+            return this;
+        }
+
+        /**
+         * Enable load shedding, overloaded requests are answered with 503.
+         *
+         * @param queue max number of waiting requests, 0 is unlimited
+         * @param wait max wait time (ms) of a request in the queue, 0 is unlimited
+         */
+        public Builder admission(int queue, long wait) {
+            maxQueue = queue;
+            maxQueueWait = wait;
+            return this;
+        }
+
+        public Builder retryAfter(int seconds) {
+            retryAfter = seconds;
+            return this;
+        }
+
+        /**
+         * Record the latency histograms, status codes and bytes of each route,
+         * and the time of each phase of the exchanges.
+         *
+         * @see RequestPhases
+         */
+        public Builder metrics(boolean enable) {
+            metrics = enable;
+            return this;
+        }
+
         public Builder delay(long delay) {
             stopTimeout = delay;
             return this;
@@ -509,10 +749,43 @@ public class EmbeddedServer implements Controllable, Closeable {
             return this;
         }
 
+        /**
+         * @param size max cached TLS sessions
+         * @param timeout session lifetime (s)
+         */
+        public Builder sessionCache(int size, int timeout) {
+            if (ssl == null) {
+                throw new IllegalStateException("Not a HTTPS server, set ssl first.");
+            }
+            ssl.sessionCache(size, timeout);
+            return this;
+        }
+
+        public Builder sessionTickets(boolean enable) {
+            if (ssl == null) {
+                throw new IllegalStateException("Not a HTTPS server, set ssl first.");
+            }
+            ssl.sessionTickets(enable);
+            return this;
+        }
+
+        /**
+         * The NIO engine serves plain HTTP only.
+         */
+        static void checkEngine(SSL ssl, Engine engine) {
+            if (ssl != null && engine == Engine.NIO) {
+                throw new IllegalArgumentException("The NIO engine does not support HTTPS, use the JDK engine.");
+            }
+        }
+
         public EmbeddedServer build() {
             if (handlers.isEmpty()) {
                 throw new IllegalArgumentException("Has not a http handler");
             }
+            checkEngine(ssl, engine);
+            if (acceptors > 1 && engine != Engine.NIO) {
+                throw new IllegalArgumentException("Multiple acceptors need NIO engine.");
+            }
             return new EmbeddedServer(this);
         }
 
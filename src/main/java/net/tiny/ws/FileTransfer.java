@@ -0,0 +1,36 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A response body which can send a file region or an off-heap buffer
+ * straight to the socket without copying it through the heap.
+ *
+ * <code>
+ *  OutputStream out = exchange.getResponseBody();
+ *  if (out instanceof FileTransfer) {
+ *      ((FileTransfer) out).transferFrom(channel, 0L, channel.size());
+ *  }
+ * </code>
+ */
+public interface FileTransfer {
+
+    /**
+     * Write <code>count</code> bytes of the file starting at <code>position</code>.
+     *
+     * @param file the source file channel
+     * @param position the first byte to send
+     * @param count number of bytes to send
+     * @throws IOException if the region is not fully sent
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Write the remaining bytes of the buffer, like a mapped file.
+     *
+     * @param src the source buffer
+     */
+    void write(ByteBuffer src) throws IOException;
+}
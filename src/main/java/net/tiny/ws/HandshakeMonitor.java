@@ -0,0 +1,319 @@
+package net.tiny.ws;
+
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Counts the TLS handshakes of the HTTPS server.
+ *
+ * The monitor wraps the server SSLContext, every engine created by the server
+ * reports its first completed handshake as full or resumed.
+ * A handshake is resumed when the negotiated session was created before the engine.
+ */
+public class HandshakeMonitor {
+
+    private final AtomicLong full = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param context the initialized server context
+     * @return a context creating monitored engines
+     */
+    public SSLContext wrap(SSLContext context) {
+        return new MonitoredContext(context, this);
+    }
+
+    public long getHandshakes() {
+        return full.get() + resumed.get();
+    }
+
+    public long getFullHandshakes() {
+        return full.get();
+    }
+
+    public long getResumedHandshakes() {
+        return resumed.get();
+    }
+
+    public long getFailedHandshakes() {
+        return failed.get();
+    }
+
+    /**
+     * @return rate of the resumed handshakes (0.0 - 1.0)
+     */
+    public double getResumptionRate() {
+        final long r = resumed.get();
+        final long total = r + full.get();
+        return total == 0L ? 0d : (double) r / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s {handshakes:%d, full:%d, resumed:%d, failed:%d, resumption:%.1f%%}",
+                getClass().getSimpleName(), getHandshakes(), getFullHandshakes(), getResumedHandshakes(),
+                getFailedHandshakes(), getResumptionRate() * 100d);
+    }
+
+    void finished(SSLSession session, long created) {
+        if (null != session && session.getCreationTime() < created) {
+            resumed.incrementAndGet();
+        } else {
+            full.incrementAndGet();
+        }
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    static final class MonitoredContext extends SSLContext {
+        MonitoredContext(SSLContext delegate, HandshakeMonitor monitor) {
+            super(new MonitoredContextSpi(delegate, monitor), delegate.getProvider(), delegate.getProtocol());
+        }
+    }
+
+    static final class MonitoredContextSpi extends SSLContextSpi {
+        private final SSLContext delegate;
+        private final HandshakeMonitor monitor;
+
+        MonitoredContextSpi(SSLContext delegate, HandshakeMonitor monitor) {
+            this.delegate = delegate;
+            this.monitor = monitor;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+            delegate.init(km, tm, sr);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return delegate.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new MonitoredEngine(delegate.createSSLEngine(), monitor);
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return new MonitoredEngine(delegate.createSSLEngine(host, port), monitor);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return delegate.getClientSessionContext();
+        }
+
+        @Override
+        protected SSLParameters engineGetDefaultSSLParameters() {
+            return delegate.getDefaultSSLParameters();
+        }
+
+        @Override
+        protected SSLParameters engineGetSupportedSSLParameters() {
+            return delegate.getSupportedSSLParameters();
+        }
+    }
+
+    static final class MonitoredEngine extends SSLEngine {
+        private final SSLEngine delegate;
+        private final HandshakeMonitor monitor;
+        private final long created = System.currentTimeMillis();
+        private boolean reported = false;
+
+        MonitoredEngine(SSLEngine delegate, HandshakeMonitor monitor) {
+            super(delegate.getPeerHost(), delegate.getPeerPort());
+            this.delegate = delegate;
+            this.monitor = monitor;
+        }
+
+        private SSLEngineResult report(SSLEngineResult result) {
+            if (!reported && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                reported = true;
+                monitor.finished(delegate.getSession(), created);
+            }
+            return result;
+        }
+
+        private void failed() {
+            if (!reported) {
+                reported = true;
+                monitor.failed();
+            }
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException {
+            try {
+                return report(delegate.wrap(srcs, offset, length, dst));
+            } catch (SSLException ex) {
+                failed();
+                throw ex;
+            }
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws SSLException {
+            try {
+                return report(delegate.unwrap(src, dsts, offset, length));
+            } catch (SSLException ex) {
+                failed();
+                throw ex;
+            }
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return delegate.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException {
+            delegate.closeInbound();
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return delegate.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound() {
+            delegate.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return delegate.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return delegate.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            delegate.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return delegate.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return delegate.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            delegate.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return delegate.getSession();
+        }
+
+        @Override
+        public SSLSession getHandshakeSession() {
+            return delegate.getHandshakeSession();
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException {
+            delegate.beginHandshake();
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return delegate.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            delegate.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return delegate.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            delegate.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return delegate.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            delegate.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return delegate.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            delegate.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return delegate.getEnableSessionCreation();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return delegate.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params) {
+            delegate.setSSLParameters(params);
+        }
+    }
+}
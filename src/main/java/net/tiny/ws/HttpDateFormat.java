@@ -1,77 +1,110 @@
 package net.tiny.ws;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Collections;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
 import java.util.Date;
-import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 
+/**
+ * HTTP and access log dates, formatted and parsed without locks.
+ *
+ * The strings of the current second are rendered once per second and shared by all threads,
+ * the last parsed header values are kept in a small table.
+ */
 public final class HttpDateFormat {
 
+    /**
+     * @deprecated The immutable formatters take no lock, this flag has no effect.
+     */
+    @Deprecated
     public static boolean synchronize = true;
-    private static final int DATE_FORMAT_QUEUE_LEN = 10;
-    private static ArrayBlockingQueue<SimpleDateFormat> RFC1123_DATE_FORMAT_QUEUE = new ArrayBlockingQueue<SimpleDateFormat>(DATE_FORMAT_QUEUE_LEN);
+
     /**
      * The date format pattern for RFC 1123.
      */
-    private static final String RFC1123_DATE_FORMAT_PATTERN = "EEE, dd MMM yyyy HH:mm:ss zzz";
-    private static final SimpleDateFormat RFC1123_DATE_FORMAT = new SimpleDateFormat(RFC1123_DATE_FORMAT_PATTERN, Locale.ENGLISH);
+    private static final DateTimeFormatter RFC1123_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter RFC1123_DATE_PARSER =
+            DateTimeFormatter.ofPattern("EEE, d MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
     /**
      * The date format pattern for RFC 1036.
      */
-    private static final String RFC1036_DATE_FORMAT_PATTERN = "EEEE, dd-MMM-yy HH:mm:ss zzz";
-    private static final SimpleDateFormat RFC1036_DATE_FORMAT = new SimpleDateFormat(RFC1036_DATE_FORMAT_PATTERN, Locale.ENGLISH);
+    private static final DateTimeFormatter RFC1036_DATE_PARSER = new DateTimeFormatterBuilder()
+            .appendPattern("EEEE, dd-MMM-")
+            .appendValueReduced(ChronoField.YEAR, 2, 2, LocalDate.now().minusYears(80L))
+            .appendPattern(" HH:mm:ss zzz")
+            .toFormatter(Locale.ENGLISH);
     /**
      * The date format pattern for ANSI C asctime().
      */
-    private static final String ANSI_C_ASCTIME_DATE_FORMAT_PATTERN = "EEE MMM d HH:mm:ss yyyy";
-    private static final SimpleDateFormat ANSI_C_ASCTIME_DATE_FORMAT = new SimpleDateFormat(ANSI_C_ASCTIME_DATE_FORMAT_PATTERN, Locale.ENGLISH);
+    private static final DateTimeFormatter ANSI_C_ASCTIME_DATE_PARSER =
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ENGLISH).withZone(ZoneOffset.UTC);
 
     private static final String ACCESSLOG_DATE_FORMAT_PATTERN = "d/MMM/yyyy:HH:mm:ss Z";
-    private static final SimpleDateFormat ACCESSLOG_DATE_FORMAT = new SimpleDateFormat(ACCESSLOG_DATE_FORMAT_PATTERN, Locale.ENGLISH);
+    private static final DateTimeFormatter ACCESSLOG_DATE_FORMAT =
+            DateTimeFormatter.ofPattern(ACCESSLOG_DATE_FORMAT_PATTERN, Locale.ENGLISH).withZone(ZoneId.systemDefault());
 
-    private static final TimeZone GMT_TIME_ZONE = TimeZone.getTimeZone("GMT");
+    private static final DateTimeFormatter[] DATE_PARSERS = new DateTimeFormatter[] {
+        RFC1123_DATE_PARSER,
+        RFC1036_DATE_PARSER,
+        ANSI_C_ASCTIME_DATE_PARSER,
+        ACCESSLOG_DATE_FORMAT
+    };
 
-    private static final List<SimpleDateFormat> dateFormats;
+    private static final int PARSE_CACHE_SIZE = 64; // Power of 2
 
-    static {
-        dateFormats = createDateFormats();
+    /** The clock of the current date, replaced by tests. */
+    static Clock clock = Clock.systemUTC();
+
+    private static volatile Second currentDate = new Second(Long.MIN_VALUE, null);
+    private static volatile Second currentAccessLog = new Second(Long.MIN_VALUE, null);
+    private static final Parsed[] parsed = new Parsed[PARSE_CACHE_SIZE];
+
+    /**
+     * A string rendered for a second, immutable so it is safely published by a volatile write.
+     */
+    private static final class Second {
+        final long epochSecond;
+        final String text;
+
+        Second(long epochSecond, String text) {
+            this.epochSecond = epochSecond;
+            this.text = text;
+        }
     }
 
-    private static List<SimpleDateFormat> createDateFormats() {
-        final SimpleDateFormat[] formats = new SimpleDateFormat[]{
-            RFC1123_DATE_FORMAT,
-            RFC1036_DATE_FORMAT,
-            ANSI_C_ASCTIME_DATE_FORMAT,
-            ACCESSLOG_DATE_FORMAT
-        };
-        formats[0].setTimeZone(GMT_TIME_ZONE);
-        formats[1].setTimeZone(GMT_TIME_ZONE);
-        formats[2].setTimeZone(GMT_TIME_ZONE);
-        formats[3].setTimeZone(GMT_TIME_ZONE);
-        return Collections.unmodifiableList(Arrays.asList(formats));
+    private static final class Parsed {
+        final String text;
+        final long time;
+
+        Parsed(String text, long time) {
+            this.text = text;
+            this.time = time;
+        }
     }
 
+    private HttpDateFormat() {}
+
     public static Date readDate(final String date) {
-        ParseException pe = null;
-        for (final SimpleDateFormat format : dateFormats) {
+        DateTimeParseException pe = null;
+        for (final DateTimeFormatter format : DATE_PARSERS) {
             try {
-                synchronized(format) {
-                    return format.parse(date);
-                }
-            } catch (final ParseException e) {
+                return Date.from(parseInstant(format, date));
+            } catch (final DateTimeParseException e) {
                 pe = (pe == null) ? e : pe;
-            } finally {
-                 // parse can change time zone -> set it back to GMT
-                format.setTimeZone(GMT_TIME_ZONE);
             }
         }
         throw new IllegalArgumentException(pe.getMessage(), pe);
     }
+
     /**
      * Converts HTTP date to Java Date.
      *
@@ -80,34 +113,26 @@ public final class HttpDateFormat {
      * @throws IllegalArgumentException if parsing fails
      */
     public static Date parse(String date) {
-        if (synchronize) {
-            try {
-                synchronized(RFC1123_DATE_FORMAT) {
-                    return RFC1123_DATE_FORMAT.parse(date);
-                }
-            } catch (final ParseException pe) {
-                throw new IllegalArgumentException(pe.getMessage(), pe);
-            } finally {
-                 // parse can change time zone -> set it back to GMT
-                RFC1123_DATE_FORMAT.setTimeZone(GMT_TIME_ZONE);
-            }
-        } else {
-            SimpleDateFormat rfc1123 = RFC1123_DATE_FORMAT_QUEUE.poll();
-            if (rfc1123 == null) {
-                rfc1123 = new SimpleDateFormat(RFC1123_DATE_FORMAT_PATTERN, Locale.ENGLISH);
-                rfc1123.setTimeZone(GMT_TIME_ZONE);
-            }
-            try {
-                return rfc1123.parse(date);
-            } catch (ParseException pe) {
-                throw new IllegalArgumentException(pe.getMessage(), pe);
-            } finally {
-                // parse can change time zone -> set it back to GMT
-                rfc1123.setTimeZone(GMT_TIME_ZONE);
-                RFC1123_DATE_FORMAT_QUEUE.offer(rfc1123);
-            }
+        // Browsers repeat the same If-Modified-Since values
+        final int index = date.hashCode() & (PARSE_CACHE_SIZE - 1);
+        final Parsed hit = parsed[index];
+        if (null != hit && hit.text.equals(date)) {
+            return new Date(hit.time);
+        }
+        try {
+            final long time = parseInstant(RFC1123_DATE_PARSER, date).toEpochMilli();
+            parsed[index] = new Parsed(date, time);
+            return new Date(time);
+        } catch (final DateTimeParseException pe) {
+            throw new IllegalArgumentException(pe.getMessage(), pe);
         }
+    }
 
+    private static Instant parseInstant(DateTimeFormatter format, String date) {
+        if (null != format.getZone()) {
+            return Instant.from(format.parse(date));
+        }
+        return ZonedDateTime.parse(date, format).toInstant();
     }
 
     /**
@@ -117,24 +142,12 @@ public final class HttpDateFormat {
      * @return the HTTP date string
      */
     public static String format(Date date) {
-        if (synchronize) {
-            synchronized(RFC1123_DATE_FORMAT) {
-                return RFC1123_DATE_FORMAT.format(date);
-            }
-        } else {
-            SimpleDateFormat rfc1123 = RFC1123_DATE_FORMAT_QUEUE.poll();
-            if (rfc1123 == null) {
-                rfc1123 = new SimpleDateFormat(RFC1123_DATE_FORMAT_PATTERN, Locale.US);
-                rfc1123.setTimeZone(GMT_TIME_ZONE);
-            }
-            try {
-                return rfc1123.format(date);
-            } finally {
-                // parse can change time zone -> set it back to GMT
-                //rfc1123.setTimeZone(GMT_TIME_ZONE);
-                RFC1123_DATE_FORMAT_QUEUE.offer(rfc1123);
-            }
+        final long time = date.getTime();
+        final Second current = currentDate;
+        if (Math.floorDiv(time, 1000L) == current.epochSecond) {
+            return current.text;
         }
+        return RFC1123_DATE_FORMAT.format(Instant.ofEpochMilli(time));
     }
 
     /**
@@ -143,6 +156,53 @@ public final class HttpDateFormat {
      * @return the HTTP current date string
      */
     public static String formatCurrentDate() {
-        return format(new Date());
+        final long now = Math.floorDiv(clock.millis(), 1000L);
+        Second current = currentDate;
+        if (current.epochSecond != now) {
+            current = new Second(now, RFC1123_DATE_FORMAT.format(Instant.ofEpochSecond(now)));
+            currentDate = current;
+        }
+        return current.text;
+    }
+
+    /**
+     * Converts Java Data to access log date string, e.g. "10/Oct/2011:13:55:36 -0700".
+     *
+     * @param date Java Date
+     * @return the access log date string in the local time zone
+     */
+    public static String formatAccessLog(Date date) {
+        return formatAccessLog(date.getTime());
+    }
+
+    /**
+     * @param time epoch millis
+     * @return the access log date string in the local time zone
+     */
+    public static String formatAccessLog(long time) {
+        final long second = Math.floorDiv(time, 1000L);
+        final Second current = currentAccessLog;
+        if (second == current.epochSecond) {
+            return current.text;
+        }
+        final String text = ACCESSLOG_DATE_FORMAT.format(Instant.ofEpochSecond(second));
+        if (second > current.epochSecond) {
+            // A newer second becomes the current one
+            currentAccessLog = new Second(second, text);
+        }
+        return text;
+    }
+
+    /**
+     * @return the access log string of the current date
+     */
+    public static String formatCurrentAccessLog() {
+        final long now = Math.floorDiv(clock.millis(), 1000L);
+        Second current = currentAccessLog;
+        if (current.epochSecond != now) {
+            current = new Second(now, ACCESSLOG_DATE_FORMAT.format(Instant.ofEpochSecond(now)));
+            currentAccessLog = current;
+        }
+        return current.text;
     }
 }
@@ -1,9 +1,6 @@
 package net.tiny.ws;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URLDecoder;
 
 import com.sun.net.httpserver.HttpExchange;
@@ -21,6 +18,58 @@ public final class HttpHandlerHelper implements Constants {
         return MIME_TYPE.valueOf(MIME_TYPE.class, suffix.toUpperCase());
     }
 
+    /**
+     * Choose the content coding from an 'Accept-Encoding' header.
+     *
+     * @param accept the header value, e.g. "gzip, deflate;q=0.5"
+     * @return "gzip", "deflate" or <code>null</code> for identity
+     */
+    public static String getAcceptedEncoding(String accept) {
+        if (accept == null || accept.isEmpty())
+            return null;
+        double gzip = -1d;
+        double deflate = -1d;
+        double any = -1d;
+        for (String part : accept.split(",")) {
+            final String[] tokens = part.split(";");
+            final String coding = tokens[0].trim().toLowerCase();
+            double q = 1d;
+            for (int i = 1; i < tokens.length; i++) {
+                final String param = tokens[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0d;
+                    }
+                }
+            }
+            switch (coding) {
+            case "gzip":
+            case "x-gzip":
+                gzip = q;
+                break;
+            case "deflate":
+                deflate = q;
+                break;
+            case "*":
+                any = q;
+                break;
+            default:
+                break;
+            }
+        }
+        if (gzip < 0d)
+            gzip = any;
+        if (deflate < 0d)
+            deflate = any;
+        if (gzip > 0d && gzip >= deflate)
+            return "gzip";
+        if (deflate > 0d)
+            return "deflate";
+        return null;
+    }
+
     public static ResponseHeaderHelper getHeaderHelper(HttpExchange he) {
         return new ResponseHeaderHelper(he.getResponseHeaders());
     }
@@ -30,26 +79,12 @@ public final class HttpHandlerHelper implements Constants {
     }
 
     public static byte[] getRequestBody(HttpExchange he) throws IOException {
-        InputStream is = he.getRequestBody();
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        sendChunk(is, os);
-        is.close();
-        os.close();
-        return os.toByteArray();
+        try (RequestBody body = RequestBody.of(he)) {
+            return body.toByteArray();
+        }
     }
 
     public static String getRequestMessage(HttpExchange he) throws IOException {
         return URLDecoder.decode(new String(getRequestBody(he)), "UTF-8");
     }
-
-    private static void sendChunk(InputStream is, OutputStream os)
-            throws IOException {
-        int size = is.available();
-        int bufferSize = Math.min(size, DEFAULT_BUFFER_SIZE);
-        byte[] buffer = new byte[bufferSize];
-        int readBytes = -1;
-        while ((readBytes = is.read(buffer)) > 0) {
-            os.write(buffer, 0, readBytes);
-        }
-    }
 }
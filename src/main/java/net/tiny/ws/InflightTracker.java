@@ -0,0 +1,125 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Tracks the exchanges being processed by the embedded server.
+ *
+ * Once draining, new exchanges are refused with 503 and <code>Connection: close</code>
+ * while the running ones are allowed to finish.
+ */
+public class InflightTracker extends Filter implements Constants {
+
+    private static final long POLL_INTERVAL = 10L;
+
+    private final Map<HttpExchange, Long> exchanges = new ConcurrentHashMap<>();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private volatile boolean draining = false;
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        // Register before checking the flag, so a drain can not miss this exchange
+        exchanges.put(exchange, System.nanoTime());
+        try {
+            if (draining) {
+                refuse(exchange);
+                return;
+            }
+            chain.doFilter(exchange);
+            completed.incrementAndGet();
+        } finally {
+            exchanges.remove(exchange);
+        }
+    }
+
+    private void refuse(HttpExchange exchange) throws IOException {
+        refused.incrementAndGet();
+        try {
+            final Headers headers = exchange.getResponseHeaders();
+            headers.set(HEADER_CONTENT_TYPE, MIME_TYPE_HTML);
+            headers.set(HEADER_CONNECTION, "close");
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, SERVICE_UNAVAILABLE.length);
+            exchange.getResponseBody().write(SERVICE_UNAVAILABLE);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public String description() {
+        return "In-flight exchange tracker";
+    }
+
+    /**
+     * Refuse new exchanges from now on.
+     */
+    public void drain() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Wait until all in-flight exchanges finished.
+     *
+     * @param timeout max wait time (ms)
+     * @return true if no exchange is running
+     */
+    public boolean awaitIdle(long timeout) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (!exchanges.isEmpty()) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L) {
+                return false;
+            }
+            Thread.sleep(Math.min(POLL_INTERVAL, remaining));
+        }
+        return true;
+    }
+
+    public int getActive() {
+        return exchanges.size();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getRefused() {
+        return refused.get();
+    }
+
+    /**
+     * @return the running exchanges as 'METHOD URI (elapsed ms)'
+     */
+    public List<String> getActiveRequests() {
+        final long now = System.nanoTime();
+        final List<String> list = new ArrayList<>();
+        for (Map.Entry<HttpExchange, Long> entry : exchanges.entrySet()) {
+            final HttpExchange exchange = entry.getKey();
+            list.add(String.format("%s %s (%dms)", exchange.getRequestMethod(), exchange.getRequestURI(),
+                    TimeUnit.NANOSECONDS.toMillis(now - entry.getValue())));
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s {active:%d, completed:%d, refused:%d, draining:%s}",
+                getClass().getSimpleName(), getActive(), getCompleted(), getRefused(), draining);
+    }
+}
@@ -0,0 +1,200 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.BaseStream;
+
+import net.tiny.config.JsonParser;
+
+/**
+ * Writes a value as UTF-8 JSON to a stream, element by element.
+ *
+ * Maps, collections, arrays, iterators and streams are walked as they are written,
+ * a large result is never held as one string. Other objects are marshalled one by one
+ * by <code>JsonParser</code>.
+ *
+ * <code>
+ *  new JsonWriter(out).value(users.stream());
+ * </code>
+ */
+public final class JsonWriter {
+
+    private static final byte[] NULL  = { 'n', 'u', 'l', 'l' };
+    private static final byte[] TRUE  = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] HEX   = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+
+    public JsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public JsonWriter value(Object value) throws IOException {
+        if (null == value) {
+            out.write(NULL);
+        } else if (value instanceof CharSequence || value instanceof Character || value instanceof Enum) {
+            string(value.toString());
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Number) {
+            number((Number) value);
+        } else if (value instanceof Map) {
+            object((Map<?, ?>) value);
+        } else if (value instanceof Iterable) {
+            array(((Iterable<?>) value).iterator());
+        } else if (value instanceof Iterator) {
+            array((Iterator<?>) value);
+        } else if (value instanceof BaseStream) {
+            try (BaseStream<?, ?> stream = (BaseStream<?, ?>) value) {
+                array(stream.iterator());
+            }
+        } else if (value instanceof Optional) {
+            value(((Optional<?>) value).orElse(null));
+        } else if (value.getClass().isArray()) {
+            array(value);
+        } else {
+            ascii(JsonParser.marshal(value));
+        }
+        return this;
+    }
+
+    private void number(Number number) throws IOException {
+        if ((number instanceof Double && !Double.isFinite(number.doubleValue()))
+                || (number instanceof Float && !Float.isFinite(number.floatValue()))) {
+            out.write(NULL);
+        } else {
+            ascii(number.toString());
+        }
+    }
+
+    private void object(Map<?, ?> map) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            string(String.valueOf(entry.getKey()));
+            out.write(':');
+            value(entry.getValue());
+        }
+        out.write('}');
+    }
+
+    private void array(Iterator<?> it) throws IOException {
+        out.write('[');
+        boolean first = true;
+        while (it.hasNext()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            value(it.next());
+        }
+        out.write(']');
+    }
+
+    private void array(Object array) throws IOException {
+        out.write('[');
+        final int length = Array.getLength(array);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            value(Array.get(array, i));
+        }
+        out.write(']');
+    }
+
+    /**
+     * Write a quoted and escaped string encoded in UTF-8.
+     */
+    public JsonWriter string(String s) throws IOException {
+        out.write('"');
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                case '"':
+                case '\\':
+                    out.write('\\');
+                    out.write(c);
+                    break;
+                case '\n':
+                    escape('n');
+                    break;
+                case '\r':
+                    escape('r');
+                    break;
+                case '\t':
+                    escape('t');
+                    break;
+                default:
+                    if (c < 0x20) {
+                        unicode(c);
+                    } else {
+                        out.write(c);
+                    }
+                    break;
+                }
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else if (c == '\u2028' || c == '\u2029') {
+                // Line separators not allowed in a script
+                unicode(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xf0 | (cp >> 18));
+                out.write(0x80 | ((cp >> 12) & 0x3f));
+                out.write(0x80 | ((cp >> 6) & 0x3f));
+                out.write(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out.write('?');
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+        out.write('"');
+        return this;
+    }
+
+    private void escape(char c) throws IOException {
+        out.write('\\');
+        out.write(c);
+    }
+
+    private void unicode(char c) throws IOException {
+        out.write('\\');
+        out.write('u');
+        out.write(HEX[(c >> 12) & 0xf]);
+        out.write(HEX[(c >> 8) & 0xf]);
+        out.write(HEX[(c >> 4) & 0xf]);
+        out.write(HEX[c & 0xf]);
+    }
+
+    /**
+     * Write a JSON text made of ASCII chars, or UTF-8 encoded if not.
+     */
+    private void ascii(String s) throws IOException {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                out.write(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            out.write(c);
+        }
+    }
+}
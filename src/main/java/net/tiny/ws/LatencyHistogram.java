@@ -0,0 +1,143 @@
+package net.tiny.ws;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of latencies in nanoseconds.
+ *
+ * Like HdrHistogram each power of 2 is split into 16 linear sub-buckets,
+ * a recorded value is reported within 1/16 (6.25%) of its magnitude.
+ * Values of 2^45 ns (about 9.8 hours) and more fall into the last bucket.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT + 1) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    public void record(long nanos) {
+        final long value = Math.max(0L, nanos);
+        buckets.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        return SUB_COUNT + exponent * SUB_COUNT + (int) ((value >>> exponent) - SUB_COUNT);
+    }
+
+    /**
+     * @return the highest value of a bucket
+     */
+    static long highest(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int exponent = (index - SUB_COUNT) / SUB_COUNT;
+        final long mantissa = SUB_COUNT + (index - SUB_COUNT) % SUB_COUNT;
+        return ((mantissa + 1L) << exponent) - 1L;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return total nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long n = count.sum();
+        return n == 0L ? 0d : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile e.g. 99.9
+     * @return nanoseconds, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return valueAt(counts, total, percentile);
+    }
+
+    /**
+     * @return the values at the percentiles from one snapshot of the buckets
+     */
+    public long[] getValuesAtPercentiles(double... percentiles) {
+        final long[] counts = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        final long[] values = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            values[i] = valueAt(counts, total, percentiles[i]);
+        }
+        return values;
+    }
+
+    private long valueAt(long[] counts, long total, double percentile) {
+        if (total == 0L) {
+            return 0L;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(Math.min(100d, percentile) / 100d * total));
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0L);
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    @Override
+    public String toString() {
+        final long[] values = getValuesAtPercentiles(50d, 90d, 99d, 99.9d);
+        return String.format("count=%d p50=%.3fms p90=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+                getCount(), millis(values[0]), millis(values[1]), millis(values[2]), millis(values[3]), millis(getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1L);
+    }
+}
@@ -0,0 +1,271 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Records the latency, status codes and bytes of the exchanges per route.
+ *
+ * The key of an exchange is the path template of its route, like <code>/api/{id}</code>,
+ * so the number of endpoints is bounded by the handlers. Exchanges without a route are
+ * recorded under the path of their context. The route is matched again rather than read
+ * from the exchange attribute, the JDK engine shares the attributes within a context.
+ * The counters are striped and the histograms lock-free, recording costs no lock on the
+ * request threads.
+ *
+ * The byte counts are read from the <code>Content-length</code> headers, the streams are
+ * not wrapped so the zero-copy transfer of the static files is kept.
+ */
+public class MetricsFilter extends Filter implements Constants {
+
+    /** Key of the endpoints above the max number */
+    public static final String OTHER = "other";
+    /** Phase names besides the filters */
+    public static final String QUEUE = "queue";
+    public static final String HANDLER = "handler";
+    public static final String CLOSE = "close";
+
+    /**
+     * Metrics of one route.
+     */
+    public static final class Endpoint {
+        private final String path;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        /** 1xx to 5xx, index 0 for the exchanges failed without status */
+        private final LongAdder[] statusClasses = new LongAdder[6];
+        private final Map<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final Map<String, LatencyHistogram> phases = new ConcurrentHashMap<>();
+
+        Endpoint(String path) {
+            this.path = path;
+            for (int i = 0; i < statusClasses.length; i++) {
+                statusClasses[i] = new LongAdder();
+            }
+        }
+
+        void record(int status, long nanos, long in, long out) {
+            latency.record(nanos);
+            final int index = (status >= 100 && status < 600) ? status / 100 : 0;
+            statusClasses[index].increment();
+            if (index > 0) {
+                LongAdder counter = statusCodes.get(status);
+                if (null == counter) {
+                    counter = statusCodes.computeIfAbsent(status, k -> new LongAdder());
+                }
+                counter.increment();
+            }
+            if (in > 0L) {
+                bytesIn.add(in);
+            }
+            if (out > 0L) {
+                bytesOut.add(out);
+            }
+        }
+
+        void record(RequestPhases timeline) {
+            phase(QUEUE).record(timeline.getQueue());
+            for (int i = 0; i < timeline.getFilterCount(); i++) {
+                phase(timeline.getFilterName(i)).record(timeline.getFilterNanos(i));
+            }
+            if (timeline.getHandler() != RequestPhases.NONE) {
+                phase(HANDLER).record(timeline.getHandler());
+                phase(CLOSE).record(timeline.getClose());
+            }
+        }
+
+        private LatencyHistogram phase(String name) {
+            LatencyHistogram histogram = phases.get(name);
+            if (null == histogram) {
+                histogram = phases.computeIfAbsent(name, k -> new LatencyHistogram());
+            }
+            return histogram;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        /**
+         * @param digit 1 to 5, or 0 for the exchanges failed before sending a status
+         */
+        public long getStatusClass(int digit) {
+            return statusClasses[digit].sum();
+        }
+
+        public long getStatus(int code) {
+            final LongAdder counter = statusCodes.get(code);
+            return null != counter ? counter.sum() : 0L;
+        }
+
+        /**
+         * @return the counts of the status codes in order
+         */
+        public Map<Integer, Long> getStatusCodes() {
+            final Map<Integer, Long> codes = new TreeMap<>();
+            for (Map.Entry<Integer, LongAdder> entry : statusCodes.entrySet()) {
+                codes.put(entry.getKey(), entry.getValue().sum());
+            }
+            return codes;
+        }
+
+        /**
+         * @return the histograms of the phases by name, the filters by their class name
+         * @see RequestPhases
+         */
+        public Map<String, LatencyHistogram> getPhases() {
+            return Collections.unmodifiableMap(new TreeMap<>(phases));
+        }
+
+        /**
+         * @return the histogram or <code>null</code> if the phase was not timed
+         */
+        public LatencyHistogram getPhase(String name) {
+            return phases.get(name);
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s 2xx=%d 4xx=%d 5xx=%d in=%d out=%d", path, latency,
+                    getStatusClass(2), getStatusClass(4), getStatusClass(5), getBytesIn(), getBytesOut());
+        }
+    }
+
+    private final Router router;
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Endpoint total = new Endpoint("*");
+    private int maxEndpoints = 256;
+
+    public MetricsFilter() {
+        this(null);
+    }
+
+    /**
+     * @param router the route table giving the keys, or <code>null</code> to key by context
+     */
+    public MetricsFilter(Router router) {
+        this.router = router;
+    }
+
+    /**
+     * @param max number of endpoints, the others are recorded as <code>other</code>
+     */
+    public MetricsFilter maxEndpoints(int max) {
+        this.maxEndpoints = max;
+        return this;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(exchange);
+            failed = false;
+        } finally {
+            record(exchange, System.nanoTime() - start, failed);
+        }
+    }
+
+    private void record(HttpExchange exchange, long nanos, boolean failed) {
+        int status = exchange.getResponseCode();
+        if (status < 0 && failed) {
+            // The handler threw before sending the headers
+            status = 0;
+        }
+        final long in = length(exchange.getRequestHeaders());
+        final long out = length(exchange.getResponseHeaders());
+        final Endpoint endpoint = endpoint(key(exchange));
+        endpoint.record(status, nanos, in, out);
+        total.record(status, nanos, in, out);
+        final RequestPhases timeline = RequestPhases.current();
+        if (null != timeline) {
+            endpoint.record(timeline);
+            total.record(timeline);
+        }
+    }
+
+    String key(HttpExchange exchange) {
+        if (null != router) {
+            final Router.Match match = router.match(exchange.getRequestURI().getRawPath());
+            if (null != match) {
+                return match.getPath();
+            }
+        }
+        return exchange.getHttpContext().getPath();
+    }
+
+    private Endpoint endpoint(String path) {
+        Endpoint endpoint = endpoints.get(path);
+        if (null != endpoint) {
+            return endpoint;
+        }
+        if (endpoints.size() >= maxEndpoints) {
+            path = OTHER;
+        }
+        return endpoints.computeIfAbsent(path, Endpoint::new);
+    }
+
+    private static long length(Headers headers) {
+        final String value = headers.getFirst(HEADER_CONTENT_LENGTH);
+        if (null == value) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * @return the endpoints by path
+     */
+    public Map<String, Endpoint> getEndpoints() {
+        return Collections.unmodifiableMap(new TreeMap<>(endpoints));
+    }
+
+    /**
+     * @return the endpoint or <code>null</code> if not requested yet
+     */
+    public Endpoint getEndpoint(String path) {
+        return endpoints.get(path);
+    }
+
+    /**
+     * @return the metrics of all the exchanges
+     */
+    public Endpoint getTotal() {
+        return total;
+    }
+
+    @Override
+    public String description() {
+        return "HTTP Metrics Filter";
+    }
+}
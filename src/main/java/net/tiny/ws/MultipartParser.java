@@ -0,0 +1,538 @@
+package net.tiny.ws;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A streaming parser of a 'multipart/form-data' body.
+ *
+ * The body is scanned for the boundary in one pooled buffer as it comes. A part up to
+ * the memory threshold is kept in memory, a larger one is spooled to a temporary file.
+ * Each part is handed to the handler when it is complete and is closed after, its
+ * temporary file is deleted unless moved by {@link Part#moveTo(Path)}. The memory used
+ * stays the same whatever the size of the upload.
+ *
+ * <code>
+ *  final Path dir = Paths.get("upload").toAbsolutePath().normalize();
+ *  MultipartParser.of(he)
+ *      .threshold(16384)
+ *      .budget(100L * 1024L * 1024L)
+ *      .parse(part -> {
+ *          if (part.isFile()) {
+ *              // The name is given by the client, keep the target in the directory
+ *              final String name = part.getFileName();
+ *              final Path target = (null != name) ? dir.resolve(name).normalize() : null;
+ *              if (null != target && dir.equals(target.getParent())) {
+ *                  part.moveTo(target);
+ *              }
+ *          } else {
+ *              String value = part.getString(StandardCharsets.UTF_8);
+ *          }
+ *      });
+ * </code>
+ */
+public final class MultipartParser implements Constants {
+
+    public static final String MIME_TYPE_MULTIPART = "multipart/form-data";
+
+    private static final String HEADER_CONTENT_DISPOSITION = "Content-Disposition";
+    private static final int MAX_HEADERS_SIZE = 16384;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private int threshold = 16384;
+    private long budget = -1L;
+    private Path directory = null;
+    private BufferPool pool = BufferPool.DEFAULT;
+
+    private byte[] array;
+    private int pos;
+    private int lim;
+    private long spooled = 0L;
+
+    public MultipartParser(InputStream in, String boundary) {
+        if (null == boundary || boundary.isEmpty() || boundary.length() > 70) {
+            throw new IllegalArgumentException("Illegal multipart boundary '" + boundary + "'");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the parser of the request body
+     * @throws IOException if the request is not 'multipart/form-data'
+     */
+    public static MultipartParser of(HttpExchange he) throws IOException {
+        final String boundary = boundary(he.getRequestHeaders().getFirst(HEADER_CONTENT_TYPE));
+        if (null == boundary) {
+            throw new IOException("Not a multipart request");
+        }
+        return new MultipartParser(he.getRequestBody(), boundary);
+    }
+
+    /**
+     * @param contentType e.g. "multipart/form-data; boundary=----1234"
+     * @return the boundary or <code>null</code> if not 'multipart/form-data'
+     */
+    public static String boundary(String contentType) {
+        if (null == contentType
+                || !contentType.regionMatches(true, 0, MIME_TYPE_MULTIPART, 0, MIME_TYPE_MULTIPART.length())) {
+            return null;
+        }
+        return parameter(contentType, "boundary");
+    }
+
+    /**
+     * Bytes of a part kept in memory, a larger part is spooled to a file. Default 16KB.
+     */
+    public MultipartParser threshold(int bytes) {
+        this.threshold = bytes;
+        return this;
+    }
+
+    /**
+     * Max bytes spooled to the files by the whole body. Default -1, no limit.
+     */
+    public MultipartParser budget(long bytes) {
+        this.budget = bytes;
+        return this;
+    }
+
+    /**
+     * Directory of the temporary files. Default the system temporary directory.
+     */
+    public MultipartParser directory(Path dir) {
+        this.directory = dir;
+        return this;
+    }
+
+    public MultipartParser pool(BufferPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Parse the body, the parts are handed in order and closed after their handling.
+     *
+     * @throws RequestBody.TooLargeException if the parts spool more than the budget
+     */
+    public void parse(PartHandler handler) throws IOException {
+        final ByteBuffer buffer = pool.acquire();
+        if (buffer.capacity() < delimiter.length * 2) {
+            pool.release(buffer);
+            throw new IllegalStateException("Buffer too small for the boundary");
+        }
+        array = buffer.array();
+        // The first boundary has no leading CRLF
+        array[0] = '\r';
+        array[1] = '\n';
+        pos = 0;
+        lim = 2;
+        try {
+            if (!scan(null)) {
+                throw new EOFException("Multipart boundary not found");
+            }
+            while (true) {
+                if (!ensure(2)) {
+                    throw new EOFException("Unexpected end of multipart body");
+                }
+                if (array[pos] == '-' && array[pos + 1] == '-') {
+                    // The close delimiter, the epilogue is ignored
+                    return;
+                }
+                skipLine();
+                final Part part = new Part(readHeaders());
+                try {
+                    if (!scan(part)) {
+                        throw new EOFException("Unexpected end of multipart part '" + part.getName() + "'");
+                    }
+                    part.complete();
+                    handler.handle(part);
+                } finally {
+                    part.close();
+                }
+            }
+        } finally {
+            array = null;
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Pass the bytes up to the next delimiter to the part.
+     *
+     * @return false if the body ends before a delimiter
+     */
+    private boolean scan(Part part) throws IOException {
+        final int n = delimiter.length;
+        while (true) {
+            final int found = indexOf(pos, lim);
+            if (found + n <= lim) {
+                write(part, pos, found);
+                pos = found + n;
+                return true;
+            }
+            // No delimiter or a part of it at the end
+            write(part, pos, found);
+            pos = found;
+            compact();
+            if (!fill()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the index of the delimiter, of its beginning at the end of the data, or the end
+     */
+    private int indexOf(int from, int to) {
+        final byte first = delimiter[0];
+        for (int i = from; i < to; i++) {
+            if (array[i] != first) {
+                continue;
+            }
+            final int end = Math.min(to - i, delimiter.length);
+            int k = 1;
+            while (k < end && array[i + k] == delimiter[k]) {
+                k++;
+            }
+            if (k == end) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Skip the transport padding and the CRLF after a delimiter.
+     */
+    private void skipLine() throws IOException {
+        while (true) {
+            if (!ensure(1)) {
+                throw new EOFException("Unexpected end of multipart body");
+            }
+            final byte b = array[pos++];
+            if (b == '\n') {
+                return;
+            }
+            if (b != ' ' && b != '\t' && b != '\r') {
+                throw new IOException("Illegal multipart delimiter");
+            }
+        }
+    }
+
+    private Headers readHeaders() throws IOException {
+        final Headers headers = new Headers();
+        int size = 0;
+        while (true) {
+            int eol = pos;
+            while (true) {
+                while (eol < lim && array[eol] != '\n') {
+                    eol++;
+                }
+                if (eol < lim) {
+                    break;
+                }
+                final int scanned = eol - pos;
+                compact();
+                if (lim == array.length) {
+                    throw new IOException("Multipart header line too long");
+                }
+                if (!fill()) {
+                    throw new EOFException("Unexpected end of multipart headers");
+                }
+                eol = pos + scanned;
+            }
+            final int end = (eol > pos && array[eol - 1] == '\r') ? eol - 1 : eol;
+            final String line = new String(array, pos, end - pos, StandardCharsets.UTF_8);
+            size += eol + 1 - pos;
+            pos = eol + 1;
+            if (line.isEmpty()) {
+                return headers;
+            }
+            if (size > MAX_HEADERS_SIZE) {
+                throw new IOException("Multipart headers too large");
+            }
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    private void write(Part part, int from, int to) throws IOException {
+        if (null == part || to <= from) {
+            return;
+        }
+        spooled += part.write(array, from, to - from);
+        if (budget >= 0L && spooled > budget) {
+            throw new RequestBody.TooLargeException(spooled);
+        }
+    }
+
+    /**
+     * @return false if the body ends before the bytes
+     */
+    private boolean ensure(int bytes) throws IOException {
+        while (lim - pos < bytes) {
+            compact();
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compact() {
+        if (pos > 0) {
+            System.arraycopy(array, pos, array, 0, lim - pos);
+            lim -= pos;
+            pos = 0;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        final int n = in.read(array, lim, array.length - lim);
+        if (n == -1) {
+            return false;
+        }
+        lim += n;
+        return true;
+    }
+
+    /**
+     * @return the last path component of a file name, or <code>null</code> if nothing usable is left
+     */
+    static String fileName(String raw) {
+        if (null == raw) {
+            return null;
+        }
+        // A Windows client may send the full path, 'C:\dir\name'
+        final int slash = Math.max(Math.max(raw.lastIndexOf('/'), raw.lastIndexOf('\\')), raw.lastIndexOf(':'));
+        final StringBuilder name = new StringBuilder(raw.length() - slash - 1);
+        for (int i = slash + 1; i < raw.length(); i++) {
+            final char c = raw.charAt(i);
+            if (c >= 0x20 && c != 0x7f) {
+                name.append(c);
+            }
+        }
+        final String value = name.toString().trim();
+        if (value.isEmpty() || ".".equals(value) || "..".equals(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    /**
+     * @return the parameter of a header value, e.g. 'name' of <code>form-data; name="file"</code>
+     */
+    static String parameter(String value, String name) {
+        final int length = value.length();
+        int i = value.indexOf(';');
+        while (i >= 0 && i < length) {
+            int start = i + 1;
+            while (start < length && value.charAt(start) == ' ') {
+                start++;
+            }
+            final int eq = value.indexOf('=', start);
+            if (eq < 0) {
+                return null;
+            }
+            final String key = value.substring(start, eq).trim();
+            int v = eq + 1;
+            while (v < length && value.charAt(v) == ' ') {
+                v++;
+            }
+            final String found;
+            if (v < length && value.charAt(v) == '"') {
+                final StringBuilder quoted = new StringBuilder();
+                int j = v + 1;
+                while (j < length && value.charAt(j) != '"') {
+                    if (value.charAt(j) == '\\' && j + 1 < length) {
+                        j++;
+                    }
+                    quoted.append(value.charAt(j));
+                    j++;
+                }
+                found = quoted.toString();
+                i = value.indexOf(';', j);
+            } else {
+                i = value.indexOf(';', v);
+                found = value.substring(v, (i < 0) ? length : i).trim();
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Handles a complete part.
+     */
+    @FunctionalInterface
+    public interface PartHandler {
+        void handle(Part part) throws IOException;
+    }
+
+    /**
+     * A part of the body, kept in memory or spooled to a temporary file.
+     */
+    public final class Part implements Closeable {
+        private final Headers headers;
+        private final String name;
+        private final String fileName;
+        private final boolean isFile;
+        private byte[] data = new byte[256];
+        private Path file = null;
+        private OutputStream out = null;
+        private long size = 0L;
+        private boolean moved = false;
+
+        Part(Headers headers) {
+            this.headers = headers;
+            final String disposition = headers.getFirst(HEADER_CONTENT_DISPOSITION);
+            this.name = (null != disposition) ? parameter(disposition, "name") : null;
+            final String raw = (null != disposition) ? parameter(disposition, "filename") : null;
+            this.isFile = null != raw;
+            this.fileName = fileName(raw);
+        }
+
+        /**
+         * @return bytes written to the file
+         */
+        long write(byte[] b, int off, int len) throws IOException {
+            long written = 0L;
+            if (null == file && size + len > threshold) {
+                file = (null != directory)
+                        ? Files.createTempFile(directory, "upload-", ".part")
+                        : Files.createTempFile("upload-", ".part");
+                out = Files.newOutputStream(file);
+                out.write(data, 0, (int) size);
+                written = size;
+                data = null;
+            }
+            if (null != file) {
+                out.write(b, off, len);
+                written += len;
+            } else {
+                if (size + len > data.length) {
+                    data = Arrays.copyOf(data, (int) Math.min(Math.max(data.length * 2, size + len), threshold));
+                }
+                System.arraycopy(b, off, data, (int) size, len);
+            }
+            size += len;
+            return written;
+        }
+
+        void complete() throws IOException {
+            if (null != out) {
+                out.close();
+                out = null;
+            }
+        }
+
+        public Headers getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return the name of the field or <code>null</code>
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The last component of the name sent by the client, without directories
+         * nor control chars. Still not trusted, check the path it is resolved to.
+         *
+         * @return the name of the uploaded file or <code>null</code> if the part is a field
+         *         or the name is not usable
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isFile() {
+            return isFile;
+        }
+
+        /**
+         * @return the content type of the part or <code>null</code>
+         */
+        public String getContentType() {
+            return headers.getFirst(HEADER_CONTENT_TYPE);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isInMemory() {
+            return null == file;
+        }
+
+        /**
+         * @return the temporary file or <code>null</code> if the part is in memory
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return (null == file) ? new ByteArrayInputStream(data, 0, (int) size) : Files.newInputStream(file);
+        }
+
+        public byte[] getBytes() throws IOException {
+            return (null == file) ? Arrays.copyOf(data, (int) size) : Files.readAllBytes(file);
+        }
+
+        public String getString(Charset charset) throws IOException {
+            return (null == file) ? new String(data, 0, (int) size, charset) : new String(getBytes(), charset);
+        }
+
+        /**
+         * Keep the part in a file, a spooled part is moved without a copy.
+         */
+        public void moveTo(Path target) throws IOException {
+            if (null == file) {
+                Files.write(target, getBytes());
+            } else {
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                moved = true;
+            }
+        }
+
+        /**
+         * Delete the temporary file unless moved.
+         */
+        @Override
+        public void close() throws IOException {
+            complete();
+            if (null != file && !moved) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Part(%s%s) %d bytes%s", name,
+                    (null != fileName) ? ", " + fileName : "", size, (null != file) ? " at " + file : "");
+        }
+    }
+}
@@ -1,15 +1,12 @@
 package net.tiny.ws;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
-import java.net.URI;
-import java.net.URLDecoder;
-import java.util.ArrayList;
+import java.util.AbstractMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpExchange;
@@ -25,9 +22,14 @@ import com.sun.net.httpserver.HttpExchange;
  *  }
  * </code>
  *
+ * The query is parsed by the first access of the map, a handler not reading it costs no parsing.
+ * An url encoded form is parsed while the body is streamed, a body of another type is left
+ * to the handler.
  */
 public class ParameterFilter extends Filter implements Constants {
 
+    private static final String MIME_TYPE_FORM = "application/x-www-form-urlencoded";
+
     @Override
     public String description() {
         return "Parses the requested URI for parameters";
@@ -37,10 +39,18 @@ public class ParameterFilter extends Filter implements Constants {
     public void doFilter(HttpExchange he, Chain chain) throws IOException {
         switch (HTTP_METHOD.valueOf(he.getRequestMethod())) {
         case GET:
-            parseGetParameters(he);
+            he.setAttribute(HTTP_PARAMETER_ATTRIBUTE, new Parameters(he.getRequestURI().getRawQuery(), null));
             break;
         case POST:
-            parsePostParameters(he);
+            final Map<String, List<String>> form;
+            try {
+                form = parsePostParameters(he);
+            } catch (RequestBody.TooLargeException ex) {
+                RequestBody.refuse(he);
+                he.close();
+                return;
+            }
+            he.setAttribute(HTTP_PARAMETER_ATTRIBUTE, new Parameters(he.getRequestURI().getRawQuery(), form));
             break;
         default:
             break;
@@ -48,55 +58,82 @@ public class ParameterFilter extends Filter implements Constants {
         chain.doFilter(he);
     }
 
-    private void parseGetParameters(HttpExchange exchange) throws UnsupportedEncodingException {
-        Map<String, Object> parameters = new HashMap<String, Object>();
-        URI requestedUri = exchange.getRequestURI();
-        String query = requestedUri.getRawQuery();
-        parseQuery(query, parameters);
-        exchange.setAttribute(HTTP_PARAMETER_ATTRIBUTE, parameters);
-    }
-
-    @SuppressWarnings("unchecked")
-    private void parsePostParameters(HttpExchange exchange) throws IOException {
-        Map<String, Object> parameters = (Map<String, Object>) exchange.getAttribute(HTTP_PARAMETER_ATTRIBUTE);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
-        String query = reader.readLine();
-        parseQuery(query, parameters);
+    /**
+     * @return the parameters of an url encoded form or <code>null</code> if the body is another type
+     */
+    private Map<String, List<String>> parsePostParameters(HttpExchange exchange) throws IOException {
+        final String type = exchange.getRequestHeaders().getFirst(HEADER_CONTENT_TYPE);
+        if (null != type && !type.regionMatches(true, 0, MIME_TYPE_FORM, 0, MIME_TYPE_FORM.length())) {
+            return null;
+        }
+        final Map<String, List<String>> form = new LinkedHashMap<>();
+        try (RequestBody body = RequestBody.of(exchange)) {
+            body.readForm(form);
+        }
+        return form;
     }
 
-    @SuppressWarnings("unchecked")
-    private void parseQuery(String query, Map<String, Object> parameters) throws UnsupportedEncodingException {
-        if (query != null) {
-            String pairs[] = query.split("[&]");
+    /**
+     * The parameters of the query and form, parsed by the first access.
+     * A value is a <code>String</code>, or a <code>List</code> of the values of a repeated name.
+     */
+    static final class Parameters extends AbstractMap<String, Object> {
+        private final String query;
+        private final Map<String, List<String>> form;
+        private Map<String, Object> map = null;
 
-            for (String pair : pairs) {
-                String param[] = pair.split("[=]");
-
-                String key = null;
-                String value = null;
-                if (param.length > 0) {
-                    key = URLDecoder.decode(param[0], "UTF-8");
-                }
-
-                if (param.length > 1) {
-                    value = URLDecoder.decode(param[1], "UTF-8");
-                }
+        Parameters(String query, Map<String, List<String>> form) {
+            this.query = query;
+            this.form = form;
+        }
 
-                if (parameters.containsKey(key)) {
-                    Object obj = parameters.get(key);
-                    if (obj instanceof List<?>) {
-                        List<String> values = (List<String>) obj;
-                        values.add(value);
-                    } else if (obj instanceof String) {
-                        List<String> values = new ArrayList<String>();
-                        values.add((String) obj);
-                        values.add(value);
-                        parameters.put(key, values);
+        private Map<String, Object> map() {
+            if (null == map) {
+                final Map<String, List<String>> parsed = new LinkedHashMap<>();
+                RequestView.parse(query, parsed);
+                if (null != form) {
+                    for (Map.Entry<String, List<String>> entry : form.entrySet()) {
+                        final List<String> values = parsed.get(entry.getKey());
+                        if (null == values) {
+                            parsed.put(entry.getKey(), entry.getValue());
+                        } else {
+                            values.addAll(entry.getValue());
+                        }
                     }
-                } else {
-                    parameters.put(key, value);
                 }
+                final Map<String, Object> values = new HashMap<>();
+                for (Map.Entry<String, List<String>> entry : parsed.entrySet()) {
+                    final List<String> list = entry.getValue();
+                    values.put(entry.getKey(), (list.size() == 1) ? list.get(0) : list);
+                }
+                map = values;
             }
+            return map;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return map().entrySet();
+        }
+
+        @Override
+        public Object get(Object key) {
+            return map().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map().containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            return map().put(key, value);
+        }
+
+        @Override
+        public int size() {
+            return map().size();
         }
     }
-}
\ No newline at end of file
+}
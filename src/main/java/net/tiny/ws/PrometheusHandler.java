@@ -0,0 +1,392 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import net.tiny.cache.DiskCache;
+import net.tiny.cache.MemoryCache;
+import net.tiny.service.ThreadPoolExeutorWrapper;
+import net.tiny.ws.cache.BarakbCache;
+
+/**
+ * Exposes the metrics of the embedded server in the Prometheus text format.
+ *
+ * The route metrics need <code>EmbeddedServer.Builder.metrics(true)</code>. The executors,
+ * caches and access logger are registered by name. A scrape renders the page into a
+ * pre-sized buffer at most once per interval, the scrapes in between are served the
+ * rendered bytes.
+ *
+ * @see https://prometheus.io/docs/instrumenting/exposition_formats/
+ */
+public class PrometheusHandler extends BaseWebService implements ControllerService {
+
+    static final String MIME_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = {50d, 90d, 99d, 99.9d};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+    private static final double NANOS = 1000000000d;
+
+    private EmbeddedServer server;
+    private final List<Pool> executors = new ArrayList<>();
+    private final List<Probe> caches = new ArrayList<>();
+    private AccessLogger accessLogger = null;
+    private long interval = 1000L;
+
+    private volatile Page page = null;
+    private final StringBuilder buffer = new StringBuilder(4096);
+
+    private static final class Page {
+        final byte[] body;
+        final long expires;
+
+        Page(byte[] body, long expires) {
+            this.body = body;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Pool {
+        final String name;
+        final ExecutorService executor;
+
+        Pool(String name, ExecutorService executor) {
+            this.name = name;
+            this.executor = executor;
+        }
+    }
+
+    private static final class Probe {
+        final String name;
+        final LongSupplier entries;
+        final LongSupplier hits;
+        final LongSupplier misses;
+        final LongSupplier bytes;
+
+        Probe(String name, LongSupplier entries, LongSupplier hits, LongSupplier misses, LongSupplier bytes) {
+            this.name = name;
+            this.entries = entries;
+            this.hits = hits;
+            this.misses = misses;
+            this.bytes = bytes;
+        }
+    }
+
+    @Override
+    public void setEmbeddedServer(Controllable controller) {
+        if (controller instanceof EmbeddedServer) {
+            this.server = (EmbeddedServer) controller;
+        }
+    }
+
+    /**
+     * @param millis min time between two renderings, 0 renders each scrape
+     */
+    public WebServiceHandler setInterval(long millis) {
+        this.interval = millis;
+        return this;
+    }
+
+    /**
+     * @param name label of the executor
+     * @param executor a <code>ThreadPoolExecutor</code> or <code>ThreadPoolExeutorWrapper</code>
+     */
+    public synchronized WebServiceHandler addExecutor(String name, ExecutorService executor) {
+        executors.add(new Pool(name, executor));
+        return this;
+    }
+
+    public synchronized WebServiceHandler addCache(String name, MemoryCache<?, ?> cache) {
+        caches.add(new Probe(name, cache::size, cache::getHits, cache::getMisses, cache::capacity));
+        return this;
+    }
+
+    public synchronized WebServiceHandler addCache(String name, DiskCache<?, ?> cache) {
+        caches.add(new Probe(name, cache::size, cache::getHits, cache::getMisses, cache::capacity));
+        return this;
+    }
+
+    public synchronized WebServiceHandler addCache(String name, BarakbCache<?, ?> cache) {
+        caches.add(new Probe(name, cache::size, cache::getHits, cache::getMisses, null));
+        return this;
+    }
+
+    public WebServiceHandler setAccessLogger(AccessLogger logger) {
+        this.accessLogger = logger;
+        return this;
+    }
+
+    @Override
+    protected boolean doGetOnly() {
+        return true;
+    }
+
+    @Override
+    protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+        final byte[] body = render();
+        he.getResponseHeaders().set(HEADER_CONTENT_TYPE, MIME_TYPE_PROMETHEUS);
+        he.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+        he.getResponseBody().write(body);
+    }
+
+    /**
+     * @return the page rendered in the last interval, or a new one
+     */
+    byte[] render() {
+        Page p = page;
+        final long now = System.currentTimeMillis();
+        if (null != p && now < p.expires) {
+            return p.body;
+        }
+        synchronized (this) {
+            p = page;
+            if (null != p && now < p.expires) {
+                return p.body;
+            }
+            final StringBuilder out = buffer;
+            out.setLength(0);
+            write(out);
+            // The buffer keeps the capacity of the largest page
+            p = new Page(out.toString().getBytes(StandardCharsets.UTF_8), now + interval);
+            page = p;
+            return p.body;
+        }
+    }
+
+    private void write(StringBuilder out) {
+        final List<Pool> pools = new ArrayList<>();
+        if (null != server) {
+            writeServer(out);
+            final MetricsFilter metrics = server.getMetrics();
+            if (null != metrics) {
+                writeRoutes(out, metrics);
+            }
+            final ExecutorService executor = server.getExecutor();
+            if (null != executor && executors.stream().noneMatch(e -> e.executor == executor)) {
+                pools.add(new Pool("server", executor));
+            }
+        }
+        pools.addAll(executors);
+        writeExecutors(out, pools);
+        writeCaches(out);
+        if (null != accessLogger) {
+            type(out, "access_log_dropped_total", "counter", "Access log lines dropped by a full buffer");
+            sample(out, "access_log_dropped_total", null, null, accessLogger.getDropped());
+            type(out, "access_log_pending", "gauge", "Access log lines waiting for the writer");
+            sample(out, "access_log_pending", null, null, accessLogger.getPending());
+        }
+    }
+
+    private void writeServer(StringBuilder out) {
+        final InflightTracker inflight = server.getInflight();
+        type(out, "http_server_active_requests", "gauge", "Exchanges being processed");
+        sample(out, "http_server_active_requests", null, null, inflight.getActive());
+        type(out, "http_server_completed_total", "counter", "Exchanges completed");
+        sample(out, "http_server_completed_total", null, null, inflight.getCompleted());
+        type(out, "http_server_refused_total", "counter", "Exchanges refused while draining");
+        sample(out, "http_server_refused_total", null, null, inflight.getRefused());
+
+        final AdmissionController admission = server.getAdmission();
+        if (null != admission) {
+            type(out, "http_server_queued_requests", "gauge", "Exchanges waiting for a thread");
+            sample(out, "http_server_queued_requests", null, null, admission.getQueued());
+            type(out, "http_server_admitted_total", "counter", "Exchanges admitted");
+            sample(out, "http_server_admitted_total", null, null, admission.getAdmitted());
+            type(out, "http_server_shed_total", "counter", "Exchanges shed with 503");
+            sample(out, "http_server_shed_total", "reason", "queue", admission.getShedByQueue());
+            sample(out, "http_server_shed_total", "reason", "wait", admission.getShedByWait());
+            sample(out, "http_server_shed_total", "reason", "reject", admission.getShedByReject());
+        }
+
+        final HandshakeMonitor handshakes = server.getHandshakes();
+        if (null != handshakes) {
+            type(out, "tls_handshakes_total", "counter", "TLS handshakes");
+            sample(out, "tls_handshakes_total", "type", "full", handshakes.getFullHandshakes());
+            sample(out, "tls_handshakes_total", "type", "resumed", handshakes.getResumedHandshakes());
+            sample(out, "tls_handshakes_total", "type", "failed", handshakes.getFailedHandshakes());
+        }
+    }
+
+    private void writeRoutes(StringBuilder out, MetricsFilter metrics) {
+        final Map<String, MetricsFilter.Endpoint> endpoints = metrics.getEndpoints();
+        type(out, "http_server_requests_seconds", "summary", "Latency of the exchanges");
+        for (MetricsFilter.Endpoint endpoint : endpoints.values()) {
+            final LatencyHistogram latency = endpoint.getLatency();
+            final long[] values = latency.getValuesAtPercentiles(QUANTILES);
+            for (int i = 0; i < values.length; i++) {
+                out.append("http_server_requests_seconds{path=\"");
+                escape(out, endpoint.getPath());
+                out.append("\",quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ")
+                   .append(values[i] / NANOS).append('\n');
+            }
+            sample(out, "http_server_requests_seconds_sum", "path", endpoint.getPath(), latency.getSum() / NANOS);
+            sample(out, "http_server_requests_seconds_count", "path", endpoint.getPath(), latency.getCount());
+        }
+        type(out, "http_server_phase_seconds", "summary", "Time of the exchanges by phase");
+        for (MetricsFilter.Endpoint endpoint : endpoints.values()) {
+            for (Map.Entry<String, LatencyHistogram> phase : endpoint.getPhases().entrySet()) {
+                final LatencyHistogram latency = phase.getValue();
+                final long[] values = latency.getValuesAtPercentiles(QUANTILES);
+                for (int i = 0; i < values.length; i++) {
+                    phaseLabels(out, "http_server_phase_seconds", endpoint.getPath(), phase.getKey(), QUANTILE_LABELS[i]);
+                    out.append(values[i] / NANOS).append('\n');
+                }
+                phaseLabels(out, "http_server_phase_seconds_sum", endpoint.getPath(), phase.getKey(), null);
+                out.append(latency.getSum() / NANOS).append('\n');
+                phaseLabels(out, "http_server_phase_seconds_count", endpoint.getPath(), phase.getKey(), null);
+                out.append(latency.getCount()).append('\n');
+            }
+        }
+        type(out, "http_server_requests_seconds_max", "gauge", "Max latency of the exchanges");
+        for (MetricsFilter.Endpoint endpoint : endpoints.values()) {
+            sample(out, "http_server_requests_seconds_max", "path", endpoint.getPath(),
+                    endpoint.getLatency().getMax() / NANOS);
+        }
+        type(out, "http_server_responses_total", "counter", "Responses by status code");
+        for (MetricsFilter.Endpoint endpoint : endpoints.values()) {
+            for (Map.Entry<Integer, Long> code : endpoint.getStatusCodes().entrySet()) {
+                out.append("http_server_responses_total{path=\"");
+                escape(out, endpoint.getPath());
+                out.append("\",code=\"").append(code.getKey().intValue()).append("\"} ")
+                   .append(code.getValue().longValue()).append('\n');
+            }
+        }
+        type(out, "http_server_request_bytes_total", "counter", "Request body bytes");
+        for (MetricsFilter.Endpoint endpoint : endpoints.values()) {
+            sample(out, "http_server_request_bytes_total", "path", endpoint.getPath(), endpoint.getBytesIn());
+        }
+        type(out, "http_server_response_bytes_total", "counter", "Response body bytes");
+        for (MetricsFilter.Endpoint endpoint : endpoints.values()) {
+            sample(out, "http_server_response_bytes_total", "path", endpoint.getPath(), endpoint.getBytesOut());
+        }
+    }
+
+    private void writeExecutors(StringBuilder out, List<Pool> pools) {
+        final List<String> names = new ArrayList<>();
+        final List<ThreadPoolExecutor> list = new ArrayList<>();
+        for (Pool pool : pools) {
+            if (pool.executor instanceof ThreadPoolExecutor) {
+                list.add((ThreadPoolExecutor) pool.executor);
+            } else if (pool.executor instanceof ThreadPoolExeutorWrapper) {
+                list.add(((ThreadPoolExeutorWrapper) pool.executor).getDelgate());
+            } else {
+                // Virtual threads or an unknown executor
+                continue;
+            }
+            names.add(pool.name);
+        }
+        if (list.isEmpty()) {
+            return;
+        }
+        type(out, "executor_active_threads", "gauge", "Threads running a task");
+        for (int i = 0; i < list.size(); i++) {
+            sample(out, "executor_active_threads", "name", names.get(i), list.get(i).getActiveCount());
+        }
+        type(out, "executor_pool_threads", "gauge", "Threads of the pool");
+        for (int i = 0; i < list.size(); i++) {
+            sample(out, "executor_pool_threads", "name", names.get(i), list.get(i).getPoolSize());
+        }
+        type(out, "executor_largest_pool_threads", "gauge", "Largest number of threads of the pool");
+        for (int i = 0; i < list.size(); i++) {
+            sample(out, "executor_largest_pool_threads", "name", names.get(i), list.get(i).getLargestPoolSize());
+        }
+        type(out, "executor_queued_tasks", "gauge", "Tasks waiting for a thread");
+        for (int i = 0; i < list.size(); i++) {
+            sample(out, "executor_queued_tasks", "name", names.get(i), list.get(i).getQueue().size());
+        }
+        type(out, "executor_completed_tasks_total", "counter", "Tasks completed");
+        for (int i = 0; i < list.size(); i++) {
+            sample(out, "executor_completed_tasks_total", "name", names.get(i), list.get(i).getCompletedTaskCount());
+        }
+    }
+
+    private void writeCaches(StringBuilder out) {
+        if (caches.isEmpty()) {
+            return;
+        }
+        type(out, "cache_entries", "gauge", "Entries of the cache");
+        for (Probe probe : caches) {
+            sample(out, "cache_entries", "name", probe.name, probe.entries.getAsLong());
+        }
+        type(out, "cache_hits_total", "counter", "Gets served by the cache");
+        for (Probe probe : caches) {
+            sample(out, "cache_hits_total", "name", probe.name, probe.hits.getAsLong());
+        }
+        type(out, "cache_misses_total", "counter", "Gets not served by the cache");
+        for (Probe probe : caches) {
+            sample(out, "cache_misses_total", "name", probe.name, probe.misses.getAsLong());
+        }
+        if (caches.stream().allMatch(p -> null == p.bytes)) {
+            return;
+        }
+        type(out, "cache_bytes", "gauge", "Bytes held by the cache");
+        for (Probe probe : caches) {
+            if (null != probe.bytes) {
+                sample(out, "cache_bytes", "name", probe.name, probe.bytes.getAsLong());
+            }
+        }
+    }
+
+    private static void phaseLabels(StringBuilder out, String name, String path, String phase, String quantile) {
+        out.append(name).append("{path=\"");
+        escape(out, path);
+        out.append("\",phase=\"");
+        escape(out, phase);
+        if (null != quantile) {
+            out.append("\",quantile=\"").append(quantile);
+        }
+        out.append("\"} ");
+    }
+
+    private static void type(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String value, long sample) {
+        labels(out, name, label, value);
+        out.append(sample).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String value, double sample) {
+        labels(out, name, label, value);
+        out.append(sample).append('\n');
+    }
+
+    private static void labels(StringBuilder out, String name, String label, String value) {
+        out.append(name);
+        if (null != label) {
+            out.append('{').append(label).append("=\"");
+            escape(out, value);
+            out.append("\"}");
+        }
+        out.append(' ');
+    }
+
+    static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            default:
+                out.append(c);
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package net.tiny.ws;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The body of a request, read from the exchange stream without an intermediate copy.
+ *
+ * A body fitting a pooled buffer is read into it and the buffer is given back by
+ * {@link #close()}. A larger body is read into a chain of pooled buffers copied once
+ * at the end, the 'Content-Length' of the client never sizes an allocation. A form is
+ * parsed while it is streamed, one pair at a time.
+ *
+ * <code>
+ *  try (RequestBody body = RequestBody.of(he)) {
+ *      ByteBuffer buffer = body.getByteBuffer();
+ *      ...
+ *  }
+ * </code>
+ *
+ * The size of a body is limited by {@link #limit(long)}, a filter answering
+ * '413 Request Entity Too Large' before the body is read if the 'Content-Length'
+ * exceeds the limit, and throwing a {@link TooLargeException} while a chunked body
+ * is read beyond it.
+ */
+public final class RequestBody implements Closeable, Constants {
+
+    private final InputStream in;
+    private final long length;
+    private final BufferPool pool;
+    private ByteBuffer pooled = null;
+
+    RequestBody(InputStream in, long length, BufferPool pool) {
+        this.in = in;
+        this.length = length;
+        this.pool = pool;
+    }
+
+    public static RequestBody of(HttpExchange he) {
+        return new RequestBody(he.getRequestBody(), contentLength(he), BufferPool.DEFAULT);
+    }
+
+    /**
+     * @return the 'Content-Length' of the request or -1 if unknown
+     */
+    static long contentLength(HttpExchange he) {
+        final String value = he.getRequestHeaders().getFirst(HEADER_CONTENT_LENGTH);
+        if (null == value) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * @return the 'Content-Length' or -1 if the body is chunked
+     */
+    public long getContentLength() {
+        return length;
+    }
+
+    /**
+     * @return the stream of the body, read as it comes
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * Read the whole body. Nothing is allocated from the 'Content-Length' announced by the
+     * client, the buffers are only taken as the bytes come.
+     *
+     * @return the body ready to get, valid until {@link #close()}
+     */
+    public ByteBuffer getByteBuffer() throws IOException {
+        final ByteBuffer first = pool.acquire();
+        pooled = first;
+        if (fill(first) || (length >= 0L && first.position() >= length)) {
+            first.flip();
+            return first;
+        }
+        // A body larger than a buffer, read into a chain copied once at the end
+        final List<ByteBuffer> chain = new ArrayList<>();
+        chain.add(first);
+        pooled = null;
+        long total = first.position();
+        try {
+            boolean eof = false;
+            while (!eof) {
+                final ByteBuffer next = pool.acquire();
+                chain.add(next);
+                eof = fill(next);
+                total += next.position();
+                if (total > Integer.MAX_VALUE - 8) {
+                    throw new TooLargeException(total);
+                }
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) total);
+            for (ByteBuffer chunk : chain) {
+                chunk.flip();
+                buffer.put(chunk);
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            release(chain);
+        }
+    }
+
+    /**
+     * @return a copy of the body
+     */
+    public byte[] toByteArray() throws IOException {
+        final ByteBuffer buffer = getByteBuffer();
+        if (buffer != pooled && buffer.arrayOffset() == 0 && buffer.remaining() == buffer.capacity()) {
+            // Assembled from the chain, already its own array
+            return buffer.array();
+        }
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public String getString(Charset charset) throws IOException {
+        final ByteBuffer buffer = getByteBuffer();
+        return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), charset);
+    }
+
+    /**
+     * Parse an url encoded form while the body is streamed.
+     * Only the pair being read is held, the values are decoded as UTF-8.
+     */
+    public void readForm(Map<String, List<String>> map) throws IOException {
+        final ByteBuffer buffer = pool.acquire();
+        final byte[] array = buffer.array();
+        final StringBuilder pair = new StringBuilder(64);
+        try {
+            int n;
+            while ((n = in.read(array, 0, array.length)) != -1) {
+                for (int i = 0; i < n; i++) {
+                    final int b = array[i] & 0xff;
+                    if (b == '&') {
+                        RequestView.parse(pair, map);
+                        pair.setLength(0);
+                    } else if (b < 0x80) {
+                        pair.append((char) b);
+                    } else {
+                        // A raw byte not encoded by the client, kept for the UTF-8 decoder
+                        pair.append('%').append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+                    }
+                }
+            }
+            RequestView.parse(pair, map);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Read until the buffer is full or the end of the body.
+     *
+     * @return true if the end is reached
+     */
+    private boolean fill(ByteBuffer buffer) throws IOException {
+        final byte[] array = buffer.array();
+        while (buffer.hasRemaining()) {
+            final int n = in.read(array, buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (n == -1) {
+                return true;
+            }
+            buffer.position(buffer.position() + n);
+        }
+        return false;
+    }
+
+    private void release(List<ByteBuffer> chain) {
+        for (ByteBuffer chunk : chain) {
+            pool.release(chunk);
+        }
+    }
+
+    /**
+     * Give back the pooled buffer, a buffer returned by {@link #getByteBuffer()} is no longer valid.
+     */
+    @Override
+    public void close() {
+        if (null != pooled) {
+            pool.release(pooled);
+            pooled = null;
+        }
+    }
+
+    /**
+     * @param max the max size of a request body in bytes
+     * @return the filter limiting the body of a route
+     */
+    public static Filter limit(long max) {
+        return new LimitFilter(max);
+    }
+
+    /**
+     * Answer '413 Request Entity Too Large' and close the connection.
+     *
+     * @return false if the response was already sent
+     */
+    static boolean refuse(HttpExchange he) throws IOException {
+        if (he.getResponseCode() != -1) {
+            return false;
+        }
+        he.getResponseHeaders().set(HEADER_CONNECTION, "close");
+        he.sendResponseHeaders(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, NO_RESPONSE_LENGTH);
+        return true;
+    }
+
+    /**
+     * A body read beyond the limit.
+     */
+    public static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(long size) {
+            super(String.format("Request body too large : %d", size));
+        }
+    }
+
+    static final class LimitFilter extends Filter {
+        private final long max;
+
+        LimitFilter(long max) {
+            this.max = max;
+        }
+
+        @Override
+        public void doFilter(HttpExchange he, Chain chain) throws IOException {
+            final long length = contentLength(he);
+            if (length > max) {
+                // Refused before the body is read
+                refuse(he);
+                he.close();
+                return;
+            }
+            if (length < 0L) {
+                he.setStreams(new LimitedInputStream(he.getRequestBody(), max), null);
+            }
+            chain.doFilter(he);
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        @Override
+        public String description() {
+            return "Limits the size of a request body to " + max + " bytes";
+        }
+    }
+
+    /**
+     * Counts the bytes of a chunked body.
+     */
+    static final class LimitedInputStream extends FilterInputStream {
+        private final long max;
+        private long count = 0L;
+
+        LimitedInputStream(InputStream in, long max) {
+            super(in);
+            this.max = max;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) throws TooLargeException {
+            count += n;
+            if (count > max) {
+                throw new TooLargeException(count);
+            }
+        }
+    }
+}
@@ -1,13 +1,7 @@
 package net.tiny.ws;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URI;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -47,36 +41,60 @@ public final class RequestHelper {
     private static final String REGEX_FILE_REQUEST = "/?(\\w+/)*(\\w+.\\w+)$";
     private static final Pattern FILE_REQUEST_PATTERN = Pattern.compile(REGEX_FILE_REQUEST);
 
-    private static final String REGEX_COOKIE_NAME_VALUE = "^(\\w+)=(.*)$";
-    private static final Pattern COOKIE_PATTERN = Pattern.compile(REGEX_COOKIE_NAME_VALUE);
-
     private final HttpExchange httpExchange;
-    private final String requestPath;
-    private final String requestMethod;
-    private final String requestURI;
-    private final String referer;
+    private final RequestView view;
+    private Router.Match route;
+    private String requestPath;
     private String uriParameters;
+    private Map<String, List<String>> parameters;
 
-
+    /**
+     * Nothing is parsed here, the request is read when asked.
+     */
     public RequestHelper(HttpExchange he) {
-        httpExchange  = he;
-        requestPath   = httpExchange.getHttpContext().getPath();
-        requestMethod = httpExchange.getRequestMethod();
-        referer = (String) httpExchange.getRequestHeaders().getFirst("Referer");
-        requestURI = httpExchange.getRequestURI().toString();
-        setURIParameters(requestURI);
+        httpExchange = he;
+        view = RequestView.of(he);
+    }
+
+    /**
+     * @return the lazy view of the request
+     */
+    public RequestView getView() {
+        return view;
     }
 
     public String getMethod() {
-        return requestMethod;
+        return httpExchange.getRequestMethod();
     }
 
     public String getURI() {
-        return requestURI;
+        return httpExchange.getRequestURI().toString();
     }
 
     public String getContextPath() {
-        return httpExchange.getHttpContext().getPath();
+        if (null == requestPath) {
+            final Router.Match match = getRoute();
+            requestPath = (null != match) ? match.getPath() : httpExchange.getHttpContext().getPath();
+        }
+        return requestPath;
+    }
+
+    private Router.Match getRoute() {
+        if (null == route) {
+            route = Router.route(httpExchange);
+        }
+        return route;
+    }
+
+    /**
+     * Path parameter of a routed handler
+     * e.g path "/api/{id}" uri "/api/123" returns "123" for "id"
+     * @param name
+     * @return value of the path parameter or <code>null</code>
+     */
+    public String getPathParameter(String name) {
+        final Router.Match match = getRoute();
+        return (null != match) ? match.getParameter(name) : null;
     }
 
     public Headers getHeaders() {
@@ -84,7 +102,7 @@ public final class RequestHelper {
     }
 
     public String getReferer() {
-        return referer;
+        return getHeaders().getFirst("Referer");
     }
 
     public HttpPrincipal getPrincipal() {
@@ -111,24 +129,53 @@ public final class RequestHelper {
     }
 
     /**
-     * @deprecated
+     * Revalidation by the entity tag, by the modified date if the request has no 'If-None-Match'.
+     * @param file
+     * @param etag the entity tag of the content or <code>null</code> if not known
+     * @return true if the content of the client is still valid
      */
-    public String getIfMatch() {
-        return getHeaders().getFirst("If-Match");
+    public boolean isNotModified(File file, String etag) {
+        final String match = getIfNoneMatch();
+        if (null == match) {
+            return isNotModified(file);
+        }
+        return null != etag && matchETag(match, etag);
+    }
+
+    /**
+     * Weak comparison of an 'If-None-Match' header with an entity tag.
+     * @param header e.g. <code>W/"a", "b"</code> or <code>*</code>
+     * @param etag
+     * @return true if one of the tags matches
+     */
+    public static boolean matchETag(String header, String etag) {
+        final String opaque = opaqueTag(etag);
+        for (String tag : header.split(",")) {
+            tag = tag.trim();
+            if ("*".equals(tag) || opaqueTag(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
     }
 
     /**
      * @deprecated
      */
+    public String getIfMatch() {
+        return getHeaders().getFirst("If-Match");
+    }
+
     public String getIfNoneMatch() {
         return getHeaders().getFirst("If-None-Match");
     }
 
     public boolean hasParameters() {
-        if ((uriParameters == null) || (uriParameters.isEmpty())) {
-            return false;
-        }
-        return true;
+        return !uriParameters().isEmpty();
     }
 
     /**
@@ -139,12 +186,9 @@ public final class RequestHelper {
      * @return URI parameter
      */
     public String getParameter(int index) {
-        if ((uriParameters == null) || (uriParameters.length() == 0)) {
-            return "";
-        }
         // "foo/fie/bar" --> "foo","fie","bar"
-        String[] items = uriParameters.split("/");
-        return (index > items.length) ? "" : items[ index ];
+        final String item = RequestView.segment(uriParameters(), index);
+        return (null != item) ? item : "";
     }
 
     /**
@@ -154,26 +198,34 @@ public final class RequestHelper {
      * @return Map of path parameters
      */
     public Map<String, List<String>> getParameters() {
-        return getURIParameters(httpExchange.getRequestURI());
+        if (null == parameters) {
+            // Split on ';' as well as '&', unlike the view
+            final Map<String, List<String>> map = new LinkedHashMap<>();
+            RequestView.parse(view.getRawQuery(), map, true);
+            parameters = map;
+        }
+        return parameters;
     }
 
     public boolean isFileRequest() {
-        Matcher matcher = FILE_REQUEST_PATTERN.matcher( uriParameters );
+        Matcher matcher = FILE_REQUEST_PATTERN.matcher( uriParameters() );
         return matcher.matches();
     }
 
     public String getRequestedPath() {
         if (isFileRequest()) {
-            int i = uriParameters.lastIndexOf("/");
-            return (i < 0) ? "" : uriParameters.substring(0,i);
+            final String path = uriParameters();
+            int i = path.lastIndexOf("/");
+            return (i < 0) ? "" : path.substring(0,i);
         }
         return null;
     }
 
     public String getRequestedFilename() {
         if (isFileRequest()) {
-           int i = uriParameters.lastIndexOf("/");
-           return (i < 0) ? uriParameters : uriParameters.substring(i+1);
+           final String path = uriParameters();
+           int i = path.lastIndexOf("/");
+           return (i < 0) ? path : path.substring(i+1);
         }
         return null;
     }
@@ -194,7 +246,7 @@ public final class RequestHelper {
     }
 
     public boolean isReferensRequest() {
-        return (referer != null);
+        return (getReferer() != null);
     }
 
     /**
@@ -204,94 +256,51 @@ public final class RequestHelper {
      * @return
      */
     public String getCookie(String key, boolean justValue) {
-        Iterator<Map.Entry<String, List<String>>> it =
-                httpExchange.getRequestHeaders().entrySet().iterator();
-        while( it.hasNext()) {
-            Map.Entry<String, List<String>> entry = it.next();
-            if(entry.getKey().toLowerCase().contentEquals("cookie")){
-                String result = getCookieFromSearchString(key, entry.getValue().get(0));
-                if(result != null) {
-                    if (justValue) {
-                        Matcher m = COOKIE_PATTERN.matcher(result);
-                        if ((m.matches()) && (m.groupCount() == 2)) {
-                            return m.group(2);
-                        } else {
-                            return result;
-                        }
-                    }
-                }
-                return result;
-            }
-        }
-        return null;
+        return justValue ? view.getCookie(key) : view.getCookiePair(key);
     }
 
-    private Map<String, List<String>> getURIParameters(final URI requestUri) {
-        final Map<String, List<String>> requestParameters = new LinkedHashMap<>();
-        final String requestQuery = requestUri.getRawQuery();
-        if (requestQuery != null) {
-            final String[] rawRequestParameters = requestQuery.split("[&;]", -1);
-            for (final String rawRequestParameter : rawRequestParameters) {
-                final String[] requestParameter = rawRequestParameter.split("=", 2);
-                final String requestParameterName = decodeUrlComponent(requestParameter[0]);
-                requestParameters.putIfAbsent(requestParameterName, new ArrayList<>());
-                final String requestParameterValue = requestParameter.length > 1 ? decodeUrlComponent(requestParameter[1]) : null;
-                requestParameters.get(requestParameterName).add(requestParameterValue);
-            }
+    private String uriParameters() {
+        if (null == uriParameters) {
+            uriParameters = parseURIParameters();
         }
-        return requestParameters;
+        return uriParameters;
     }
 
-    private String decodeUrlComponent(final String urlComponent) {
-        try {
-            return URLDecoder.decode(urlComponent, StandardCharsets.UTF_8.name());
-        } catch (final UnsupportedEncodingException ex) {
-            throw new InternalError(ex);
+    private String parseURIParameters() {
+        final String referer = getReferer();
+        final Router.Match match = getRoute();
+        if (match != null && referer == null) {
+            // already matched by the router
+            return match.getPathInfo();
         }
-    }
-
-    private String getCookieFromSearchString(String pStartKey, String pWholeCookie) {
-        if (pWholeCookie.contains(";")) {
-            String data[] = pWholeCookie.split(";");
-            for (int i = 0; i < data.length; i++) {
-                if (data[i].trim().startsWith(pStartKey)) {
-                    return data[i].trim();
-                }
-            }
-        } else if (pWholeCookie.startsWith(pStartKey)) {
-            return pWholeCookie;
-        }
-        return null;
-    }
-
-    private void setURIParameters( String uri ) {
+        final String uri = getURI();
+        final String path = getContextPath();
         if (referer == null) {
             // easy case no sub item relative path
-            int i = uri.indexOf( requestPath );
+            int i = uri.indexOf( path );
             if (i >= 0) {
-                uriParameters = (uri.length() > requestPath.length()) ? uri.substring( i + requestPath.length() + 1 ) :
-                    uri.substring( i + requestPath.length());
-            } else {
-                uriParameters = "";
-            }
-        } else {
-            Matcher m = REFERER_REQUEST_PATTERN.matcher( referer );
-            if (m.matches()) {
-                String tRelPath = m.group(2);
-                uriParameters = uri.substring(tRelPath.length());
+                return (uri.length() > path.length()) ? uri.substring( i + path.length() + 1 ) :
+                    uri.substring( i + path.length());
             }
+            return "";
+        }
+        Matcher m = REFERER_REQUEST_PATTERN.matcher( referer );
+        if (m.matches()) {
+            String tRelPath = m.group(2);
+            return uri.substring(tRelPath.length());
         }
-     }
+        return "";
+    }
 
     @Override
     public String toString() {
         String rssid = getCookie("RSSID", true);
-        return String.format("method : %s path: %s uri: %s params: %s referer: % RSSID: %s",
-                requestMethod,
-                requestPath,
-                requestURI,
-                uriParameters,
-                referer,
+        return String.format("method : %s path: %s uri: %s params: %s referer: %s RSSID: %s",
+                getMethod(),
+                getContextPath(),
+                getURI(),
+                uriParameters(),
+                getReferer(),
                 rssid);
     }
 }
@@ -0,0 +1,231 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The time an exchange spent in each phase on its request thread.
+ *
+ * <pre>
+ * queue    handed to the executor until a thread runs it
+ * filter   own time of each timed filter, without the filters and handler inside it
+ * handler  execute() of the handler
+ * close    closing the exchange, the rest of the response is flushed
+ * </pre>
+ *
+ * The server executor is wrapped by {@link #executor(Executor)}, the timeline is held by
+ * a thread local reused for each exchange of the thread. The filters of the routes are
+ * wrapped by {@link #timed(Filter)} and <code>BaseWebService</code> times its handler.
+ * An exchange run by another executor has no timeline, {@link #current()} returns
+ * <code>null</code>.
+ */
+public final class RequestPhases {
+
+    private static final ThreadLocal<RequestPhases> CURRENT = ThreadLocal.withInitial(RequestPhases::new);
+
+    /** Unknown duration */
+    public static final long NONE = -1L;
+
+    private boolean active = false;
+    private long accepted;
+    private long dequeued;
+    private long handler = NONE;
+    private long close = NONE;
+    private String[] filters = new String[8];
+    private long[] filterNanos = new long[8];
+    private int filterCount = 0;
+    /** Nanos taken by the timed phases inside the one running */
+    private long inner = 0L;
+
+    private RequestPhases() {
+    }
+
+    /**
+     * @return the timeline of the exchange run by this thread or <code>null</code>
+     */
+    public static RequestPhases current() {
+        final RequestPhases phases = CURRENT.get();
+        return phases.active ? phases : null;
+    }
+
+    /**
+     * Stamp the tasks of a server executor.
+     */
+    public static Executor executor(final Executor delegate) {
+        return task -> {
+            final long accepted = System.nanoTime();
+            delegate.execute(() -> {
+                final RequestPhases phases = CURRENT.get();
+                phases.start(accepted, System.nanoTime());
+                try {
+                    task.run();
+                } finally {
+                    phases.active = false;
+                }
+            });
+        };
+    }
+
+    /**
+     * @return the filter recording its own time
+     */
+    public static Filter timed(Filter filter) {
+        return (filter instanceof TimedFilter) ? filter : new TimedFilter(filter);
+    }
+
+    private void start(long accepted, long dequeued) {
+        this.active = true;
+        this.accepted = accepted;
+        this.dequeued = dequeued;
+        this.handler = NONE;
+        this.close = NONE;
+        this.filterCount = 0;
+        this.inner = 0L;
+    }
+
+    /**
+     * Enter a nested phase.
+     *
+     * @return the state to give back to {@link #leave(long, long)}
+     */
+    long enter() {
+        final long saved = inner;
+        inner = 0L;
+        return saved;
+    }
+
+    /**
+     * Leave a nested phase.
+     *
+     * @return the own nanos of the phase
+     */
+    long leave(long saved, long elapsed) {
+        final long own = elapsed - inner;
+        inner = saved + elapsed;
+        return own;
+    }
+
+    void filter(String name, long nanos) {
+        if (filterCount == filters.length) {
+            filters = Arrays.copyOf(filters, filterCount * 2);
+            filterNanos = Arrays.copyOf(filterNanos, filterCount * 2);
+        }
+        filters[filterCount] = name;
+        filterNanos[filterCount] = nanos;
+        filterCount++;
+    }
+
+    void handler(long execute, long close) {
+        this.handler = execute;
+        this.close = close;
+    }
+
+    /**
+     * @return nanos waited in the executor queue
+     */
+    public long getQueue() {
+        return dequeued - accepted;
+    }
+
+    /**
+     * @return own nanos of the filters finished so far
+     */
+    public long getFilters() {
+        long sum = 0L;
+        for (int i = 0; i < filterCount; i++) {
+            sum += filterNanos[i];
+        }
+        return sum;
+    }
+
+    public int getFilterCount() {
+        return filterCount;
+    }
+
+    /**
+     * @param index in order of completion, the innermost filter first
+     */
+    public String getFilterName(int index) {
+        return filters[index];
+    }
+
+    public long getFilterNanos(int index) {
+        return filterNanos[index];
+    }
+
+    /**
+     * @return nanos of the handler execute or {@link #NONE}
+     */
+    public long getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return nanos of the exchange close or {@link #NONE}
+     */
+    public long getClose() {
+        return close;
+    }
+
+    /**
+     * @return nanos since handed to the executor
+     */
+    public long getElapsed() {
+        return System.nanoTime() - accepted;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder out = new StringBuilder(64);
+        out.append("queue=").append(getQueue() / 1000L);
+        for (int i = 0; i < filterCount; i++) {
+            out.append(' ').append(filters[i]).append('=').append(filterNanos[i] / 1000L);
+        }
+        out.append(" handler=").append(handler / 1000L)
+           .append(" close=").append(close / 1000L)
+           .append(" (us)");
+        return out.toString();
+    }
+
+    /**
+     * Records the own time of a filter.
+     */
+    static final class TimedFilter extends Filter {
+        private final Filter filter;
+        private final String name;
+
+        TimedFilter(Filter filter) {
+            this.filter = filter;
+            this.name = filter.getClass().getSimpleName();
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            final RequestPhases phases = current();
+            if (null == phases) {
+                filter.doFilter(exchange, chain);
+                return;
+            }
+            final long saved = phases.enter();
+            final long start = System.nanoTime();
+            try {
+                filter.doFilter(exchange, chain);
+            } finally {
+                phases.filter(name, phases.leave(saved, System.nanoTime() - start));
+            }
+        }
+
+        Filter getFilter() {
+            return filter;
+        }
+
+        @Override
+        public String description() {
+            return filter.description();
+        }
+    }
+}
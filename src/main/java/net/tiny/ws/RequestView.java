@@ -0,0 +1,398 @@
+package net.tiny.ws;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A lazy view of a request.
+ *
+ * Nothing is parsed until asked. The query, path segments and cookies are scanned by index
+ * on the raw strings the exchange already holds, a lookup compares the names in place and
+ * only the value returned is decoded. A value without escapes is a substring of the raw
+ * string, a GET without parameters allocates nothing but the view.
+ *
+ * <code>
+ *  RequestView request = RequestView.of(he);
+ *  String id = request.getParameter("id");
+ *  String user = request.getSegment(0);
+ *  String session = request.getCookie("RSSID");
+ * </code>
+ */
+public final class RequestView implements Constants {
+
+    private static final String HEADER_COOKIE = "Cookie";
+
+    private final HttpExchange exchange;
+    private final URI uri;
+    private String pathInfo = null;
+    private Map<String, List<String>> parameters = null;
+
+    private RequestView(HttpExchange exchange) {
+        this.exchange = exchange;
+        this.uri = exchange.getRequestURI();
+    }
+
+    public static RequestView of(HttpExchange he) {
+        return new RequestView(he);
+    }
+
+    public String getMethod() {
+        return exchange.getRequestMethod();
+    }
+
+    public String getRawPath() {
+        return uri.getRawPath();
+    }
+
+    /**
+     * @return the raw query or <code>null</code>
+     */
+    public String getRawQuery() {
+        return uri.getRawQuery();
+    }
+
+    public String getHeader(String name) {
+        return exchange.getRequestHeaders().getFirst(name);
+    }
+
+    /**
+     * @return the decoded first value, "" if the parameter has no value, <code>null</code> if absent
+     */
+    public String getParameter(String name) {
+        final String query = uri.getRawQuery();
+        if (null == query) {
+            return null;
+        }
+        final int length = query.length();
+        int start = 0;
+        while (start <= length) {
+            final int end = indexOf(query, '&', start, length);
+            final int eq = indexOf(query, '=', start, end);
+            if (end > start && matches(query, start, eq, name, true)) {
+                return (eq < end) ? decode(query, eq + 1, end, true) : "";
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    public boolean hasParameter(String name) {
+        return null != getParameter(name);
+    }
+
+    /**
+     * @return the decoded values, empty if absent
+     */
+    public List<String> getParameterValues(String name) {
+        final List<String> values = getParameters().get(name);
+        return (null != values) ? values : Collections.<String>emptyList();
+    }
+
+    /**
+     * The map is built once by the first call.
+     *
+     * @return the decoded parameters of the query in order, a parameter without '=' has a <code>null</code> value
+     */
+    public Map<String, List<String>> getParameters() {
+        if (null == parameters) {
+            final Map<String, List<String>> map = new LinkedHashMap<>();
+            parse(uri.getRawQuery(), map);
+            parameters = map;
+        }
+        return parameters;
+    }
+
+    /**
+     * Parse an url encoded query or form, the pairs are separated by '&'.
+     */
+    static void parse(CharSequence raw, Map<String, List<String>> map) {
+        parse(raw, map, false);
+    }
+
+    /**
+     * @param semicolon ';' separates the pairs too, as the query parameters of {@link RequestHelper}
+     */
+    static void parse(CharSequence raw, Map<String, List<String>> map, boolean semicolon) {
+        if (null == raw) {
+            return;
+        }
+        final int length = raw.length();
+        int start = 0;
+        while (start <= length) {
+            final int end = semicolon ? next(raw, start, length) : indexOf(raw, '&', start, length);
+            if (end > start) {
+                final int eq = indexOf(raw, '=', start, end);
+                final String name = decode(raw, start, eq, true);
+                List<String> values = map.get(name);
+                if (null == values) {
+                    values = new ArrayList<>(1);
+                    map.put(name, values);
+                }
+                values.add((eq < end) ? decode(raw, eq + 1, end, true) : null);
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * @return the raw path after the route or the context, without the leading '/'
+     */
+    public String getPathInfo() {
+        if (null == pathInfo) {
+            final Router.Match route = Router.route(exchange);
+            if (null != route) {
+                pathInfo = route.getPathInfo();
+            } else {
+                final String path = uri.getRawPath();
+                int start = exchange.getHttpContext().getPath().length();
+                if (start < path.length() && path.charAt(start) == '/') {
+                    start++;
+                }
+                pathInfo = (start < path.length()) ? path.substring(start) : "";
+            }
+        }
+        return pathInfo;
+    }
+
+    /**
+     * @return number of the segments of the path info
+     */
+    public int getSegmentCount() {
+        return segmentCount(getPathInfo());
+    }
+
+    /**
+     * e.g. path info "foo/b%20r" returns "b r" for index 1
+     * @return the decoded segment or <code>null</code> if out of range
+     */
+    public String getSegment(int index) {
+        final String info = getPathInfo();
+        final int start = segmentStart(info, index);
+        if (start < 0) {
+            return null;
+        }
+        return decode(info, start, indexOf(info, '/', start, info.length()), false);
+    }
+
+    /**
+     * Segments separated by '/', the trailing empty ones are ignored like <code>split("/")</code>.
+     */
+    static int segmentCount(String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        if (end == 0) {
+            return 0;
+        }
+        int count = 1;
+        for (int i = 0; i < end; i++) {
+            if (path.charAt(i) == '/') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the raw segment or <code>null</code> if out of range
+     */
+    static String segment(String path, int index) {
+        final int start = segmentStart(path, index);
+        return (start < 0) ? null : path.substring(start, indexOf(path, '/', start, path.length()));
+    }
+
+    private static int segmentStart(String path, int index) {
+        if (index < 0 || index >= segmentCount(path)) {
+            return -1;
+        }
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start = path.indexOf('/', start) + 1;
+        }
+        return start;
+    }
+
+    /**
+     * @return the value of the cookie or <code>null</code>
+     */
+    public String getCookie(String name) {
+        final List<String> headers = exchange.getRequestHeaders().get(HEADER_COOKIE);
+        if (null == headers) {
+            return null;
+        }
+        for (String header : headers) {
+            final int found = cookieStart(header, name);
+            if (found < 0) {
+                continue;
+            }
+            int start = found + name.length() + 1;
+            int end = indexOf(header, ';', start, header.length());
+            while (end > start && header.charAt(end - 1) == ' ') {
+                end--;
+            }
+            if (end - start >= 2 && header.charAt(start) == '"' && header.charAt(end - 1) == '"') {
+                start++;
+                end--;
+            }
+            return header.substring(start, end);
+        }
+        return null;
+    }
+
+    /**
+     * @return <code>name=value</code> of the cookie or <code>null</code>
+     */
+    String getCookiePair(String name) {
+        final List<String> headers = exchange.getRequestHeaders().get(HEADER_COOKIE);
+        if (null == headers) {
+            return null;
+        }
+        for (String header : headers) {
+            final int start = cookieStart(header, name);
+            if (start >= 0) {
+                return header.substring(start, indexOf(header, ';', start, header.length())).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the index of the name of the cookie in the header, -1 if absent
+     */
+    private static int cookieStart(String header, String name) {
+        final int length = header.length();
+        int start = 0;
+        while (start < length) {
+            while (start < length && (header.charAt(start) == ' ' || header.charAt(start) == ';')) {
+                start++;
+            }
+            final int end = indexOf(header, ';', start, length);
+            final int eq = indexOf(header, '=', start, end);
+            if (eq < end && eq - start == name.length() && header.regionMatches(start, name, 0, name.length())) {
+                return start;
+            }
+            start = end + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the next '&' or ';' or the end
+     */
+    private static int next(CharSequence s, int start, int length) {
+        for (int i = start; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c == '&' || c == ';') {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the index of the char or the end
+     */
+    private static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Compare an encoded range with a decoded name, in place if the range has no escape.
+     */
+    static boolean matches(CharSequence s, int start, int end, String name, boolean form) {
+        boolean escaped = false;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == '%' || (form && c == '+')) {
+                escaped = true;
+                break;
+            }
+        }
+        if (escaped) {
+            return name.equals(decode(s, start, end, form));
+        }
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (s.charAt(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decode a range of an UTF-8 url encoded string.
+     *
+     * @param form decode '+' as a space
+     * @return a substring if the range has no escape
+     */
+    static String decode(CharSequence s, int start, int end, boolean form) {
+        int i = start;
+        while (i < end) {
+            final char c = s.charAt(i);
+            if (c == '%' || (form && c == '+')) {
+                break;
+            }
+            i++;
+        }
+        if (i == end) {
+            return s.subSequence(start, end).toString();
+        }
+        final byte[] bytes = new byte[(end - start) * 3];
+        int n = 0;
+        for (int j = start; j < i; j++) {
+            n = put(bytes, n, s.charAt(j));
+        }
+        while (i < end) {
+            final char c = s.charAt(i);
+            if (c == '%') {
+                final int hi = (i + 2 < end) ? Character.digit(s.charAt(i + 1), 16) : -1;
+                final int lo = (i + 2 < end) ? Character.digit(s.charAt(i + 2), 16) : -1;
+                if (hi < 0 || lo < 0) {
+                    throw new IllegalArgumentException("Illegal escape at " + i + " in '" + s + "'");
+                }
+                bytes[n++] = (byte) ((hi << 4) | lo);
+                i += 3;
+                continue;
+            }
+            n = put(bytes, n, (form && c == '+') ? ' ' : c);
+            i++;
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private static int put(byte[] bytes, int n, char c) {
+        if (c < 0x80) {
+            bytes[n++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[n++] = (byte) (0xc0 | (c >> 6));
+            bytes[n++] = (byte) (0x80 | (c & 0x3f));
+        } else {
+            // A raw string is ASCII, a lone surrogate is replaced by the decoder
+            bytes[n++] = (byte) (0xe0 | (c >> 12));
+            bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[n++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s", getMethod(), uri);
+    }
+}
@@ -3,8 +3,12 @@ package net.tiny.ws;
 import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,18 +23,47 @@ import net.tiny.ws.cache.FileContentCache;
  */
 public class ResourceHttpHandler extends BaseWebService {
 
+    private static final String GZIP = FileContentCache.Entry.GZIP;
+
     private Map<String, String> resources = null;
     private FileContentCache contentCache = null;
     private List<String> paths = new ArrayList<>();
     private int cacheSize = -1;
+    private long cacheBudget = -1L; //Memory mapped cache bytes
     private long maxAge = 86400L; //1 day
+    private long streamThreshold = 1024L * 1024L; //Larger files are streamed, not cached
     private String serverName = DEFALUT_SERVER_NAME;
+    // Rendered again only if the server name changed
+    private volatile NotModified notModified = null;
 
     public WebServiceHandler setPaths(List<String> paths) {
         this.paths = paths;
         return this;
     }
 
+    /**
+     * @param size max number of cached files
+     * @param budget max bytes of the memory mapped files, the files are cached in the heap if not positive
+     */
+    public WebServiceHandler setCache(int size, long budget) {
+        this.cacheSize = size;
+        this.cacheBudget = budget;
+        return this;
+    }
+
+    /**
+     * @param name the 'Server' header of the 200 and 304 responses
+     */
+    public WebServiceHandler setServerName(String name) {
+        this.serverName = name;
+        return this;
+    }
+
+    public WebServiceHandler setStreamThreshold(long threshold) {
+        this.streamThreshold = threshold;
+        return this;
+    }
+
     @Override
     protected boolean doGetOnly() {
         return true;
@@ -46,6 +79,7 @@ public class ResourceHttpHandler extends BaseWebService {
 
         final File doc = new File(realPath);
         byte[] buffer;
+        FileContentCache.Entry entry = null;
         int statCode = HttpURLConnection.HTTP_OK;
 
         final ResponseHeaderHelper header = HttpHandlerHelper.getHeaderHelper(he);
@@ -54,33 +88,65 @@ public class ResourceHttpHandler extends BaseWebService {
             buffer = NOT_FOUND;
             statCode = HttpURLConnection.HTTP_NOT_FOUND;
         } else {
+            final boolean compressible = isCompressible(doc);
             try {
-                if (request.isNotModified(doc)) {
+                final FileContentCache.Entry cached = isStreamed(doc) ? null : getCacheableEntry(doc);
+                final String encoding = compressible
+                        ? HttpHandlerHelper.getAcceptedEncoding(request.getHeaders().getFirst(HEADER_ACCEPT_ENCODING))
+                        : null;
+                // The tag of the representation sent for the accepted encoding
+                final String etag = (null != cached) ? cached.getETag(encoding) : null;
+                if (null != etag) {
+                    header.set(HEADER_ETAG, etag);
+                }
+                if (request.isNotModified(doc, etag)) {
                     buffer = new byte[0];
-                    header.set("Server", serverName);
-                    header.set("Connection", "Keep-Alive");
+                    header.setAll(getNotModifiedHeaders(compressible));
                     statCode = HttpURLConnection.HTTP_NOT_MODIFIED;
                 } else {
-                    header.setContentType(doc);
-                    header.setLastModified(doc);
-                    header.set("Server", serverName);
-                    header.set("Access-Control-Allow-Origin", "*");
-                    header.set("Access-Control-Allow-Headers", "Origin, X-Requested-With, Content-Type, Accept");
-                    header.set("Access-Control-Allow-Methods", getAllowedMethods());
-                    header.set("Connection", "Keep-Alive");
-                    header.set("Keep-Alive", "timeout=10, max=1000");
-                    header.set("Cache-Control", "max-age=" + maxAge); //"max-age=0" 86400:1 day
-
-                    buffer = getCacheableContents(doc);
+                    // Rendered once per cached file
+                    final Map<String, List<String>> block = (null != cached) ? cached.getHeaders() : null;
+                    header.setAll((null != block) ? block : renderHeaders(doc, doc.lastModified()));
+
+                    final String range = request.getHeaders().getFirst(HEADER_RANGE);
+                    if (null != range
+                            && ByteRanges.isRangeValid(request.getHeaders().getFirst(HEADER_IF_RANGE), doc.lastModified(),
+                                    (null != cached) ? cached.getETag() : null)
+                            && sendRanges(he, doc, cached, range)) {
+                        return;
+                    }
+                    if (isStreamed(doc)) {
+                        final File sibling = GZIP.equals(encoding) ? FileContentCache.getSibling(doc, doc.lastModified()) : null;
+                        if (null != sibling) {
+                            header.set(HEADER_CONTENT_ENCODING, GZIP);
+                            sendFile(he, sibling);
+                        } else {
+                            sendFile(he, doc);
+                        }
+                        return;
+                    }
+                    entry = cached;
+                    final byte[] encoded = getEncodedContents(doc, entry, encoding);
+                    if (null != encoded) {
+                        header.set(HEADER_CONTENT_ENCODING, encoding);
+                        buffer = encoded;
+                        entry = null;
+                    } else {
+                        buffer = (null != entry) ? entry.getBytes() : Files.readAllBytes(doc.toPath());
+                    }
                     statCode = HttpURLConnection.HTTP_OK;
                 }
             } catch (IOException e) {
-                header.setContentType(MIME_TYPE.HTML);
+                he.getResponseHeaders().remove(HEADER_ETAG);
+                // The header block may be applied, replace its type
+                he.getResponseHeaders().set(HEADER_CONTENT_TYPE, MIME_TYPE.HTML.getType());
                 buffer = SERVER_ERROR;
                 statCode = HttpURLConnection.HTTP_INTERNAL_ERROR;
             }
         }
-        if (buffer.length > 0) {
+        if (null != entry && entry.isMapped()) {
+            sendBuffer(he, entry.getBuffer());
+        } else if (buffer.length > 0) {
             header.setContentLength(buffer.length);
             he.sendResponseHeaders(statCode, buffer.length);
             he.getResponseBody().write(buffer);
@@ -89,16 +155,154 @@ public class ResourceHttpHandler extends BaseWebService {
         }
     }
 
-    private byte[] getCacheableContents(File file) throws IOException {
+    /**
+     * Render the headers of a 200 response, except the length, the encoding and the entity tag.
+     */
+    Map<String, List<String>> renderHeaders(File file, long lastModified) {
+        final MIME_TYPE type = HttpHandlerHelper.getMimeType(file.getName());
+        return ResponseHeaderHelper.render(
+                HEADER_CONTENT_TYPE, (null != type) ? type.getType() : null,
+                HEADER_LAST_MODIFIED, HttpDateFormat.format(new Date(lastModified)),
+                "Server", serverName,
+                "Access-Control-Allow-Origin", "*",
+                "Access-Control-Allow-Headers", "Origin, X-Requested-With, Content-Type, Accept",
+                "Access-Control-Allow-Methods", getAllowedMethods(),
+                HEADER_CONNECTION, "Keep-Alive",
+                "Keep-Alive", "timeout=10, max=1000",
+                HEADER_CACHE_CONTROL, "max-age=" + maxAge, //"max-age=0" 86400:1 day
+                HEADER_ACCEPT_RANGES, "bytes",
+                // The body depends on the accepted encoding
+                HEADER_VARY, isCompressible(file) ? HEADER_ACCEPT_ENCODING : null);
+    }
+
+    private Map<String, List<String>> getNotModifiedHeaders(boolean compressible) {
+        NotModified blocks = notModified;
+        final String server = serverName;
+        if (null == blocks || !blocks.server.equals(server)) {
+            blocks = new NotModified(server);
+            notModified = blocks;
+        }
+        return compressible ? blocks.vary : blocks.plain;
+    }
+
+    /**
+     * The header blocks of a 304 response, final fields are safely published to the request threads.
+     */
+    static final class NotModified {
+        final String server;
+        final Map<String, List<String>> plain;
+        final Map<String, List<String>> vary;
+
+        NotModified(String server) {
+            this.server = server;
+            this.plain = ResponseHeaderHelper.render(
+                    "Server", server,
+                    HEADER_CONNECTION, "Keep-Alive");
+            this.vary = ResponseHeaderHelper.render(
+                    "Server", server,
+                    HEADER_CONNECTION, "Keep-Alive",
+                    HEADER_VARY, HEADER_ACCEPT_ENCODING);
+        }
+    }
+
+    private static boolean isCompressible(File file) {
+        try {
+            final MIME_TYPE type = HttpHandlerHelper.getMimeType(file.getName());
+            return null != type && type.isCompressible();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the compressed variant of the cached entry or the precompressed '.gz' file,
+     * <code>null</code> if not available
+     */
+    private static byte[] getEncodedContents(File file, FileContentCache.Entry entry, String encoding) throws IOException {
+        if (null == encoding) {
+            return null;
+        }
+        if (null != entry) {
+            return entry.getEncoded(encoding);
+        }
+        final File sibling = GZIP.equals(encoding) ? FileContentCache.getSibling(file, file.lastModified()) : null;
+        return (null != sibling) ? Files.readAllBytes(sibling.toPath()) : null;
+    }
+
+    private boolean isStreamed(File file) {
+        return streamThreshold >= 0L && file.length() > streamThreshold;
+    }
+
+    /**
+     * Send a large file without loading it into the heap.
+     * The file region goes straight to the socket when the response body supports it.
+     */
+    private void sendFile(HttpExchange he, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long length = channel.size();
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, length);
+            ByteRanges.of(channel).write(he.getResponseBody(), 0L, length);
+        }
+    }
+
+    /**
+     * Send a memory mapped content without copying it into the heap.
+     */
+    private void sendBuffer(HttpExchange he, ByteBuffer contents) throws IOException {
+        final int length = contents.remaining();
+        if (length == 0) {
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+            return;
+        }
+        he.sendResponseHeaders(HttpURLConnection.HTTP_OK, length);
+        ByteRanges.of(contents).write(he.getResponseBody(), 0L, length);
+    }
+
+    /**
+     * Send the requested identity byte ranges, from the cached entry or the file channel.
+     *
+     * @param entry the cached entry or <code>null</code>
+     * @return false if the range header is ignored
+     */
+    private boolean sendRanges(HttpExchange he, File file, FileContentCache.Entry entry, String range) throws IOException {
+        if (null != entry) {
+            final ByteRanges ranges = ByteRanges.parse(range, entry.getLength());
+            if (null == ranges) {
+                return false;
+            }
+            // The ranges are parts of the identity representation
+            he.getResponseHeaders().set(HEADER_ETAG, entry.getETag());
+            ranges.send(he, entry.isMapped() ? ByteRanges.of(entry.getBuffer()) : ByteRanges.of(entry.getBytes()));
+            return true;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteRanges ranges = ByteRanges.parse(range, channel.size());
+            if (null == ranges) {
+                return false;
+            }
+            ranges.send(he, ByteRanges.of(channel));
+            return true;
+        }
+    }
+
+    /**
+     * @return the cached entry or <code>null</code> if the cache is disabled
+     */
+    private FileContentCache.Entry getCacheableEntry(File file) throws IOException {
         if(contentCache == null && cacheSize > 0) {
-            // Cache max files
-            contentCache = new FileContentCache(cacheSize);
+            if (cacheBudget > 0L) {
+                // Cache max files and bytes out of the heap
+                contentCache = new FileContentCache(cacheSize, cacheBudget);
+            } else {
+                // Cache max files
+                contentCache = new FileContentCache(cacheSize);
+            }
+            contentCache.setHeaderRenderer(e -> renderHeaders(e.getFile(), e.getLastModified()));
         }
         if (contentCache != null) {
-            return contentCache.get(file.getAbsolutePath());
-        } else {
-            return Files.readAllBytes(file.toPath());
+            return contentCache.getEntry(file.getAbsolutePath());
         }
+        return null;
     }
 
     private String mapping(String context) {
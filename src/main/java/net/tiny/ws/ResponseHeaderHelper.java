@@ -1,7 +1,12 @@
 package net.tiny.ws;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.sun.net.httpserver.Headers;
 
@@ -33,6 +38,11 @@ public final class ResponseHeaderHelper implements Constants {
         return this;
     }
 
+    public ResponseHeaderHelper setContentLength(long length) {
+        headers.add(HEADER_CONTENT_LENGTH, String.valueOf(length));
+        return this;
+    }
+
     public ResponseHeaderHelper setLastModified(File file) {
         headers.add(HEADER_LAST_MODIFIED, HttpDateFormat.format(new Date(file.lastModified())));
         return this;
@@ -67,4 +77,49 @@ public final class ResponseHeaderHelper implements Constants {
         return this;
     }
 
+    /**
+     * Apply a pre-rendered header block in one step.
+     * The values are copied, a header of the block can be appended to afterwards.
+     *
+     * @see #render(String...)
+     */
+    public ResponseHeaderHelper setAll(Map<String, List<String>> block) {
+        for (Map.Entry<String, List<String>> entry : block.entrySet()) {
+            headers.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return this;
+    }
+
+    /**
+     * Render an immutable header block from name and value pairs.
+     * The names are normalized as by {@link Headers}, the block is shared by all
+     * responses and copied into the headers of each by {@link #setAll(Map)}.
+     *
+     * @param pairs e.g. "Server", "tiny", "Connection", "Keep-Alive"
+     */
+    public static Map<String, List<String>> render(String... pairs) {
+        if (pairs.length % 2 != 0) {
+            throw new IllegalArgumentException("Not name and value pairs");
+        }
+        final Map<String, List<String>> block = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (null != pairs[i + 1]) {
+                block.put(normalize(pairs[i]), Collections.singletonList(pairs[i + 1]));
+            }
+        }
+        return Collections.unmodifiableMap(block);
+    }
+
+    /**
+     * Same key form as <code>Headers</code>, which does not normalize the keys of <code>putAll</code> on Java 8.
+     */
+    static String normalize(String name) {
+        final char[] chars = name.toCharArray();
+        chars[0] = Character.toUpperCase(chars[0]);
+        for (int i = 1; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
 }
@@ -0,0 +1,146 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A response body written through a pooled buffer.
+ *
+ * Nothing is sent until the buffer is full or the writer is closed. A body fitting
+ * the buffer is sent with its 'Content-Length' by {@link #close()}, a larger one is
+ * sent chunked as the buffer fills. A writer not closed, e.g. by an error while
+ * writing, sends nothing and gives back its buffer by {@link #discard()}.
+ *
+ * <code>
+ *  ResponseWriter out = ResponseWriter.of(he, HttpURLConnection.HTTP_OK);
+ *  try {
+ *      out.write(bytes);
+ *      out.close();
+ *  } finally {
+ *      out.discard();
+ *  }
+ * </code>
+ */
+public final class ResponseWriter extends OutputStream implements Constants {
+
+    private final HttpExchange exchange;
+    private final int status;
+    private final BufferPool pool;
+    private ByteBuffer buffer;
+    private byte[] array;
+    private int count = 0;
+    private OutputStream out = null;
+
+    ResponseWriter(HttpExchange exchange, int status, BufferPool pool) {
+        this.exchange = exchange;
+        this.status = status;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+        this.array = buffer.array();
+    }
+
+    public static ResponseWriter of(HttpExchange he, int status) {
+        return new ResponseWriter(he, status, BufferPool.DEFAULT);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == array.length) {
+            drain();
+        }
+        array[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == array.length) {
+                drain();
+            }
+            if (count == 0 && null != out && len >= array.length) {
+                // Chunked already, no need to copy
+                out.write(b, off, len);
+                return;
+            }
+            final int n = Math.min(len, array.length - count);
+            System.arraycopy(b, off, array, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Send the buffered bytes, the response becomes chunked.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (null == array) {
+            return;
+        }
+        drain();
+        out.flush();
+    }
+
+    private void drain() throws IOException {
+        if (null == array) {
+            throw new IOException("Response writer closed");
+        }
+        if (null == out) {
+            exchange.sendResponseHeaders(status, 0L);
+            out = exchange.getResponseBody();
+        }
+        if (count > 0) {
+            out.write(array, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * @return true if the headers are sent and the body is chunked
+     */
+    public boolean isChunked() {
+        return null != out;
+    }
+
+    /**
+     * Send the rest of the body and give back the buffer.
+     */
+    @Override
+    public void close() throws IOException {
+        if (null == array) {
+            return;
+        }
+        try {
+            if (null == out) {
+                exchange.sendResponseHeaders(status, (count > 0) ? count : NO_RESPONSE_LENGTH);
+                if (count > 0) {
+                    out = exchange.getResponseBody();
+                    out.write(array, 0, count);
+                }
+            } else if (count > 0) {
+                out.write(array, 0, count);
+            }
+            if (null != out) {
+                out.close();
+            }
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Give back the buffer, the bytes not sent are dropped.
+     */
+    public void discard() {
+        if (null != buffer) {
+            pool.release(buffer);
+            buffer = null;
+            array = null;
+            count = 0;
+        }
+    }
+}
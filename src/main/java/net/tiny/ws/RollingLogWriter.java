@@ -0,0 +1,392 @@
+package net.tiny.ws;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An UTF-8 log file rotated by size or time.
+ *
+ * A closed segment is renamed to <code>file.yyyyMMdd-HHmmss</code> and optionally gzipped
+ * on a background thread. In the mapped mode the active segment is preallocated and
+ * memory mapped, appending a line is a memory copy and the file is truncated to its
+ * content when the segment is closed.
+ *
+ * A mapping is released explicitly when it is replaced or the segment is closed, the JDK
+ * otherwise keeps it until garbage collected. On a JVM where this is not possible
+ * (see {@link #unmap(MappedByteBuffer)}) the mappings stay until collected and Windows
+ * refuses to truncate a mapped file, the zero tail is then left in the closed segment.
+ */
+public class RollingLogWriter extends Writer {
+
+    private static final Logger LOGGER = Logger.getLogger(RollingLogWriter.class.getName());
+
+    public enum Rollover {
+        NONE,
+        HOURLY,
+        DAILY
+    }
+
+    /** Mapped region of a segment without max size */
+    static final long DEFAULT_MAPPED_SIZE = 16L * 1024L * 1024L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final DateTimeFormatter SEGMENT_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private static ExecutorService compressor = null;
+    /** <code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code> of Java 9+ or <code>null</code> */
+    private static final Method INVOKE_CLEANER;
+    private static final Object UNSAFE;
+    static {
+        Method method = null;
+        Object unsafe = null;
+        try {
+            final Class<?> type = Class.forName("sun.misc.Unsafe");
+            method = type.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            method = null;
+        }
+        INVOKE_CLEANER = method;
+        UNSAFE = unsafe;
+    }
+
+    private final File file;
+    private final long maxSize;
+    private final Rollover rollover;
+    private final boolean compress;
+    private final boolean mapped;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /** Clock of the time rollover, replaced by tests */
+    Clock clock = Clock.systemDefaultZone();
+
+    private ByteBuffer encoded = ByteBuffer.allocate(1024);
+    private ByteBuffer buffer;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long mapOffset;
+    private long size;
+    private long opened;
+    private long nextRollover;
+    private Future<?> lastCompression = null;
+
+    /**
+     * @param file the active log file
+     * @param maxSize max bytes of a segment, not rotated by size if not positive
+     * @param rollover time rotation
+     * @param compress gzip the closed segments
+     * @param mapped append into a preallocated memory mapped segment
+     */
+    public RollingLogWriter(File file, long maxSize, Rollover rollover, boolean compress, boolean mapped) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.rollover = rollover;
+        this.compress = compress;
+        this.mapped = mapped;
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (null != dir && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can not create directory " + dir);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = mapped ? findEnd(channel) : channel.size();
+        if (mapped) {
+            remap();
+        } else {
+            channel.position(size);
+            if (null == buffer) {
+                buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+        }
+        opened = clock.millis();
+        nextRollover = nextRollover(opened);
+    }
+
+    /**
+     * @return the length without the zero bytes left by an unclosed mapped segment
+     */
+    static long findEnd(FileChannel channel) throws IOException {
+        final long length = channel.size();
+        final ByteBuffer block = ByteBuffer.allocate(8192);
+        long end = length;
+        while (end > 0L) {
+            final long start = Math.max(0L, end - block.capacity());
+            block.clear();
+            block.limit((int) (end - start));
+            channel.read(block, start);
+            for (int i = block.position() - 1; i >= 0; i--) {
+                if (block.get(i) != 0) {
+                    return start + i + 1L;
+                }
+            }
+            end = start;
+        }
+        return 0L;
+    }
+
+    private void remap() throws IOException {
+        if (null != map) {
+            unmap(map);
+            map = null;
+        }
+        mapOffset = size;
+        final long region = (maxSize > 0L) ? Math.max(maxSize - size, BUFFER_SIZE) : DEFAULT_MAPPED_SIZE;
+        // Preallocate the region, the file grows to the mapped size
+        map = channel.map(FileChannel.MapMode.READ_WRITE, mapOffset, region);
+    }
+
+    long nextRollover(long now) {
+        if (rollover == Rollover.NONE) {
+            return Long.MAX_VALUE;
+        }
+        final ZonedDateTime time = Instant.ofEpochMilli(now).atZone(clock.getZone());
+        final ZonedDateTime next = (rollover == Rollover.HOURLY)
+                ? time.truncatedTo(ChronoUnit.HOURS).plusHours(1L)
+                : time.truncatedTo(ChronoUnit.DAYS).plusDays(1L);
+        return next.toInstant().toEpochMilli();
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized (lock) {
+            if (null == channel) {
+                throw new IOException("Log file " + file + " closed");
+            }
+            if (clock.millis() >= nextRollover) {
+                rotate();
+            }
+            final ByteBuffer bytes = encode(cbuf, off, len);
+            if (maxSize > 0L && size > 0L && size + bytes.remaining() > maxSize) {
+                rotate();
+            }
+            append(bytes);
+        }
+    }
+
+    private ByteBuffer encode(char[] cbuf, int off, int len) {
+        final int max = (int) Math.ceil(len * (double) encoder.maxBytesPerChar());
+        if (encoded.capacity() < max) {
+            encoded = ByteBuffer.allocate(Math.max(max, encoded.capacity() * 2));
+        }
+        encoded.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(cbuf, off, len), encoded, true);
+        encoder.flush(encoded);
+        encoded.flip();
+        return encoded;
+    }
+
+    private void append(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            final ByteBuffer target = mapped ? map : buffer;
+            if (!target.hasRemaining()) {
+                if (mapped) {
+                    // A line larger than the rest of the segment
+                    remap();
+                } else {
+                    drain();
+                }
+                continue;
+            }
+            final int n = Math.min(target.remaining(), bytes.remaining());
+            final int limit = bytes.limit();
+            bytes.limit(bytes.position() + n);
+            target.put(bytes);
+            bytes.limit(limit);
+            size += n;
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            // The mapped pages are written back by the OS
+            if (!mapped && null != channel) {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Close the active segment, rename it and open a new one.
+     */
+    void rotate() throws IOException {
+        synchronized (lock) {
+            closeSegment();
+            final File segment = segmentFile(opened);
+            if (!file.renameTo(segment)) {
+                LOGGER.warning(String.format("[LOG] Can not rename '%s' to '%s'", file, segment));
+            } else if (compress) {
+                lastCompression = compressor().submit(() -> gzip(segment));
+            }
+            open();
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (mapped) {
+            final boolean unmapped = unmap(map);
+            map = null;
+            // Drop the preallocated tail
+            try {
+                channel.truncate(size);
+            } catch (IOException e) {
+                if (unmapped) {
+                    throw e;
+                }
+                // Still mapped, e.g. on Windows
+                LOGGER.warning(String.format("[LOG] Can not truncate mapped '%s' - %s", file, e.getMessage()));
+            }
+        } else {
+            drain();
+        }
+        channel.close();
+        channel = null;
+    }
+
+    /**
+     * Release a mapping now, the buffer must not be used after.
+     * Uses <code>Unsafe.invokeCleaner</code> on Java 9+ and the cleaner of the buffer on Java 8.
+     *
+     * @return false if the JVM does not allow it, the mapping is released when collected
+     */
+    static boolean unmap(MappedByteBuffer buffer) {
+        if (null == buffer) {
+            return true;
+        }
+        try {
+            if (null != INVOKE_CLEANER) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                final Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                final Object clean = cleaner.invoke(buffer);
+                if (null == clean) {
+                    return false;
+                }
+                final Method invoke = clean.getClass().getMethod("clean");
+                invoke.setAccessible(true);
+                invoke.invoke(clean);
+            }
+            return true;
+        } catch (Exception | LinkageError e) {
+            LOGGER.fine(String.format("[LOG] Can not unmap a segment - %s", e.getMessage()));
+            return false;
+        }
+    }
+
+    private File segmentFile(long time) {
+        final String name = file.getName() + "." + SEGMENT_FORMAT.format(Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()));
+        File segment = new File(file.getAbsoluteFile().getParentFile(), name);
+        for (int i = 1; segment.exists() || new File(segment.getPath() + ".gz").exists(); i++) {
+            segment = new File(file.getAbsoluteFile().getParentFile(), name + "." + i);
+        }
+        return segment;
+    }
+
+    static void gzip(File segment) {
+        final File target = new File(segment.getPath() + ".gz");
+        try (InputStream in = new FileInputStream(segment);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(target), BUFFER_SIZE)) {
+            final byte[] chunk = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(chunk)) >= 0) {
+                out.write(chunk, 0, n);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("[LOG] Can not compress '%s' - %s", segment, e.getMessage()), e);
+            target.delete();
+            return;
+        }
+        if (!segment.delete()) {
+            LOGGER.warning(String.format("[LOG] Can not delete '%s'", segment));
+        }
+    }
+
+    private static synchronized ExecutorService compressor() {
+        if (null == compressor) {
+            compressor = Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "AccessLogCompressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return compressor;
+    }
+
+    /**
+     * @return the compression of the last closed segment or <code>null</code>
+     */
+    Future<?> getLastCompression() {
+        return lastCompression;
+    }
+
+    /**
+     * @return bytes of the active segment
+     */
+    public long size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (null != channel) {
+                closeSegment();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RollingLogWriter(%s, %d bytes, %s%s%s)", file, size, rollover,
+                compress ? ", gzip" : "", mapped ? ", mapped" : "");
+    }
+}
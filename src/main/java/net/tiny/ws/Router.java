@@ -0,0 +1,268 @@
+package net.tiny.ws;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Route table of the embedded server.
+ *
+ * All handler paths are compiled into a trie of path segments, a segment like <code>{id}</code>
+ * matches any value and is handed to the handler as a path parameter.
+ * As the HTTP contexts do, a route also matches the sub paths below it, the deepest route wins
+ * and literal segments are preferred to parameters.
+ *
+ * <code>
+ *  Router.Match route = Router.route(exchange);
+ *  String id = route.getParameter("id");
+ * </code>
+ */
+public class Router implements HttpHandler, Constants {
+
+    private final Node root = new Node();
+    private final List<Route> routes = new ArrayList<>();
+    private int maxParameters = 0;
+
+    /**
+     * @param handler the handler bound on its path
+     * @param filters the filters of the handler
+     */
+    public synchronized Router add(WebServiceHandler handler, List<Filter> filters) {
+        final String path = handler.path();
+        if (null == path || !path.startsWith("/")) {
+            throw new IllegalArgumentException(String.format("Illegal handler path '%s'", path));
+        }
+        final List<String> names = new ArrayList<>();
+        Node node = root;
+        for (String segment : segments(path)) {
+            if (segment.startsWith("{") && segment.endsWith("}")) {
+                final String name = segment.substring(1, segment.length() - 1);
+                if (name.isEmpty() || names.contains(name)) {
+                    throw new IllegalArgumentException(String.format("Illegal path parameter '%s' in '%s'", segment, path));
+                }
+                if (null == node.parameter) {
+                    node.parameter = new Node();
+                }
+                node = node.parameter;
+                names.add(name);
+            } else {
+                Node child = node.children.get(segment);
+                if (null == child) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        if (null != node.route) {
+            throw new IllegalArgumentException(String.format("Duplicate route '%s' and '%s'", node.route.path, path));
+        }
+        node.route = new Route(path, names.toArray(new String[names.size()]), handler, filters);
+        routes.add(node.route);
+        maxParameters = Math.max(maxParameters, names.size());
+        return this;
+    }
+
+    public static boolean isTemplate(String path) {
+        return null != path && path.indexOf('{') >= 0;
+    }
+
+    /**
+     * @return the route matched by the exchange or <code>null</code> if not routed
+     */
+    public static Match route(HttpExchange he) {
+        return (Match) he.getAttribute(HTTP_ROUTE_ATTRIBUTE);
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        final Match match = match(he.getRequestURI().getRawPath());
+        if (null == match) {
+            try {
+                he.getResponseHeaders().set(HEADER_CONTENT_TYPE, MIME_TYPE_HTML);
+                he.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, NOT_FOUND.length);
+                he.getResponseBody().write(NOT_FOUND);
+            } finally {
+                he.close();
+            }
+            return;
+        }
+        he.setAttribute(HTTP_ROUTE_ATTRIBUTE, match);
+        final Route route = match.route;
+        if (route.filters.isEmpty()) {
+            route.handler.handle(he);
+        } else {
+            new Filter.Chain(route.filters, route.handler).doFilter(he);
+        }
+    }
+
+    /**
+     * @param path the raw request path
+     * @return the deepest route matching the path or <code>null</code>
+     */
+    public Match match(String path) {
+        if (null == path || path.isEmpty()) {
+            path = "/";
+        }
+        final String[] values = new String[maxParameters];
+        final int[] found = new int[] {-1};
+        final Route route = find(root, path, 0, values, 0, found);
+        if (null == route) {
+            return null;
+        }
+        final String[] parameters = new String[route.names.length];
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = decode(values[i]);
+        }
+        return new Match(route, parameters, path.substring(found[0]));
+    }
+
+    private Route find(Node node, String path, int pos, String[] values, int count, int[] end) {
+        while (pos < path.length() && path.charAt(pos) == '/') {
+            pos++;
+        }
+        Route best = null;
+        if (pos < path.length()) {
+            int next = path.indexOf('/', pos);
+            if (next < 0) {
+                next = path.length();
+            }
+            final Node child = node.children.get(path.substring(pos, next));
+            if (null != child) {
+                best = find(child, path, next, values, count, end);
+            }
+            if (null == best && null != node.parameter) {
+                values[count] = path.substring(pos, next);
+                best = find(node.parameter, path, next, values, count + 1, end);
+            }
+        }
+        if (null == best && null != node.route) {
+            best = node.route;
+            end[0] = pos;
+        }
+        return best;
+    }
+
+    public List<Route> getRoutes() {
+        return Collections.unmodifiableList(routes);
+    }
+
+    private static String decode(String value) {
+        if (value.indexOf('%') < 0) {
+            return value;
+        }
+        try {
+            // '+' is not a space in a path
+            return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            return value;
+        }
+    }
+
+    private static List<String> segments(String path) {
+        final List<String> list = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                list.add(segment);
+            }
+        }
+        return list;
+    }
+
+    static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        Node parameter;
+        Route route;
+    }
+
+    public static final class Route {
+        final String path;
+        final String[] names;
+        final WebServiceHandler handler;
+        final List<Filter> filters;
+
+        Route(String path, String[] names, WebServiceHandler handler, List<Filter> filters) {
+            this.path = path;
+            this.names = names;
+            this.handler = handler;
+            this.filters = filters;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public WebServiceHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public String toString() {
+            return path;
+        }
+    }
+
+    public static final class Match {
+        final Route route;
+        final String[] values;
+        final String pathInfo;
+
+        Match(Route route, String[] values, String pathInfo) {
+            this.route = route;
+            this.values = values;
+            this.pathInfo = pathInfo;
+        }
+
+        public Route getRoute() {
+            return route;
+        }
+
+        /**
+         * @return the path template of the route, like <code>/api/{id}</code>
+         */
+        public String getPath() {
+            return route.path;
+        }
+
+        /**
+         * @return the raw path after the matched route, without the leading '/'
+         */
+        public String getPathInfo() {
+            return pathInfo;
+        }
+
+        public String getParameter(String name) {
+            final String[] names = route.names;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        public Map<String, String> getParameters() {
+            final Map<String, String> map = new LinkedHashMap<>();
+            for (int i = 0; i < route.names.length; i++) {
+                map.put(route.names[i], values[i]);
+            }
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %s", route.path, getParameters(), pathInfo);
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  *
@@ -41,6 +42,8 @@ public class BarakbCache<K, V> {
     private final ExecutorService executor;
     private final ReferenceQueue<Future<V>> referenceQueue = new ReferenceQueue<Future<V>>();
     private ExceptionStrategy<K> exceptionStrategy;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
 
     public BarakbCache(Calculator<K, V> compute, int capacity) {
         this(compute, new DirectExecutorService(), capacity);
@@ -73,6 +76,24 @@ public class BarakbCache<K, V> {
         return map.size();
     }
 
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of the gets served by a cached or running computation
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of the gets starting a computation
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
     public synchronized SoftValue<K, Future<V>> remove(K key) {
         processQueue();
         return map.remove(key);
@@ -102,9 +123,11 @@ public class BarakbCache<K, V> {
         if (sr != null) {
             ret = sr.get();
             if (ret != null) {
+                hits.increment();
                 return ret;
             }
         }
+        misses.increment();
         ret = executor.submit(() -> compute.get(key));
         SoftValue<K, Future<V>> value = new SoftValue<>(ret, referenceQueue, key);
         map.put(key, value);
@@ -1,13 +1,44 @@
 package net.tiny.ws.cache;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Cache of file contents.
+ *
+ * The default tier keeps the contents as byte arrays held by soft references.
+ * The mapped tier keeps read-only memory mapped buffers outside the heap,
+ * the entries are evicted by LRU when the capacity or the byte budget is exceeded.
+ *
+ * An entry also holds the gzip and deflate variants of its contents, compressed once on first use
+ * or read from a precompressed '.gz' sibling file, the strong entity tag of its contents
+ * and the response headers rendered once when the file is loaded.
+ */
 public class FileContentCache {
 
-    private final BarakbCache<String, byte[]> cache;
+    private final BarakbCache<String, Entry> cache;
+    private final Map<String, Entry> mapped;
+    private final int capacity;
+    private final long budget;
+    private long bytes = 0L;
+    private volatile Function<Entry, Map<String, List<String>>> renderer = null;
 
     /**
      * Create cache for the last capacity number used file.
@@ -18,15 +49,83 @@ public class FileContentCache {
         this.cache = new BarakbCache<>(key -> readContents(key), capacity);
         // Have an error from the file system that a file was deleted.
         this.cache.setRemoveableException(RuntimeException.class);
+        this.mapped = null;
+        this.capacity = capacity;
+        this.budget = 0L;
+    }
+
+    /**
+     * Create a memory mapped cache for the last used files.
+     *
+     * @param capacity max number of files
+     * @param budget max bytes of all mapped files
+     */
+    public FileContentCache(int capacity, long budget) {
+        if (budget <= 0L) {
+            throw new IllegalArgumentException("Illegal budget " + budget);
+        }
+        this.cache = null;
+        this.mapped = new LinkedHashMap<>(Math.max(capacity, 16), 0.75f, true);
+        this.capacity = capacity;
+        this.budget = budget;
+    }
+
+    public boolean isMapped() {
+        return null != mapped;
+    }
+
+    /**
+     * @param renderer renders the immutable response headers of an entry when loaded
+     */
+    public void setHeaderRenderer(Function<Entry, Map<String, List<String>>> renderer) {
+        this.renderer = renderer;
+    }
+
+    private Entry render(Entry entry) {
+        final Function<Entry, Map<String, List<String>>> r = renderer;
+        if (null != r) {
+            entry.headers = r.apply(entry);
+        }
+        return entry;
     }
 
     public void clear() {
-        cache.clear();
+        if (isMapped()) {
+            synchronized (mapped) {
+                mapped.clear();
+                bytes = 0L;
+            }
+        } else {
+            cache.clear();
+        }
     }
 
     public byte[] get(String file) throws IOException {
+        final Entry entry = getEntry(file);
+        if (null != entry.bytes) {
+            return entry.bytes;
+        }
+        // Copy of a mapped buffer
+        final ByteBuffer buffer = entry.getBuffer();
+        final byte[] contents = new byte[buffer.remaining()];
+        buffer.get(contents);
+        return contents;
+    }
+
+    /**
+     * @return the cached entry, reloaded if the file was modified
+     */
+    public Entry getEntry(String file) throws IOException {
+        if (isMapped()) {
+            return getMapped(file);
+        }
         try {
-            return cache.get(file);
+            Entry entry = cache.get(file);
+            if (entry.isModified()) {
+                cache.remove(file);
+                entry = cache.get(file);
+            }
+            return entry;
         } catch (Throwable e) {
             Throwable cause = findErrorCause(e);
             if(cause instanceof IOException) {
@@ -37,8 +136,74 @@ public class FileContentCache {
         }
     }
 
+    private Entry getMapped(String file) throws IOException {
+        synchronized (mapped) {
+            final Entry entry = mapped.get(file);
+            if (null != entry) {
+                if (!entry.isModified()) {
+                    return entry;
+                }
+                mapped.remove(file);
+                bytes -= entry.length;
+            }
+        }
+        // Map out of the lock, a concurrent load of the same file only wastes a mapping
+        final Entry entry = mapFile(new File(file));
+        if (entry.length > budget) {
+            return entry;
+        }
+        synchronized (mapped) {
+            final Entry previous = mapped.put(file, entry);
+            if (null != previous) {
+                bytes -= previous.length;
+            }
+            bytes += entry.length;
+            final Iterator<Entry> it = mapped.values().iterator();
+            while ((bytes > budget || mapped.size() > capacity) && it.hasNext()) {
+                final Entry eldest = it.next();
+                if (eldest == entry) {
+                    continue;
+                }
+                it.remove();
+                bytes -= eldest.length;
+            }
+        }
+        return entry;
+    }
+
+    public int size() {
+        if (isMapped()) {
+            synchronized (mapped) {
+                return mapped.size();
+            }
+        }
+        return cache.size();
+    }
+
+    /**
+     * @return bytes of the mapped files
+     */
+    public long getBytes() {
+        if (!isMapped()) {
+            return 0L;
+        }
+        synchronized (mapped) {
+            return bytes;
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
     @Override
     public String toString() {
+        if (isMapped()) {
+            synchronized (mapped) {
+                return String.format(Locale.getDefault(), "MappedCache(%d/%d, %d/%d bytes)",
+                        mapped.size(), capacity, bytes, budget);
+            }
+        }
         return cache.toString();
     }
 
@@ -53,14 +218,62 @@ public class FileContentCache {
         }
     }
 
-    private byte[] readContents(String file) {
+    private Entry readContents(String file) {
         try {
-            return readFile(new File(file));
+            final File f = new File(file);
+            final long lastModified = f.lastModified();
+            return render(new Entry(f, lastModified, readFile(f)));
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
+    private Entry mapFile(File file) throws IOException {
+        final long lastModified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("File is too large " + length);
+            }
+            // The mapping stays valid after the channel is closed
+            return render(new Entry(file, lastModified, channel.map(FileChannel.MapMode.READ_ONLY, 0L, length)));
+        }
+    }
+
+    /**
+     * @return the precompressed 'file.gz' not older than the file, or <code>null</code>
+     */
+    public static File getSibling(File file, long lastModified) {
+        final File sibling = new File(file.getPath() + ".gz");
+        if (sibling.isFile() && sibling.lastModified() >= lastModified) {
+            return sibling;
+        }
+        return null;
+    }
+
+    /**
+     * Strong entity tag of the contents, the length and the leading bits of the SHA-1 digest.
+     *
+     * @param contents the remaining bytes are digested
+     * @return the quoted tag, e.g. <code>"1a2b-0123456789abcdef"</code>
+     */
+    public static String etag(ByteBuffer contents) {
+        final long length = contents.remaining();
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        digest.update(contents);
+        final byte[] hash = digest.digest();
+        long bits = 0L;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (hash[i] & 0xFFL);
+        }
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(bits) + "\"";
+    }
+
     private byte[] readFile(File file) throws IOException {
       InputStream in = null;
       try {
@@ -89,4 +302,164 @@ public class FileContentCache {
           }
       }
   }
+
+    /**
+     * Cached contents of a file.
+     */
+    public static final class Entry {
+        public static final String GZIP = "gzip";
+        public static final String DEFLATE = "deflate";
+        private static final byte[] NOT_ENCODED = new byte[0];
+
+        final File file;
+        final long lastModified;
+        final long length;
+        final byte[] bytes;
+        final ByteBuffer buffer;
+        private volatile byte[] gzip;
+        private volatile byte[] deflate;
+        private volatile String etag;
+        private volatile Map<String, List<String>> headers;
+
+        Entry(File file, long lastModified, byte[] bytes) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = bytes.length;
+            this.bytes = bytes;
+            this.buffer = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+
+        Entry(File file, long lastModified, ByteBuffer buffer) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = buffer.remaining();
+            this.bytes = null;
+            this.buffer = buffer.asReadOnlyBuffer();
+        }
+
+        boolean isModified() {
+            return file.lastModified() != lastModified || file.length() != length;
+        }
+
+        public boolean isMapped() {
+            return null == bytes;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the contents of the heap tier, <code>null</code> if mapped
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return a read-only view of the contents, positioned at 0
+         */
+        public ByteBuffer getBuffer() {
+            return buffer.duplicate();
+        }
+
+        /**
+         * @return the response headers rendered when loaded, <code>null</code> if the cache has no renderer
+         */
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return the strong entity tag of the contents, computed once
+         */
+        public String getETag() {
+            String tag = etag;
+            if (null == tag) {
+                tag = etag(getBuffer());
+                etag = tag;
+            }
+            return tag;
+        }
+
+        /**
+         * @param encoding 'gzip', 'deflate' or <code>null</code>
+         * @return the entity tag of the representation sent for the encoding,
+         * the tag of the contents if the encoded variant is not available
+         */
+        public String getETag(String encoding) throws IOException {
+            final String tag = getETag();
+            if (null == encoding || null == getEncoded(encoding)) {
+                return tag;
+            }
+            return tag.substring(0, tag.length() - 1) + "-" + encoding + "\"";
+        }
+
+        /**
+         * Compressed variant of the contents, created once.
+         *
+         * @param encoding 'gzip' or 'deflate'
+         * @return the compressed contents or <code>null</code> if not smaller than the contents
+         */
+        public byte[] getEncoded(String encoding) throws IOException {
+            byte[] encoded;
+            if (GZIP.equals(encoding)) {
+                encoded = gzip;
+                if (null == encoded) {
+                    encoded = readSibling(file, lastModified);
+                    if (null == encoded) {
+                        encoded = encode(encoding);
+                    }
+                    gzip = encoded;
+                }
+            } else if (DEFLATE.equals(encoding)) {
+                encoded = deflate;
+                if (null == encoded) {
+                    encoded = encode(encoding);
+                    deflate = encoded;
+                }
+            } else {
+                return null;
+            }
+            return encoded == NOT_ENCODED ? null : encoded;
+        }
+
+        private byte[] encode(String encoding) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(length, 65536L));
+            try (DeflaterOutputStream zip = GZIP.equals(encoding)
+                    ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out)) {
+                if (null != bytes) {
+                    zip.write(bytes);
+                } else {
+                    final ByteBuffer src = getBuffer();
+                    final byte[] chunk = new byte[8192];
+                    while (src.hasRemaining()) {
+                        final int n = Math.min(chunk.length, src.remaining());
+                        src.get(chunk, 0, n);
+                        zip.write(chunk, 0, n);
+                    }
+                }
+            }
+            return out.size() < length ? out.toByteArray() : NOT_ENCODED;
+        }
+
+        /**
+         * @return the contents of the precompressed 'file.gz' not older than the file, or <code>null</code>
+         */
+        static byte[] readSibling(File file, long lastModified) throws IOException {
+            final File sibling = getSibling(file, lastModified);
+            if (null == sibling) {
+                return null;
+            }
+            return Files.readAllBytes(sibling.toPath());
+        }
+    }
 }
@@ -0,0 +1,255 @@
+package net.tiny.ws.nio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * A non-blocking client connection of the NIO engine.
+ *
+ * The selector thread fills the input buffer until a request head is complete.
+ * While an exchange is running the worker thread reads the body and writes the response
+ * on the same non-blocking channel, parking on a temporary selector when the socket is not ready.
+ */
+final class Connection implements Closeable {
+
+    static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    final NioHttpServer server;
+    final NioHttpServer.Dispatcher dispatcher;
+    final SocketChannel channel;
+    SelectionKey key;
+    long lastActive;
+    private ByteBuffer input;
+    private volatile boolean closed = false;
+
+    Connection(NioHttpServer server, NioHttpServer.Dispatcher dispatcher, SocketChannel channel) {
+        this.server = server;
+        this.dispatcher = dispatcher;
+        this.channel = channel;
+        this.input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.input.flip();
+        this.lastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * Read available bytes without blocking. Called on the selector thread only.
+     *
+     * @return number of bytes read, -1 on end of stream
+     */
+    int fill() throws IOException {
+        if (input.position() == 0 && input.limit() == input.capacity()) {
+            if (input.capacity() >= MAX_HEAD_SIZE) {
+                return 0;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(input.capacity() * 2, MAX_HEAD_SIZE));
+            larger.put(input);
+            larger.flip();
+            input = larger;
+        }
+        input.compact();
+        try {
+            int n = channel.read(input);
+            if (n > 0) {
+                lastActive = System.currentTimeMillis();
+            }
+            return n;
+        } finally {
+            input.flip();
+        }
+    }
+
+    boolean isHeadOverflow() {
+        return input.capacity() >= MAX_HEAD_SIZE && input.remaining() == input.capacity();
+    }
+
+    /**
+     * Parse a request head from the buffered input.
+     *
+     * @return the request head or <code>null</code> if more bytes are required
+     * @throws IllegalArgumentException if the request head is malformed
+     */
+    RequestHead parseHead() {
+        final int start = input.position();
+        final int limit = input.limit();
+        int end = -1;
+        for (int i = start; i + 3 < limit; i++) {
+            if (input.get(i) == '\r' && input.get(i + 1) == '\n'
+                    && input.get(i + 2) == '\r' && input.get(i + 3) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+        final String text = new String(input.array(), input.arrayOffset() + start, end - start, StandardCharsets.ISO_8859_1);
+        input.position(end + 4);
+
+        final String[] lines = text.split("\r\n");
+        final String[] request = lines[0].split(" ");
+        if (request.length != 3 || !request[2].startsWith("HTTP/")) {
+            throw new IllegalArgumentException("Bad request line '" + lines[0] + "'");
+        }
+        final Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            final int pos = lines[i].indexOf(':');
+            if (pos <= 0) {
+                throw new IllegalArgumentException("Bad header line '" + lines[i] + "'");
+            }
+            headers.add(lines[i].substring(0, pos).trim(), lines[i].substring(pos + 1).trim());
+        }
+        return new RequestHead(request[0], request[1], request[2], headers);
+    }
+
+    /**
+     * Blocking read used by the request body streams on a worker thread.
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!input.hasRemaining() && fillBlocking() < 0) {
+            return -1;
+        }
+        final int n = Math.min(len, input.remaining());
+        input.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * @return number of the bytes buffered, read without blocking
+     */
+    int available() {
+        return input.remaining();
+    }
+
+    int read() throws IOException {
+        if (!input.hasRemaining() && fillBlocking() < 0) {
+            return -1;
+        }
+        return input.get() & 0xFF;
+    }
+
+    String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Unexpected end of stream");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+            if (line.length() > MAX_HEAD_SIZE) {
+                throw new IOException("Line too long");
+            }
+        }
+        return line.toString();
+    }
+
+    private int fillBlocking() throws IOException {
+        input.clear();
+        try {
+            int n = channel.read(input);
+            while (n == 0) {
+                await(SelectionKey.OP_READ);
+                n = channel.read(input);
+            }
+            return n;
+        } finally {
+            input.flip();
+        }
+    }
+
+    /**
+     * Blocking write used by the response streams on a worker thread.
+     */
+    void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (channel.write(src) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+        lastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * Blocking zero-copy write of a file region, used by the response streams on a worker thread.
+     */
+    void transfer(FileChannel file, long position, long count) throws IOException {
+        // Pending bytes are flushed by the caller
+        final long end = position + count;
+        while (position < end) {
+            final long n = file.transferTo(position, end - position, channel);
+            if (n == 0) {
+                if (position >= file.size()) {
+                    throw new EOFException("Unexpected end of file");
+                }
+                await(SelectionKey.OP_WRITE);
+            }
+            position += n;
+        }
+        lastActive = System.currentTimeMillis();
+    }
+
+    private void await(int ops) throws IOException {
+        final Selector selector = server.borrowSelector();
+        try {
+            final SelectionKey k = channel.register(selector, ops);
+            try {
+                if (selector.select(server.getIoTimeout()) == 0) {
+                    throw new SocketTimeoutException("Socket " + (ops == SelectionKey.OP_READ ? "read" : "write") + " timeout");
+                }
+            } finally {
+                k.cancel();
+                selector.selectNow();
+            }
+        } finally {
+            server.returnSelector(selector);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (null != key) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    static final class RequestHead {
+        final String method;
+        final String uri;
+        final String protocol;
+        final Headers headers;
+
+        RequestHead(String method, String uri, String protocol, Headers headers) {
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.headers = headers;
+        }
+    }
+}
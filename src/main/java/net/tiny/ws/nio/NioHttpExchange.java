@@ -0,0 +1,758 @@
+package net.tiny.ws.nio;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import net.tiny.ws.Constants;
+import net.tiny.ws.FileTransfer;
+import net.tiny.ws.HttpDateFormat;
+
+/**
+ * The HTTP exchange of the NIO engine.
+ * The contract follows {@link HttpExchange}, the response length of <code>sendResponseHeaders</code>
+ * selects fixed length (&gt;0), chunked (0) or no body (-1).
+ */
+public final class NioHttpExchange extends HttpExchange {
+
+    private static final long MAX_DRAIN_SIZE = 64 * 1024L;
+
+    private final NioHttpContext context;
+    private final Connection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final ChannelOutputStream rawOut;
+    private final InputStream requestBody;
+    private final OutputStream placeholder;
+    private InputStream userIn;
+    private OutputStream userOut;
+    private OutputStream bodyOut;
+    private HttpPrincipal principal;
+    private int responseCode = -1;
+    private boolean keepAlive;
+    private boolean sentHeaders = false;
+    private boolean closed = false;
+    private boolean completed = false;
+    /** '100 Continue' not sent yet to a client waiting for it */
+    private boolean expectContinue;
+
+    NioHttpExchange(NioHttpContext context, Connection connection, Connection.RequestHead head, URI uri) {
+        this.context = context;
+        this.connection = connection;
+        this.method = head.method;
+        this.uri = uri;
+        this.protocol = head.protocol;
+        this.requestHeaders = head.headers;
+        this.rawOut = new ChannelOutputStream(connection);
+        this.placeholder = new PlaceholderOutputStream();
+        final String conn = requestHeaders.getFirst("Connection");
+        if ("HTTP/1.0".equals(protocol)) {
+            keepAlive = "keep-alive".equalsIgnoreCase(conn);
+        } else {
+            keepAlive = !"close".equalsIgnoreCase(conn);
+        }
+        expectContinue = !"HTTP/1.0".equals(protocol)
+                && "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+        final String encoding = requestHeaders.getFirst("Transfer-encoding");
+        if (null != encoding && "chunked".equalsIgnoreCase(encoding)) {
+            requestBody = new ChunkedInputStream(this, connection);
+        } else {
+            final String length = requestHeaders.getFirst("Content-length");
+            final long size = null == length ? 0L : Long.parseLong(length.trim());
+            if (size == 0L) {
+                // No body to wait for
+                expectContinue = false;
+            }
+            requestBody = new FixedLengthInputStream(this, connection, size);
+        }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return null != userIn ? userIn : requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return null != userOut ? userOut : placeholder;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (sentHeaders) {
+            throw new IOException("Headers already sent");
+        }
+        responseCode = rCode;
+        final boolean head = "HEAD".equals(method);
+        if (rCode < 200 || rCode == 204 || rCode == 304) {
+            if (responseLength != -1) {
+                NioHttpServer.LOGGER.warning(String.format("sendResponseHeaders: rCode = %d, forcing contentLen = -1", rCode));
+            }
+            responseHeaders.remove("Content-length");
+            bodyOut = new FixedLengthOutputStream(this, rawOut, 0L);
+        } else if (head) {
+            if (responseLength >= 0) {
+                NioHttpServer.LOGGER.warning("sendResponseHeaders: being invoked with a content length for a HEAD request");
+            }
+            bodyOut = new FixedLengthOutputStream(this, rawOut, 0L);
+        } else if (responseLength == 0) {
+            responseHeaders.remove("Content-length");
+            responseHeaders.set("Transfer-encoding", "chunked");
+            bodyOut = new ChunkedOutputStream(this, rawOut);
+        } else {
+            final long length = responseLength < 0 ? 0L : responseLength;
+            responseHeaders.set("Content-length", Long.toString(length));
+            bodyOut = new FixedLengthOutputStream(this, rawOut, length);
+        }
+        if (!keepAlive || "close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+            keepAlive = false;
+            responseHeaders.set("Connection", "close");
+        }
+        if (!responseHeaders.containsKey("Date")) {
+            responseHeaders.set("Date", HttpDateFormat.formatCurrentDate());
+        }
+
+        rawOut.writeAscii("HTTP/1.1 ");
+        rawOut.writeAscii(Integer.toString(rCode));
+        rawOut.writeAscii(" ");
+        rawOut.writeAscii(reason(rCode));
+        rawOut.writeAscii("\r\n");
+        for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+            for (String value : entry.getValue()) {
+                rawOut.writeAscii(entry.getKey());
+                rawOut.writeAscii(": ");
+                rawOut.writeAscii(null == value ? "" : value);
+                rawOut.writeAscii("\r\n");
+            }
+        }
+        rawOut.writeAscii("\r\n");
+        sentHeaders = true;
+        if (responseLength == -1 || head) {
+            rawOut.flush();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        try {
+            return (InetSocketAddress) connection.channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) connection.channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (null == value) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (null != i) {
+            userIn = i;
+        }
+        if (null != o) {
+            userOut = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return principal;
+    }
+
+    void setPrincipal(HttpPrincipal principal) {
+        this.principal = principal;
+    }
+
+    boolean isSentHeaders() {
+        return sentHeaders;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (sentHeaders) {
+                getResponseBody().close();
+            }
+        } catch (IOException e) {
+            keepAlive = false;
+        } finally {
+            complete();
+        }
+    }
+
+    /**
+     * Finish the exchange, the connection is given back to the selector if it can be reused.
+     */
+    void complete() {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        boolean reuse = keepAlive && sentHeaders && !connection.isClosed();
+        try {
+            if (reuse) {
+                reuse = drain();
+            }
+            if (sentHeaders) {
+                rawOut.flush();
+            }
+        } catch (IOException e) {
+            reuse = false;
+        }
+        context.server().finish(connection, reuse);
+    }
+
+    /**
+     * Answer '100 Continue' when the body is first read, a client sending 'Expect: 100-continue'
+     * waits for it before the body.
+     */
+    void continueBody() throws IOException {
+        if (!expectContinue) {
+            return;
+        }
+        expectContinue = false;
+        if (!sentHeaders) {
+            rawOut.writeAscii("HTTP/1.1 100 Continue\r\n\r\n");
+            rawOut.flush();
+        }
+    }
+
+    private boolean drain() throws IOException {
+        if (expectContinue) {
+            // The client may not send the body it was not asked for
+            return false;
+        }
+        final byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
+        long total = 0L;
+        int n;
+        while ((n = requestBody.read(buffer, 0, buffer.length)) > 0) {
+            total += n;
+            if (total > MAX_DRAIN_SIZE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void abort() {
+        keepAlive = false;
+    }
+
+    static String reason(int code) {
+        switch (code) {
+        case 100: return "Continue";
+        case 200: return "OK";
+        case 201: return "Created";
+        case 202: return "Accepted";
+        case 204: return "No Content";
+        case 206: return "Partial Content";
+        case 301: return "Moved Permanently";
+        case 302: return "Found";
+        case 303: return "See Other";
+        case 304: return "Not Modified";
+        case 307: return "Temporary Redirect";
+        case 400: return "Bad Request";
+        case 401: return "Unauthorized";
+        case 403: return "Forbidden";
+        case 404: return "Not Found";
+        case 405: return "Method Not Allowed";
+        case 408: return "Request Timeout";
+        case 411: return "Length Required";
+        case 412: return "Precondition Failed";
+        case 413: return "Payload Too Large";
+        case 416: return "Range Not Satisfiable";
+        case 431: return "Request Header Fields Too Large";
+        case 500: return "Internal Server Error";
+        case 501: return "Not Implemented";
+        case 503: return "Service Unavailable";
+        default:  return code < 400 ? "OK" : "Error";
+        }
+    }
+
+    /**
+     * Buffered output directly written to the connection channel.
+     */
+    static final class ChannelOutputStream extends OutputStream {
+        private final Connection connection;
+        private final ByteBuffer buffer = ByteBuffer.allocate(Constants.DEFAULT_BUFFER_SIZE);
+
+        ChannelOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        void writeAscii(String text) throws IOException {
+            final int len = text.length();
+            for (int i = 0; i < len; i++) {
+                if (!buffer.hasRemaining()) {
+                    flushBuffer();
+                }
+                buffer.put((byte) text.charAt(i));
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buffer.capacity()) {
+                flushBuffer();
+                connection.write(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+            if (len > buffer.remaining()) {
+                flushBuffer();
+            }
+            buffer.put(b, off, len);
+        }
+
+        /**
+         * Write a buffer after the pending bytes without copying it.
+         */
+        void write(ByteBuffer src) throws IOException {
+            flushBuffer();
+            connection.write(src);
+        }
+
+        /**
+         * Send a file region after the pending bytes without copying it.
+         */
+        void transfer(FileChannel file, long position, long count) throws IOException {
+            flushBuffer();
+            connection.transfer(file, position, count);
+        }
+
+        private void flushBuffer() throws IOException {
+            if (buffer.position() > 0) {
+                buffer.flip();
+                try {
+                    connection.write(buffer);
+                } finally {
+                    buffer.clear();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+    }
+
+    static final class FixedLengthOutputStream extends FilterOutputStream implements FileTransfer {
+        private final NioHttpExchange exchange;
+        private final ChannelOutputStream channel;
+        private long remaining;
+        private boolean eof = false;
+
+        FixedLengthOutputStream(NioHttpExchange exchange, ChannelOutputStream out, long length) {
+            super(out);
+            this.exchange = exchange;
+            this.channel = out;
+            this.remaining = length;
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            if (eof) {
+                throw new IOException("Stream closed");
+            }
+            if (count > remaining) {
+                throw new IOException("Too many bytes to write to stream");
+            }
+            try {
+                channel.transfer(file, position, count);
+            } catch (IOException e) {
+                exchange.abort();
+                throw e;
+            }
+            remaining -= count;
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            if (eof) {
+                throw new IOException("Stream closed");
+            }
+            final int count = src.remaining();
+            if (count > remaining) {
+                throw new IOException("Too many bytes to write to stream");
+            }
+            channel.write(src);
+            remaining -= count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (eof) {
+                throw new IOException("Stream closed");
+            }
+            if (remaining == 0) {
+                throw new IOException("Too many bytes to write to stream");
+            }
+            out.write(b);
+            remaining--;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                throw new IOException("Stream closed");
+            }
+            if (len > remaining) {
+                throw new IOException("Too many bytes to write to stream");
+            }
+            out.write(b, off, len);
+            remaining -= len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (eof) {
+                return;
+            }
+            eof = true;
+            if (remaining > 0) {
+                exchange.abort();
+                throw new IOException("Insufficient bytes written to stream");
+            }
+            out.flush();
+            exchange.complete();
+        }
+    }
+
+    static final class ChunkedOutputStream extends OutputStream {
+        private static final byte[] CRLF = {'\r', '\n'};
+        private final NioHttpExchange exchange;
+        private final ChannelOutputStream out;
+        private final byte[] chunk = new byte[Constants.DEFAULT_BUFFER_SIZE];
+        private int count = 0;
+        private boolean eof = false;
+
+        ChunkedOutputStream(NioHttpExchange exchange, ChannelOutputStream out) {
+            this.exchange = exchange;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (eof) {
+                throw new IOException("Stream closed");
+            }
+            chunk[count++] = (byte) b;
+            if (count == chunk.length) {
+                writeChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                throw new IOException("Stream closed");
+            }
+            while (len > 0) {
+                final int n = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == chunk.length) {
+                    writeChunk();
+                }
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            out.writeAscii(Integer.toHexString(count));
+            out.write(CRLF, 0, 2);
+            out.write(chunk, 0, count);
+            out.write(CRLF, 0, 2);
+            count = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (eof) {
+                throw new IOException("Stream closed");
+            }
+            writeChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (eof) {
+                return;
+            }
+            writeChunk();
+            out.writeAscii("0\r\n\r\n");
+            out.flush();
+            eof = true;
+            exchange.complete();
+        }
+    }
+
+    final class PlaceholderOutputStream extends OutputStream implements FileTransfer {
+        private OutputStream body() throws IOException {
+            if (null == bodyOut) {
+                throw new IOException("Response headers not sent yet");
+            }
+            return bodyOut;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            body().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            body().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            body().flush();
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            final OutputStream out = body();
+            if (out instanceof FileTransfer) {
+                ((FileTransfer) out).transferFrom(file, position, count);
+                return;
+            }
+            // Chunked body, copy through a buffer
+            final ByteBuffer buffer = ByteBuffer.allocate(Constants.DEFAULT_BUFFER_SIZE);
+            final long end = position + count;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                final int n = file.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                out.write(buffer.array(), 0, n);
+                position += n;
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            final OutputStream out = body();
+            if (out instanceof FileTransfer) {
+                ((FileTransfer) out).write(src);
+                return;
+            }
+            final byte[] chunk = new byte[Math.min(src.remaining(), Constants.DEFAULT_BUFFER_SIZE)];
+            while (src.hasRemaining()) {
+                final int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (null != bodyOut) {
+                bodyOut.close();
+            }
+        }
+    }
+
+    static final class FixedLengthInputStream extends InputStream {
+        private final NioHttpExchange exchange;
+        private final Connection connection;
+        private long remaining;
+
+        FixedLengthInputStream(NioHttpExchange exchange, Connection connection, long length) {
+            this.exchange = exchange;
+            this.connection = connection;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            exchange.continueBody();
+            final int c = connection.read();
+            if (c >= 0) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            exchange.continueBody();
+            final int n = connection.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        /**
+         * @return the bytes of the body already buffered, read without blocking
+         */
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, connection.available());
+        }
+    }
+
+    static final class ChunkedInputStream extends InputStream {
+        private final Connection connection;
+        private long remaining = 0L;
+        private boolean eof = false;
+        private final NioHttpExchange exchange;
+
+        ChunkedInputStream(NioHttpExchange exchange, Connection connection) {
+            this.exchange = exchange;
+            this.connection = connection;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof) {
+                return false;
+            }
+            exchange.continueBody();
+            if (remaining == 0) {
+                String line = connection.readLine();
+                final int ext = line.indexOf(';');
+                if (ext >= 0) {
+                    line = line.substring(0, ext);
+                }
+                try {
+                    remaining = Long.parseLong(line.trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad chunk size '" + line + "'");
+                }
+                if (remaining == 0) {
+                    // Skip trailers
+                    while (!connection.readLine().isEmpty()) {
+                    }
+                    eof = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            final int c = connection.read();
+            if (c >= 0 && --remaining == 0) {
+                connection.readLine();
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            final int n = connection.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+                if (remaining == 0) {
+                    connection.readLine();
+                }
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package net.tiny.ws.nio;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A non-blocking HTTP/1.1 server engine based on {@link Selector}.
+ *
+ * The dispatcher thread accepts connections and reads request heads without blocking,
+ * so idle keep-alive connections and slow clients never hold an executor thread.
+ * Complete requests are handed to the executor and run through the usual
+ * {@link Filter} chain and {@link HttpHandler} of the matching context.
+ * With several acceptors each listener is bound to the same port with SO_REUSEPORT
+ * and the kernel spreads new connections over their dispatcher threads.
+ *
+ * <code>
+ *  HttpServer server = NioHttpServer.create(new InetSocketAddress(8080), 10);
+ *  server.createContext("/health", new VoidHttpHandler());
+ *  server.setExecutor(Executors.newCachedThreadPool());
+ *  server.start();
+ * </code>
+ */
+public class NioHttpServer extends HttpServer {
+
+    static final Logger LOGGER = Logger.getLogger(NioHttpServer.class.getName());
+
+    private static final long SELECT_TIMEOUT = 1000L;
+    private static final long DEFAULT_IDLE_TIMEOUT = 30000L;
+    private static final long DEFAULT_IO_TIMEOUT = 30000L;
+
+    private final int acceptors;
+    private final List<Dispatcher> dispatchers = new ArrayList<>();
+    private final List<NioHttpContext> contexts = new CopyOnWriteArrayList<>();
+    private final Queue<Selector> selectors = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger exchanges = new AtomicInteger();
+    private Executor executor;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private long ioTimeout = DEFAULT_IO_TIMEOUT;
+    private volatile boolean started = false;
+    private volatile boolean stopping = false;
+    private volatile boolean terminating = false;
+
+    public NioHttpServer() {
+        this(1);
+    }
+
+    /**
+     * @param acceptors number of listeners bound to the same port with SO_REUSEPORT,
+     *                  each one has its own dispatcher thread
+     */
+    public NioHttpServer(int acceptors) {
+        if (acceptors < 1) {
+            throw new IllegalArgumentException("Illegal number of acceptors " + acceptors);
+        }
+        this.acceptors = acceptors;
+    }
+
+    public static NioHttpServer create(InetSocketAddress address, int backlog) throws IOException {
+        return create(address, backlog, 1);
+    }
+
+    public static NioHttpServer create(InetSocketAddress address, int backlog, int acceptors) throws IOException {
+        NioHttpServer server = new NioHttpServer(acceptors);
+        if (null != address) {
+            server.bind(address, backlog);
+        }
+        return server;
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (!dispatchers.isEmpty()) {
+            throw new BindException("HttpServer already bound");
+        }
+        if (null == address) {
+            throw new NullPointerException("null address");
+        }
+        try {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            dispatchers.add(new Dispatcher(channel));
+            SocketOption<Boolean> reusePort = null;
+            if (acceptors > 1) {
+                reusePort = reusePortOption(channel);
+                if (null == reusePort) {
+                    LOGGER.warning(String.format("[NIO] SO_REUSEPORT not supported, use 1 acceptor instead of %d.", acceptors));
+                }
+            }
+            bind(channel, address, backlog, reusePort);
+            if (null != reusePort) {
+                // Same port even if the first one was an ephemeral port
+                final InetSocketAddress bound = new InetSocketAddress(address.getAddress(),
+                        ((InetSocketAddress) channel.getLocalAddress()).getPort());
+                for (int i = 1; i < acceptors; i++) {
+                    channel = ServerSocketChannel.open();
+                    dispatchers.add(new Dispatcher(channel));
+                    bind(channel, bound, backlog, reusePort);
+                }
+            }
+        } catch (IOException e) {
+            for (Dispatcher dispatcher : dispatchers) {
+                dispatcher.closeServerChannel();
+            }
+            dispatchers.clear();
+            throw e;
+        }
+    }
+
+    private static void bind(ServerSocketChannel channel, InetSocketAddress address, int backlog,
+            SocketOption<Boolean> reusePort) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (null != reusePort) {
+            channel.setOption(reusePort, true);
+        }
+        channel.bind(address, backlog);
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Lookup SO_REUSEPORT by name, the option is not defined before Java 9.
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> reusePortOption(ServerSocketChannel channel) {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if ("SO_REUSEPORT".equals(option.name())) {
+                return (SocketOption<Boolean>) option;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void start() {
+        if (dispatchers.isEmpty() || started) {
+            throw new IllegalStateException("server in wrong state");
+        }
+        final int port = getAddress().getPort();
+        try {
+            for (int i = 0; i < dispatchers.size(); i++) {
+                dispatchers.get(i).open("nio-http-dispatcher:" + port + "-" + i);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        started = true;
+        for (Dispatcher dispatcher : dispatchers) {
+            dispatcher.thread.start();
+        }
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (started) {
+            throw new IllegalStateException("server already started");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void setIdleTimeout(long millis) {
+        idleTimeout = millis;
+    }
+
+    public void setIoTimeout(long millis) {
+        ioTimeout = millis;
+    }
+
+    long getIoTimeout() {
+        return ioTimeout;
+    }
+
+    /**
+     * Number of listeners bound to the server port.
+     */
+    public int getAcceptors() {
+        return dispatchers.size();
+    }
+
+    /**
+     * Number of exchanges which are being processed.
+     */
+    public int getActiveExchanges() {
+        return exchanges.get();
+    }
+
+    @Override
+    public void stop(int delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("negative delay parameter");
+        }
+        stopping = true;
+        if (!started) {
+            for (Dispatcher dispatcher : dispatchers) {
+                dispatcher.closeServerChannel();
+            }
+            return;
+        }
+        for (Dispatcher dispatcher : dispatchers) {
+            dispatcher.execute(dispatcher::closeServerChannel);
+        }
+        final long deadline = System.currentTimeMillis() + delay * 1000L;
+        try {
+            while (exchanges.get() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            terminating = true;
+            for (Dispatcher dispatcher : dispatchers) {
+                dispatcher.selector.wakeup();
+            }
+            for (Dispatcher dispatcher : dispatchers) {
+                dispatcher.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Selector s;
+            while ((s = selectors.poll()) != null) {
+                try {
+                    s.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        if (null == path || !path.startsWith("/")) {
+            throw new IllegalArgumentException("Illegal value for path");
+        }
+        for (NioHttpContext context : contexts) {
+            if (context.getPath().equals(path)) {
+                throw new IllegalArgumentException("cannot add context to list");
+            }
+        }
+        NioHttpContext context = new NioHttpContext(this, path, handler);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) throws IllegalArgumentException {
+        for (NioHttpContext context : contexts) {
+            if (context.getPath().equals(path)) {
+                contexts.remove(context);
+                return;
+            }
+        }
+        throw new IllegalArgumentException("cannot remove element from list");
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        if (!contexts.remove(context)) {
+            throw new IllegalArgumentException("cannot remove element from list");
+        }
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) dispatchers.get(0).serverChannel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Longest prefix match as the default JDK server does.
+     */
+    NioHttpContext findContext(String path) {
+        NioHttpContext found = null;
+        for (NioHttpContext context : contexts) {
+            final String prefix = context.getPath();
+            if (path.startsWith(prefix)
+                    && (null == found || prefix.length() > found.getPath().length())) {
+                found = context;
+            }
+        }
+        return found;
+    }
+
+    private void handle(NioHttpExchange exchange) {
+        final NioHttpContext context = (NioHttpContext) exchange.getHttpContext();
+        try {
+            List<Filter> filters = context.getFilters();
+            final Authenticator auth = context.getAuthenticator();
+            if (null != auth) {
+                filters = new ArrayList<>(filters);
+                filters.add(new AuthFilter(auth));
+            }
+            new Filter.Chain(filters, context.getHandler()).doFilter(exchange);
+        } catch (Throwable e) {
+            LOGGER.log(Level.WARNING, String.format("[NIO] Handler error '%s' : %s",
+                    exchange.getRequestURI(), e.getMessage()), e);
+            exchange.abort();
+            if (!exchange.isSentHeaders()) {
+                try {
+                    exchange.sendResponseHeaders(500, -1);
+                } catch (IOException ignore) {
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Called by a worker thread when an exchange finished.
+     */
+    void finish(final Connection connection, boolean reuse) {
+        exchanges.decrementAndGet();
+        if (!reuse || stopping) {
+            connection.close();
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+        connection.dispatcher.requeue(connection);
+    }
+
+    Selector borrowSelector() throws IOException {
+        final Selector s = selectors.poll();
+        return null != s ? s : Selector.open();
+    }
+
+    void returnSelector(Selector s) {
+        if (terminating) {
+            try {
+                s.close();
+            } catch (IOException ignore) {
+            }
+        } else {
+            selectors.offer(s);
+        }
+    }
+
+    /**
+     * A listener with its own selector thread.
+     */
+    final class Dispatcher implements Runnable {
+        final ServerSocketChannel serverChannel;
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        Selector selector;
+        Thread thread;
+
+        Dispatcher(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+        }
+
+        void open(String name) throws IOException {
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            thread = new Thread(this, name);
+        }
+
+        void execute(Runnable task) {
+            pending.add(task);
+            selector.wakeup();
+        }
+
+        void closeServerChannel() {
+            try {
+                serverChannel.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (!terminating) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                    Runnable task;
+                    while ((task = pending.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isAcceptable()) {
+                                accept();
+                            } else if (key.isReadable()) {
+                                read((Connection) key.attachment());
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Closed by a worker thread
+                        }
+                    }
+                    final long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SELECT_TIMEOUT) {
+                        closeIdleConnections(now);
+                        lastSweep = now;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, String.format("[NIO] Dispatcher error : %s", e.getMessage()), e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Connection connection = new Connection(NioHttpServer.this, this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    channel.close();
+                }
+            }
+        }
+
+        private void read(Connection connection) {
+            try {
+                if (connection.fill() < 0) {
+                    connection.close();
+                    return;
+                }
+            } catch (IOException e) {
+                connection.close();
+                return;
+            }
+            dispatch(connection);
+        }
+
+        /**
+         * @return true if the connection was handed over, false if more bytes are required
+         */
+        private boolean dispatch(Connection connection) {
+            final Connection.RequestHead head;
+            try {
+                head = connection.parseHead();
+            } catch (IllegalArgumentException e) {
+                reject(connection, 400);
+                return true;
+            }
+            if (null == head) {
+                if (connection.isHeadOverflow()) {
+                    reject(connection, 431);
+                    return true;
+                }
+                return false;
+            }
+            connection.key.interestOps(0);
+
+            final URI uri;
+            final NioHttpExchange exchange;
+            try {
+                uri = new URI(head.uri);
+                final NioHttpContext context = findContext(null == uri.getPath() ? "/" : uri.getPath());
+                if (null == context || null == context.getHandler()) {
+                    reject(connection, 404);
+                    return true;
+                }
+                exchange = new NioHttpExchange(context, connection, head, uri);
+            } catch (URISyntaxException | NumberFormatException e) {
+                reject(connection, 400);
+                return true;
+            }
+
+            exchanges.incrementAndGet();
+            final Runnable task = () -> handle(exchange);
+            try {
+                if (null == executor) {
+                    task.run();
+                } else {
+                    executor.execute(task);
+                }
+            } catch (RejectedExecutionException e) {
+                exchanges.decrementAndGet();
+                LOGGER.warning(String.format("[NIO] Rejected request '%s' : %s", head.uri, e.getMessage()));
+                reject(connection, 503);
+            }
+            return true;
+        }
+
+        void requeue(final Connection connection) {
+            execute(() -> {
+                if (!connection.isClosed() && !dispatch(connection)) {
+                    try {
+                        connection.key.interestOps(SelectionKey.OP_READ);
+                    } catch (CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+            });
+        }
+
+        private void reject(Connection connection, int code) {
+            final String response = "HTTP/1.1 " + code + " " + NioHttpExchange.reason(code)
+                    + "\r\nContent-length: 0\r\nConnection: close\r\n\r\n";
+            try {
+                connection.channel.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+            } catch (IOException ignore) {
+            }
+            connection.close();
+        }
+
+        private void closeIdleConnections(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() instanceof Connection) {
+                    final Connection connection = (Connection) key.attachment();
+                    if (key.interestOps() == SelectionKey.OP_READ
+                            && now - connection.lastActive > idleTimeout) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    static final class AuthFilter extends Filter {
+        private final Authenticator authenticator;
+
+        AuthFilter(Authenticator authenticator) {
+            this.authenticator = authenticator;
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            final Authenticator.Result result = authenticator.authenticate(exchange);
+            if (result instanceof Authenticator.Success) {
+                ((NioHttpExchange) exchange).setPrincipal(((Authenticator.Success) result).getPrincipal());
+                chain.doFilter(exchange);
+            } else if (result instanceof Authenticator.Retry) {
+                exchange.sendResponseHeaders(((Authenticator.Retry) result).getResponseCode(), -1);
+            } else if (result instanceof Authenticator.Failure) {
+                exchange.sendResponseHeaders(((Authenticator.Failure) result).getResponseCode(), -1);
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Authentication filter";
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package net.tiny.ws.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsServer;
+import com.sun.net.httpserver.spi.HttpServerProvider;
+
+/**
+ * Provider of the NIO engine.
+ * Can also be installed JVM wide with
+ * <code>-Dcom.sun.net.httpserver.HttpServerProvider=net.tiny.ws.nio.NioHttpServerProvider</code>
+ */
+public class NioHttpServerProvider extends HttpServerProvider {
+
+    private final int acceptors;
+
+    public NioHttpServerProvider() {
+        this(1);
+    }
+
+    public NioHttpServerProvider(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    @Override
+    public HttpServer createHttpServer(InetSocketAddress address, int backlog) throws IOException {
+        return NioHttpServer.create(address, backlog, acceptors);
+    }
+
+    /**
+     * Not reached from <code>EmbeddedServer</code>, its builder refuses HTTPS with this engine.
+     */
+    @Override
+    public HttpsServer createHttpsServer(InetSocketAddress address, int backlog) throws IOException {
+        throw new UnsupportedOperationException("The NIO engine does not support HTTPS.");
+    }
+}
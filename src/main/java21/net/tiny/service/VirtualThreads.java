@@ -0,0 +1,19 @@
+package net.tiny.service;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual thread support of the running JVM (Java 21 and later).
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static ThreadFactory factory(String prefix) {
+        return Thread.ofVirtual().name(prefix, 0L).factory();
+    }
+}
@@ -0,0 +1,69 @@
+package net.tiny.service;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class VirtualThreadExecutorTest {
+
+    @Test
+    public void testManyBlockingTasks() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor();
+        System.out.println(executor.toString());
+        final int num = 1000;
+        final CountDownLatch latch = new CountDownLatch(num);
+        final AtomicInteger counter = new AtomicInteger();
+        for (int i=0; i<num; i++) {
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                }
+                counter.incrementAndGet();
+                latch.countDown();
+            });
+        }
+        assertTrue(latch.await(10L, TimeUnit.SECONDS));
+        assertEquals(num, counter.get());
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1L, TimeUnit.SECONDS));
+        assertTrue(executor.isTerminated());
+    }
+
+    @Test
+    public void testPauseResume() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor();
+        final AtomicInteger counter = new AtomicInteger();
+        executor.pause();
+        assertTrue(executor.isPaused());
+        for (int i=0; i<10; i++) {
+            executor.execute(() -> counter.incrementAndGet());
+        }
+        Thread.sleep(100L);
+        assertEquals(0, counter.get());
+        assertEquals(10, executor.getActiveCount());
+
+        executor.resume();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1L, TimeUnit.SECONDS));
+        assertEquals(10, counter.get());
+    }
+
+    @Test
+    public void testThreadNotStarted() throws Exception {
+        VirtualThreadExecutor executor = new VirtualThreadExecutor(r -> {
+            throw new IllegalStateException("No thread");
+        });
+        assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> {}));
+        assertEquals(0, executor.getActiveCount());
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1L, TimeUnit.SECONDS));
+    }
+}
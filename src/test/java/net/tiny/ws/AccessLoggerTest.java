@@ -1,62 +1,275 @@
-package net.tiny.ws;
-
-import static org.junit.jupiter.api.Assertions.assertEquals;
-
-import java.text.MessageFormat;
-
-import org.junit.jupiter.api.Test;
-
-import net.tiny.benchmark.Benchmarker;
-
-public class AccessLoggerTest {
-
-    @Test
-    public void testLogFormat() throws Exception {
-        AccessLogger logger = new AccessLogger();
-        assertEquals("Access log filter", logger.description());
-
-        logger.setFormat("COMBINED");
-        assertEquals("COMBINED", logger.getFormat());
-        assertEquals("{0} {1} {2} {3} {4} \"{5}\" {6} {7} \"{8}\" \"{9}\"", logger.getFormatPattern());
-
-        assertEquals("{0} {1} {2} {3} {4} \"{5}\" {6} {7} \"{8}\" \"{9}\"",
-                AccessLogger.getPattern(AccessLogger.COMBINED_FORMAT));
-
-        String log = MessageFormat.format(AccessLogger.getPattern(AccessLogger.COMBINED_FORMAT),
-                "127.0.0.1", "-", "hogo", "30/Jun/2019:11:57:39 +0900", "12", "GET", "200", "420", "/index.html", "Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1; SV1)");
-        assertEquals("127.0.0.1 - hogo 30/Jun/2019:11:57:39 +0900 12 \"GET\" 200 420 \"/index.html\" \"Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1; SV1)\"", log);
-    }
-
-    @Test
-    public void testBenchmarkMessageFormat() throws Exception {
-        AccessLogger logger = new AccessLogger();
-        String pattern = AccessLogger.getPattern(AccessLogger.COMBINED_FORMAT);
-        Benchmarker bench = new Benchmarker();
-        bench.start(10000L, 1000L);
-        while (bench.loop()) {
-            bench.trace(System.out);
-            MessageFormat.format(pattern,
-                    "127.0.0.1", "-", "hogo", "30/Jun/2019:11:57:39 +0900", "12", "GET", "200", "420", "/index.html", "Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1; SV1)");
-        }
-        bench.stop();
-        //Summary ETA:66ms 459889ns MIPS:0.241 0.004ms/per min:51.520K/s max:395.396K/s avg:237.786K/s mean:197.736K/s count:10000 lost:4ms 665661ns
-        bench.metric(System.out);
-    }
-
-    @Test
-    public void testBenchmarkWriteLog() throws Exception {
-        AccessLogger logger = new AccessLogger();
-        String pattern = AccessLogger.getPattern(AccessLogger.COMBINED_FORMAT);
-        Benchmarker bench = new Benchmarker();
-        bench.start(10000L, 1000L);
-        while (bench.loop()) {
-            bench.trace(System.out);
-            String log = MessageFormat.format(pattern,
-                    "127.0.0.1", "-", "hogo", "30/Jun/2019:11:57:39 +0900", "12", "GET", "200", "420", "/index.html", "Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1; SV1)");
-            logger.writeAccessLog(log);
-        }
-        bench.stop();
-        //Summary ETA:331ms 586904ns MIPS:0.034 0.029ms/per min:14.924K/s max:44.621K/s avg:33.116K/s mean:31.795K/s count:10000 lost:6ms 614539ns
-        bench.metric(System.out);
-    }
-}
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.Headers;
+
+import net.tiny.benchmark.Benchmarker;
+
+public class AccessLoggerTest {
+
+    @Test
+    public void testLogFormat() throws Exception {
+        AccessLogger logger = new AccessLogger();
+        assertEquals("Access log filter", logger.description());
+
+        logger.setFormat("COMBINED");
+        assertEquals("COMBINED", logger.getFormat());
+        assertEquals("{0} {1} {2} {3} {4} \"{5}\" {6} {7} \"{8}\" \"{9}\"", logger.getFormatPattern());
+
+        assertEquals("{0} {1} {2} {3} {4} \"{5}\" {6} {7} \"{8}\" \"{9}\"",
+                AccessLogger.getPattern(AccessLogger.COMBINED_FORMAT));
+
+        String log = MessageFormat.format(AccessLogger.getPattern(AccessLogger.COMBINED_FORMAT),
+                "127.0.0.1", "-", "hogo", "30/Jun/2019:11:57:39 +0900", "12", "GET", "200", "420", "/index.html", "Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1; SV1)");
+        assertEquals("127.0.0.1 - hogo 30/Jun/2019:11:57:39 +0900 12 \"GET\" 200 420 \"/index.html\" \"Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1; SV1)\"", log);
+    }
+
+    @Test
+    public void testLogTemplate() throws Exception {
+        AccessLogRing.Record record = new AccessLogRing.Record();
+        record.remote = new InetSocketAddress("127.0.0.1", 12345);
+        record.method = "GET";
+        record.uri = URI.create("/index.html?q=1");
+        record.protocol = "HTTP/1.1";
+        record.status = 200;
+        record.requestHeaders = new Headers();
+        record.requestHeaders.set("User-agent", "Mozilla/4.0");
+        record.requestHeaders.set("Content-length", "12");
+        record.responseHeaders = new Headers();
+        record.responseHeaders.set("Content-length", "420");
+        record.responseHeaders.set("X-Request-Id", "abc");
+        record.time = 1561863459000L;
+        record.elapsed = TimeUnit.MICROSECONDS.toNanos(12345L);
+        final String date = HttpDateFormat.formatAccessLog(record.time);
+
+        AccessLogTemplate template = AccessLogTemplate.compile(AccessLogger.COMBINED_FORMAT);
+        assertEquals("127.0.0.1 - - " + date + " 0.012 \"GET /index.html?q=1 HTTP/1.1\" 200 420 \"-\" \"Mozilla/4.0\"",
+                template.format(record));
+
+        template = AccessLogTemplate.compile("%a %m %U%q %H %s %D %I %O %{X-Request-Id}o %{X-None}o 100%%");
+        assertEquals("127.0.0.1 GET /index.html?q=1 HTTP/1.1 200 12345 12 420 abc - 100%", template.format(record));
+
+        StringBuilder out = new StringBuilder();
+        template.write(record, out);
+        template.write(record, out);
+        assertEquals(2 * template.format(record).length(), out.length());
+
+        // Phases unknown without metrics
+        assertEquals("q=- f=- h=- c=- -", AccessLogTemplate.compile("%Z %{handler}Z").format(record));
+        record.queue = 1000L;
+        record.filters = 2000L;
+        record.handler = 30000L;
+        record.close = 4000L;
+        assertEquals("q=1 f=2 h=30 c=4 30", AccessLogTemplate.compile("%Z %{handler}Z").format(record));
+
+        assertThrows(IllegalArgumentException.class, () -> AccessLogTemplate.compile("%h %Y"));
+        assertThrows(IllegalArgumentException.class, () -> AccessLogTemplate.compile("%{none}Z"));
+        assertThrows(IllegalArgumentException.class, () -> AccessLogTemplate.compile("%{Referer"));
+        assertThrows(IllegalArgumentException.class, () -> AccessLogTemplate.compile("%h %"));
+
+        AccessLogger logger = new AccessLogger();
+        logger.setFormat("common");
+        assertEquals("COMMON", logger.getFormat());
+        assertEquals(AccessLogger.COMMON_FORMAT, logger.getLogFormat());
+        logger.setLogFormat("%h %D");
+        assertEquals("{0} %D", logger.getFormatPattern());
+        assertEquals("%h %D", logger.getLogFormat());
+    }
+
+    @Test
+    public void testBenchmarkMessageFormat() throws Exception {
+        AccessLogger logger = new AccessLogger();
+        String pattern = AccessLogger.getPattern(AccessLogger.COMBINED_FORMAT);
+        Benchmarker bench = new Benchmarker();
+        bench.start(10000L, 1000L);
+        while (bench.loop()) {
+            bench.trace(System.out);
+            MessageFormat.format(pattern,
+                    "127.0.0.1", "-", "hogo", "30/Jun/2019:11:57:39 +0900", "12", "GET", "200", "420", "/index.html", "Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1; SV1)");
+        }
+        bench.stop();
+        //Summary ETA:66ms 459889ns MIPS:0.241 0.004ms/per min:51.520K/s max:395.396K/s avg:237.786K/s mean:197.736K/s count:10000 lost:4ms 665661ns
+        bench.metric(System.out);
+    }
+
+    @Test
+    public void testBenchmarkWriteLog() throws Exception {
+        AccessLogger logger = new AccessLogger();
+        String pattern = AccessLogger.getPattern(AccessLogger.COMBINED_FORMAT);
+        Benchmarker bench = new Benchmarker();
+        bench.start(10000L, 1000L);
+        while (bench.loop()) {
+            bench.trace(System.out);
+            String log = MessageFormat.format(pattern,
+                    "127.0.0.1", "-", "hogo", "30/Jun/2019:11:57:39 +0900", "12", "GET", "200", "420", "/index.html", "Mozilla/4.0 (compatible; MSIE 6.0; Windows NT 5.1; SV1)");
+            logger.writeAccessLog(log);
+        }
+        bench.stop();
+        //Summary ETA:331ms 586904ns MIPS:0.034 0.029ms/per min:14.924K/s max:44.621K/s avg:33.116K/s mean:31.795K/s count:10000 lost:6ms 614539ns
+        bench.metric(System.out);
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        AccessLogger logger = new AccessLogger();
+        StringWriter out = new StringWriter();
+        logger.setLogger(out);
+        logger.setFormat("COMMON");
+        logger.setAsync(true);
+        EmbeddedServer server = start(logger);
+        for (int i = 0; i < 20; i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/json").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        }
+        server.stop();
+        server.awaitTermination();
+        logger.close();
+
+        String[] lines = out.toString().split(System.lineSeparator());
+        assertEquals(20, lines.length);
+        assertTrue(lines[0].matches("127\\.0\\.0\\.1 - - \\[.+\\] \"GET /json HTTP/1\\.1\" 200 16"), lines[0]);
+        assertEquals(0L, logger.getDropped());
+
+        // Closed and used again by a restarted server
+        server = start(logger);
+        for (int i = 0; i < 5; i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/json").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        }
+        server.stop();
+        server.awaitTermination();
+        logger.close();
+        assertEquals(25, out.toString().split(System.lineSeparator()).length);
+    }
+
+    @Test
+    public void testAsyncFailure() throws Exception {
+        AccessLogger logger = new AccessLogger();
+        // A sink failing on every line
+        logger.setLogger(new PrintWriter(new StringWriter()) {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                throw new IllegalStateException("Log not writable");
+            }
+        });
+        logger.setAsync(true);
+        logger.setBufferSize(4);
+        EmbeddedServer server = start(logger);
+        for (int i = 0; i < 20; i++) {
+            // The request threads never wait for a dead writer
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/json").openConnection();
+            conn.setReadTimeout(5000);
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        }
+        // The writer is still consuming and no request thread is stuck in the filter
+        for (int i = 0; i < 100 && (logger.getPending() > 0L || server.getInflight().getActive() > 0); i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(0L, logger.getPending());
+        assertEquals(0, server.getInflight().getActive());
+        server.stop();
+        server.awaitTermination();
+        logger.close();
+    }
+
+    @Test
+    public void testAsyncDrop() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final StringBuilder lines = new StringBuilder();
+        AccessLogger logger = new AccessLogger();
+        // A writer stalled on flush
+        logger.setLogger(new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                lines.append(cbuf, off, len);
+            }
+            @Override
+            public void flush() throws IOException {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            @Override
+            public void close() {
+            }
+        });
+        logger.setAsync(true);
+        logger.setBufferSize(4);
+        logger.setPolicy("drop");
+        assertEquals("DROP", logger.getPolicy());
+        EmbeddedServer server = start(logger);
+        for (int i = 0; i < 20; i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/json").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        }
+        assertTrue(logger.getDropped() > 0L);
+        latch.countDown();
+        server.stop();
+        server.awaitTermination();
+        logger.close();
+
+        final int written = lines.toString().split(System.lineSeparator()).length;
+        assertEquals(20L, written + logger.getDropped());
+    }
+
+    @Test
+    public void testLogFile() throws Exception {
+        File dir = Files.createTempDirectory("tiny-access").toFile();
+        AccessLogger logger = new AccessLogger();
+        logger.setFile(new File(dir, "access.log").getPath());
+        logger.setMaxSize(1000L);
+        logger.setMapped(true);
+        logger.setAsync(true);
+        EmbeddedServer server = start(logger);
+        for (int i = 0; i < 30; i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + server.port() + "/json").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        }
+        server.stop();
+        server.awaitTermination();
+        logger.close();
+
+        File[] files = dir.listFiles();
+        assertTrue(files.length > 1);
+        int lines = 0;
+        for (File file : files) {
+            assertTrue(file.length() <= 1000L);
+            lines += new String(Files.readAllBytes(file.toPath())).split(System.lineSeparator()).length;
+            file.delete();
+        }
+        assertEquals(30, lines);
+        dir.delete();
+    }
+
+    static EmbeddedServer start(AccessLogger logger) {
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .handler("/json", new TestJsonHandler().filter(logger))
+                .build();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+        return server;
+    }
+}
@@ -0,0 +1,194 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void testShedOffCaller() throws Exception {
+        AdmissionController admission = new AdmissionController(task -> {
+            throw new RejectedExecutionException();
+        }, 0, 0L, 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> thread = new AtomicReference<>();
+        admission.execute(() -> {
+            thread.set(Thread.currentThread().getName());
+            done.countDown();
+        });
+        // Not answered by the dispatcher thread
+        assertTrue(done.await(1L, TimeUnit.SECONDS));
+        assertEquals("AdmissionShedder", thread.get());
+        assertEquals(1L, admission.getShedByReject());
+    }
+
+    @Test
+    public void testShedRejectedRequest() throws Exception {
+        // One worker without queue
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 1L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .executor(pool)
+                .admission(10, 0L)
+                .retryAfter(3)
+                .handler("/slow", new SlowHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        final AtomicInteger status = new AtomicInteger();
+        Thread first = new Thread(() -> {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/slow").openConnection();
+                status.set(conn.getResponseCode());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        first.start();
+        Thread.sleep(200L);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/slow").openConnection();
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, conn.getResponseCode());
+        assertEquals("3", conn.getHeaderField("Retry-After"));
+
+        first.join();
+        assertEquals(HttpURLConnection.HTTP_OK, status.get());
+
+        AdmissionController admission = server.getAdmission();
+        assertEquals(1L, admission.getAdmitted());
+        assertEquals(1L, admission.getShedByReject());
+        assertEquals(1L, admission.getShed());
+        System.out.println(admission.toString());
+
+        server.stop();
+        server.awaitTermination();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testShedByQueue() throws Exception {
+        // One worker, the second request waits in the queue
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .executor(pool)
+                .admission(1, 0L)
+                .handler("/slow", new SlowHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger queued = new AtomicInteger();
+        Thread first = request(port, running);
+        Thread.sleep(200L);
+        Thread second = request(port, queued);
+        Thread.sleep(200L);
+
+        // The queue is full
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/slow").openConnection();
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, conn.getResponseCode());
+        assertNotNull(conn.getHeaderField("Retry-After"));
+
+        first.join();
+        second.join();
+        assertEquals(HttpURLConnection.HTTP_OK, running.get());
+        assertEquals(HttpURLConnection.HTTP_OK, queued.get());
+
+        AdmissionController admission = server.getAdmission();
+        assertEquals(2L, admission.getAdmitted());
+        assertEquals(1L, admission.getShedByQueue());
+        assertEquals(1L, admission.getShed());
+
+        server.stop();
+        server.awaitTermination();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testShedByWait() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .executor(pool)
+                .admission(0, 300L)
+                .handler("/slow", new SlowHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        final AtomicInteger running = new AtomicInteger();
+        Thread first = request(port, running);
+        Thread.sleep(200L);
+
+        // Waits about 800ms behind the first one
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/slow").openConnection();
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, conn.getResponseCode());
+
+        first.join();
+        assertEquals(HttpURLConnection.HTTP_OK, running.get());
+
+        AdmissionController admission = server.getAdmission();
+        assertEquals(1L, admission.getAdmitted());
+        assertEquals(1L, admission.getShedByWait());
+        assertEquals(1L, admission.getShed());
+
+        server.stop();
+        server.awaitTermination();
+        pool.shutdown();
+    }
+
+    static Thread request(int port, AtomicInteger status) {
+        Thread thread = new Thread(() -> {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/slow").openConnection();
+                status.set(conn.getResponseCode());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    static class SlowHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            try {
+                Thread.sleep(1000L);
+            } catch (InterruptedException e) {
+            }
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+        }
+    }
+}
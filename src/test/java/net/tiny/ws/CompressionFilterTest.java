@@ -0,0 +1,147 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+public class CompressionFilterTest {
+
+    @Test
+    public void testDeflatingStream() throws Exception {
+        final CompressionFilter.DeflaterPool pool = new CompressionFilter.DeflaterPool(6, true, 1);
+        final String text = IntStream.range(0, 10000).mapToObj(Integer::toString).collect(Collectors.joining(","));
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CompressionFilter.DeflatingStream gzip = new CompressionFilter.DeflatingStream(out, pool, true);
+            gzip.write(text.getBytes());
+            gzip.flush();
+            gzip.write('!');
+            gzip.close();
+            assertTrue(out.size() < text.length() / 2);
+            assertEquals(text + "!", read(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+            // Reset and reused
+            assertEquals(1, pool.getIdle());
+        }
+
+        assertTrue(CompressionFilter.isCompressible(Constants.MIME_TYPE_JSON));
+        assertTrue(CompressionFilter.isCompressible("image/svg+xml"));
+        assertFalse(CompressionFilter.isCompressible("image/png"));
+        assertFalse(CompressionFilter.isCompressible(null));
+
+        assertEquals("\"abc-gzip\"", CompressionFilter.encodedETag("\"abc\"", "gzip"));
+        assertEquals("W/\"abc-deflate\"", CompressionFilter.encodedETag("W/\"abc\"", "deflate"));
+        assertNull(CompressionFilter.encodedETag("abc", "gzip"));
+
+        Headers headers = new Headers();
+        CompressionFilter.vary(headers);
+        assertEquals(Constants.HEADER_ACCEPT_ENCODING, headers.getFirst(Constants.HEADER_VARY));
+        headers.set(Constants.HEADER_VARY, "Origin");
+        CompressionFilter.vary(headers);
+        assertEquals("Origin, Accept-Encoding", headers.getFirst(Constants.HEADER_VARY));
+        CompressionFilter.vary(headers);
+        assertEquals("Origin, Accept-Encoding", headers.getFirst(Constants.HEADER_VARY));
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        for (EmbeddedServer.Engine engine : EmbeddedServer.Engine.values()) {
+            EmbeddedServer server = new EmbeddedServer.Builder()
+                    .random()
+                    .engine(engine)
+                    .handler("/list", new ResponseWriterTest.ListHandler().filter(new CompressionFilter()))
+                    .handler("/tagged", new TaggedHandler().filter(new CompressionFilter()))
+                    .build();
+            final int port = server.port();
+            server.listen(callback -> {
+                if(!callback.success()) {
+                    callback.cause().printStackTrace();
+                }
+            });
+            final String expected = IntStream.range(0, 5000).mapToObj(i -> "\"item" + i + "\"")
+                    .collect(Collectors.joining(",", "[", "]"));
+
+            HttpURLConnection conn = open(port, "/list?size=5000", "gzip, deflate");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+            assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+            assertNull(conn.getHeaderField("Content-Length"));
+            assertEquals(expected, read(new GZIPInputStream(conn.getInputStream())));
+
+            conn = open(port, "/list?size=5000", "deflate");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals("deflate", conn.getHeaderField("Content-Encoding"));
+            assertEquals(expected, read(new InflaterInputStream(conn.getInputStream())));
+
+            // The validator names the encoded bytes, no ranges of them
+            conn = open(port, "/tagged", "gzip");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+            assertEquals("\"v1-gzip\"", conn.getHeaderField("ETag"));
+            assertNull(conn.getHeaderField("Accept-Ranges"));
+            assertEquals("Origin, Accept-Encoding", conn.getHeaderField("Vary"));
+            assertEquals(TaggedHandler.BODY, read(new GZIPInputStream(conn.getInputStream())));
+
+            // Below the threshold
+            conn = open(port, "/list?size=3", "gzip");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertNull(conn.getHeaderField("Content-Encoding"));
+            assertEquals("25", conn.getHeaderField("Content-Length"));
+            assertEquals("[\"item0\",\"item1\",\"item2\"]", read(conn.getInputStream()));
+
+            // Not accepted
+            conn = open(port, "/list?size=5000", null);
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertNull(conn.getHeaderField("Content-Encoding"));
+            assertEquals(expected, read(conn.getInputStream()));
+
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+
+    static class TaggedHandler extends BaseWebService {
+        static final String BODY = IntStream.range(0, 1000).mapToObj(Integer::toString).collect(Collectors.joining(" "));
+
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            final Headers headers = he.getResponseHeaders();
+            headers.set(HEADER_CONTENT_TYPE, MIME_TYPE_HTML);
+            headers.set(HEADER_ETAG, "\"v1\"");
+            headers.set(HEADER_ACCEPT_RANGES, "bytes");
+            headers.set(HEADER_VARY, "Origin");
+            final byte[] body = BODY.getBytes(StandardCharsets.UTF_8);
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            he.getResponseBody().write(body);
+        }
+    }
+
+    static HttpURLConnection open(int port, String path, String accept) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        if (null != accept) {
+            conn.setRequestProperty("Accept-Encoding", accept);
+        }
+        return conn;
+    }
+
+    static String read(InputStream in) {
+        try (Scanner scanner = new Scanner(in, "UTF-8")) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Scanner;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class ETagFilterTest {
+
+    @Test
+    public void testRevalidate() throws Exception {
+        for (EmbeddedServer.Engine engine : EmbeddedServer.Engine.values()) {
+            EmbeddedServer server = new EmbeddedServer.Builder()
+                    .random()
+                    .engine(engine)
+                    .handler("/json", new TestJsonHandler().filter(new ETagFilter()))
+                    .handler("/chunked", new ChunkedHandler().filter(new ETagFilter().maxLength(16)))
+                    .build();
+            final int port = server.port();
+            server.listen(callback -> {
+                if(!callback.success()) {
+                    callback.cause().printStackTrace();
+                }
+            });
+
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/json").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            final String etag = conn.getHeaderField("ETag");
+            assertNotNull(etag);
+            assertEquals("['hello world!']", read(conn));
+
+            conn = (HttpURLConnection) new URL("http://localhost:" + port + "/json").openConnection();
+            conn.setRequestProperty("If-None-Match", etag);
+            assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+            assertEquals(etag, conn.getHeaderField("ETag"));
+
+            conn = (HttpURLConnection) new URL("http://localhost:" + port + "/json").openConnection();
+            conn.setRequestProperty("If-None-Match", "\"stale\"");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals("['hello world!']", read(conn));
+
+            // Larger than the max length, sent as is
+            conn = (HttpURLConnection) new URL("http://localhost:" + port + "/chunked").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertNull(conn.getHeaderField("ETag"));
+            assertEquals(ChunkedHandler.BODY, read(conn));
+
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+
+    static String read(HttpURLConnection conn) throws IOException {
+        try (Scanner scanner = new Scanner(conn.getInputStream(), "UTF-8")) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+
+    static class ChunkedHandler extends BaseWebService {
+        static final String BODY = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0L);
+            for (char c : BODY.toCharArray()) {
+                he.getResponseBody().write(c);
+            }
+        }
+    }
+}
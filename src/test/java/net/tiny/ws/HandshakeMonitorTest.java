@@ -0,0 +1,88 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class HandshakeMonitorTest {
+
+    @Test
+    public void testSessionResumption() throws Exception {
+        File ks = new File(System.getProperty("java.io.tmpdir"), "tiny-handshake-test.jks");
+        ks.delete();
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "test", "-keyalg", "RSA",
+                "-keysize", "2048", "-dname", "CN=localhost", "-validity", "1", "-storetype", "JKS",
+                "-keystore", ks.getAbsolutePath(), "-storepass", "changeit", "-keypass", "changeit")
+                .inheritIO()
+                .start();
+        assertEquals(0, process.waitFor());
+
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .ssl(ks.getAbsolutePath(), "changeit")
+                .sessionCache(100, 600)
+                .handler("/hello", new HelloHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, new TrustManager[] { new TrustAll() }, null);
+        for (int i = 0; i < 3; i++) {
+            HttpsURLConnection conn = (HttpsURLConnection) new URL("https://localhost:" + port + "/hello").openConnection();
+            conn.setSSLSocketFactory(client.getSocketFactory());
+            conn.setHostnameVerifier((host, session) -> true);
+            // New connection per request
+            conn.setRequestProperty("Connection", "close");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            conn.disconnect();
+        }
+
+        HandshakeMonitor handshakes = server.getHandshakes();
+        System.out.println(handshakes.toString());
+        assertEquals(3L, handshakes.getHandshakes());
+        assertEquals(1L, handshakes.getFullHandshakes());
+        assertEquals(2L, handshakes.getResumedHandshakes());
+        assertTrue(handshakes.getResumptionRate() > 0.6d);
+
+        server.stop();
+        server.awaitTermination();
+        ks.delete();
+    }
+
+    static class HelloHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+        }
+    }
+
+    static class TrustAll implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
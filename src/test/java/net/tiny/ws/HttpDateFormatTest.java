@@ -2,7 +2,12 @@ package net.tiny.ws;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.util.Date;
+import java.util.Locale;
 
 import org.junit.jupiter.api.Test;
 
@@ -20,6 +25,49 @@ public class HttpDateFormatTest {
         assertTrue(Math.abs(date.getTime() - HttpDateFormat.parse("Thu, 20 Jun 2019 22:11:52 GMT").getTime()) < 1000L);
     }
 
+    @Test
+    public void testCurrentSecond() throws Exception {
+        final Clock clock = HttpDateFormat.clock;
+        try {
+            HttpDateFormat.clock = Clock.fixed(Instant.ofEpochMilli(1561068712300L), ZoneOffset.UTC);
+            final String date = HttpDateFormat.formatCurrentDate();
+            assertEquals("Thu, 20 Jun 2019 22:11:52 GMT", date);
+            // Rendered once in the same second
+            assertSame(date, HttpDateFormat.formatCurrentDate());
+            assertSame(date, HttpDateFormat.format(new Date(1561068712999L)));
+            assertEquals("Thu, 20 Jun 2019 22:11:53 GMT", HttpDateFormat.format(new Date(1561068713000L)));
+
+            final SimpleDateFormat accessLog = new SimpleDateFormat("d/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+            final String log = HttpDateFormat.formatCurrentAccessLog();
+            assertEquals(accessLog.format(new Date(1561068712300L)), log);
+            assertSame(log, HttpDateFormat.formatAccessLog(new Date(1561068712000L)));
+            assertEquals(accessLog.format(new Date(0L)), HttpDateFormat.formatAccessLog(new Date(0L)));
+
+            HttpDateFormat.clock = Clock.fixed(Instant.ofEpochMilli(1561068713000L), ZoneOffset.UTC);
+            assertEquals("Thu, 20 Jun 2019 22:11:53 GMT", HttpDateFormat.formatCurrentDate());
+        } finally {
+            HttpDateFormat.clock = clock;
+        }
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        final long time = 1561068712000L;
+        final Date first = HttpDateFormat.parse("Thu, 20 Jun 2019 22:11:52 GMT");
+        final Date second = HttpDateFormat.parse("Thu, 20 Jun 2019 22:11:52 GMT");
+        assertEquals(time, first.getTime());
+        assertEquals(time, second.getTime());
+        assertNotSame(first, second);
+        assertEquals(time, HttpDateFormat.parse("Thu, 20 Jun 2019 22:11:52 UTC").getTime());
+        assertThrows(IllegalArgumentException.class, () -> HttpDateFormat.parse("20 June 2019"));
+
+        assertEquals(time, HttpDateFormat.readDate("Thu, 20 Jun 2019 22:11:52 GMT").getTime());
+        assertEquals(time, HttpDateFormat.readDate("Thursday, 20-Jun-19 22:11:52 GMT").getTime());
+        assertEquals(time, HttpDateFormat.readDate("Thu Jun 20 22:11:52 2019").getTime());
+        assertEquals(1559772712000L, HttpDateFormat.readDate("Wed Jun  5 22:11:52 2019").getTime());
+        assertThrows(IllegalArgumentException.class, () -> HttpDateFormat.readDate("yesterday"));
+    }
+
     @Test
     public void testMultipleFormatParse() throws Exception {
         //Warm up
@@ -17,4 +17,15 @@ public class HttpHandlerHelperest {
         assertEquals("text/xml;charset=utf-8", HttpHandlerHelper.getMimeType("define.xml").getType());
         assertEquals("application/json;charset=utf-8", HttpHandlerHelper.getMimeType("product.json").getType());
     }
+
+    @Test
+    public void testGetAcceptedEncoding() throws Exception {
+        assertNull(HttpHandlerHelper.getAcceptedEncoding(null));
+        assertNull(HttpHandlerHelper.getAcceptedEncoding("identity"));
+        assertEquals("gzip", HttpHandlerHelper.getAcceptedEncoding("gzip, deflate, br"));
+        assertEquals("deflate", HttpHandlerHelper.getAcceptedEncoding("gzip;q=0.5, deflate"));
+        assertEquals("deflate", HttpHandlerHelper.getAcceptedEncoding("gzip;q=0, *"));
+        assertEquals("gzip", HttpHandlerHelper.getAcceptedEncoding("*"));
+        assertNull(HttpHandlerHelper.getAcceptedEncoding("gzip;q=0"));
+    }
 }
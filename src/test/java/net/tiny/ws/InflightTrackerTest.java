@@ -0,0 +1,112 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class InflightTrackerTest {
+
+    @Test
+    public void testGracefulDrain() throws Exception {
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .delay(3000L)
+                .handler("/slow", new SlowHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        final AtomicInteger status = new AtomicInteger();
+        Thread first = new Thread(() -> {
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/slow").openConnection();
+                status.set(conn.getResponseCode());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        first.start();
+        Thread.sleep(200L);
+
+        InflightTracker inflight = server.getInflight();
+        assertEquals(1, inflight.getActive());
+        assertEquals(1, inflight.getActiveRequests().size());
+        assertTrue(inflight.getActiveRequests().get(0).startsWith("GET /slow"));
+
+        server.stop();
+        Thread.sleep(100L);
+        assertTrue(inflight.isDraining());
+        // New requests are refused while draining
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/slow").openConnection();
+        assertEquals(HttpURLConnection.HTTP_UNAVAILABLE, conn.getResponseCode());
+
+        // The running request is completed
+        first.join();
+        assertEquals(HttpURLConnection.HTTP_OK, status.get());
+        server.awaitTermination();
+
+        assertEquals(0, inflight.getActive());
+        assertEquals(1L, inflight.getCompleted());
+        assertEquals(1L, inflight.getRefused());
+        System.out.println(inflight.toString());
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .handler("/health", new VoidHttpHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/health").openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        InflightTracker drained = server.getInflight();
+        server.stop();
+        server.awaitTermination();
+        assertTrue(drained.isDraining());
+
+        // Listen again, not refused by the drained tracker
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+        assertFalse(server.getInflight().isDraining());
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/health").openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        // Counted once the filter chain returned, after the response is sent
+        for (int i = 0; i < 100 && server.getInflight().getCompleted() == 0L; i++) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1L, server.getInflight().getCompleted());
+        server.stop();
+        server.awaitTermination();
+    }
+
+    static class SlowHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            try {
+                Thread.sleep(1000L);
+            } catch (InterruptedException e) {
+            }
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+        }
+    }
+}
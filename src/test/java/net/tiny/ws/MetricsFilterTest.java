@@ -0,0 +1,127 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsFilterTest {
+
+    @Test
+    public void testHistogram() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getValueAtPercentile(99d));
+        for (long i = 1L; i <= 1000L; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000L, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000L), histogram.getMax());
+        assertEquals(500500d, histogram.getMean(), 1d);
+        // Within the 1/16 precision of a bucket
+        assertEquals(500000d, histogram.getValueAtPercentile(50d), 500000d / 16d);
+        assertEquals(900000d, histogram.getValueAtPercentile(90d), 900000d / 16d);
+        assertEquals(990000d, histogram.getValueAtPercentile(99d), 990000d / 16d);
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100d));
+
+        // Bucket bounds are continuous
+        for (int i = 1; i < LatencyHistogram.BUCKETS; i++) {
+            assertEquals(i, LatencyHistogram.index(LatencyHistogram.highest(i - 1) + 1L));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+        System.out.println(histogram);
+
+        histogram.reset();
+        assertEquals(0L, histogram.getCount());
+    }
+
+    @Test
+    public void testPhases() throws Exception {
+        AccessLogger logger = new AccessLogger();
+        logger.setLogFormat("%U %Z");
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .metrics(true)
+                .handler("/json", new TestJsonHandler().filter(logger).filter(new SnapFilter()))
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/json").openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        ETagFilterTest.read(conn);
+
+        MetricsFilter.Endpoint json = server.getMetrics().getEndpoint("/json");
+        for (int i = 0; i < 100 && null == json; i++) {
+            Thread.sleep(10L);
+            json = server.getMetrics().getEndpoint("/json");
+        }
+        assertNotNull(json);
+        assertEquals(1L, json.getPhase(MetricsFilter.QUEUE).getCount());
+        assertEquals(1L, json.getPhase(MetricsFilter.HANDLER).getCount());
+        assertEquals(1L, json.getPhase(MetricsFilter.CLOSE).getCount());
+        assertEquals(1L, json.getPhase("AccessLogger").getCount());
+        assertEquals(1L, json.getPhase("SnapFilter").getCount());
+        // The own time of a filter excludes the handler
+        long own = json.getPhase("AccessLogger").getMax();
+        assertTrue(own < json.getLatency().getMax());
+        System.out.println(json.getPhases());
+
+        server.stop();
+        server.awaitTermination();
+    }
+
+    @Test
+    public void testEndpoints() throws Exception {
+        for (EmbeddedServer.Engine engine : EmbeddedServer.Engine.values()) {
+            EmbeddedServer server = new EmbeddedServer.Builder()
+                    .random()
+                    .engine(engine)
+                    .metrics(true)
+                    .handler("/json", new TestJsonHandler())
+                    .build();
+            final int port = server.port();
+            server.listen(callback -> {
+                if(!callback.success()) {
+                    callback.cause().printStackTrace();
+                }
+            });
+
+            for (int i = 0; i < 3; i++) {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/json").openConnection();
+                assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+                ETagFilterTest.read(conn);
+            }
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/none").openConnection();
+            assertEquals(HttpURLConnection.HTTP_NOT_FOUND, conn.getResponseCode());
+
+            MetricsFilter metrics = server.getMetrics();
+            // Recorded after the exchange is closed
+            for (int i = 0; i < 100 && metrics.getTotal().getCount() < 4L; i++) {
+                Thread.sleep(10L);
+            }
+            MetricsFilter.Endpoint json = metrics.getEndpoint("/json");
+            assertNotNull(json);
+            assertEquals(3L, json.getCount());
+            assertEquals(3L, json.getStatusClass(2));
+            assertEquals(3L, json.getStatus(200));
+            assertEquals(3L * "['hello world!']".length(), json.getBytesOut());
+            assertTrue(json.getLatency().getValueAtPercentile(99d) > 0L);
+
+            // Not routed, recorded by the context
+            assertEquals(1L, metrics.getEndpoint("/").getStatus(404));
+            assertEquals(4L, metrics.getTotal().getCount());
+            assertEquals(1L, metrics.getTotal().getStatusClass(4));
+            System.out.println(metrics.getEndpoints().values());
+
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class MultipartParserTest {
+
+    static final String BOUNDARY = "----tiny1234";
+
+    @Test
+    public void testBoundary() throws Exception {
+        assertEquals(BOUNDARY, MultipartParser.boundary("multipart/form-data; boundary=" + BOUNDARY));
+        assertEquals("a b", MultipartParser.boundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b\""));
+        assertNull(MultipartParser.boundary("application/x-www-form-urlencoded"));
+        assertNull(MultipartParser.boundary(null));
+        assertEquals("a\"b.txt", MultipartParser.parameter("form-data; name=\"file\"; filename=\"a\\\"b.txt\"", "filename"));
+        assertNull(MultipartParser.parameter("form-data; name=\"file\"", "filename"));
+        assertEquals("passwd", MultipartParser.fileName("../../etc/passwd"));
+        assertEquals("b.txt", MultipartParser.fileName("C:\\a\\b.txt"));
+        assertEquals("b.txt", MultipartParser.fileName("C:b.txt"));
+        assertEquals("ab.txt", MultipartParser.fileName("a\u0000b.txt\r\n"));
+        assertNull(MultipartParser.fileName(".."));
+        assertNull(MultipartParser.fileName("dir/"));
+        assertNull(MultipartParser.fileName(null));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        // A small buffer, the delimiter is split across the reads
+        final BufferPool pool = new BufferPool(128, 1);
+        final byte[] large = new byte[5000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) ((i % 64 == 0) ? '\r' : (i % 64 == 1) ? '\n' : '-');
+        }
+        final byte[] body = body("field", "名前", large);
+        final List<String> parts = new ArrayList<>();
+        final List<Path> files = new ArrayList<>();
+
+        new MultipartParser(new ByteArrayInputStream(body), BOUNDARY)
+            .pool(pool)
+            .threshold(1024)
+            .parse(part -> {
+                parts.add(part.toString());
+                if (part.isFile()) {
+                    assertEquals("data.bin", part.getFileName());
+                    assertEquals("application/octet-stream", part.getContentType());
+                    assertFalse(part.isInMemory());
+                    assertTrue(Files.exists(part.getFile()));
+                    files.add(part.getFile());
+                    assertArrayEquals(large, part.getBytes());
+                } else {
+                    assertEquals("field", part.getName());
+                    assertTrue(part.isInMemory());
+                    assertEquals("名前", part.getString(StandardCharsets.UTF_8));
+                }
+            });
+        assertEquals(2, parts.size());
+        // Deleted after the handling
+        assertFalse(Files.exists(files.get(0)));
+        assertEquals(1, pool.getFree());
+
+        // Over the budget of the spooled files
+        assertThrows(RequestBody.TooLargeException.class, () ->
+            new MultipartParser(new ByteArrayInputStream(body), BOUNDARY)
+                .threshold(1024)
+                .budget(2048L)
+                .parse(part -> {}));
+
+        // Truncated
+        assertThrows(IOException.class, () ->
+            new MultipartParser(new ByteArrayInputStream(body, 0, body.length - 20), BOUNDARY)
+                .parse(part -> {}));
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .handler("/upload", new UploadHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        final byte[] large = new byte[100000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        final byte[] body = body("field", "value", large);
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/upload").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setChunkedStreamingMode(4096);
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("field=5 data.bin=100000/false", ETagFilterTest.read(conn));
+
+        server.stop();
+        server.awaitTermination();
+    }
+
+    static byte[] body(String name, String value, byte[] file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(("preamble\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n"
+                + value + "\r\n--" + BOUNDARY + "  \r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(file);
+        out.write(("\r\n--" + BOUNDARY + "--\r\nepilogue").getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    static class UploadHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            final StringBuilder text = new StringBuilder();
+            MultipartParser.of(he).parse(part -> {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(part.isFile() ? part.getFileName() : part.getName())
+                    .append('=').append(part.getSize());
+                if (part.isFile()) {
+                    text.append('/').append(part.isInMemory());
+                }
+            });
+            final byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            he.getResponseBody().write(body);
+        }
+    }
+}
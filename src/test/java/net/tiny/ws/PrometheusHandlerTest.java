@@ -0,0 +1,79 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.jupiter.api.Test;
+
+import net.tiny.service.ThreadPoolExeutorWrapper;
+import net.tiny.ws.cache.BarakbCache;
+
+public class PrometheusHandlerTest {
+
+    @Test
+    public void testScrape() throws Throwable {
+        BarakbCache<String, String> cache = new BarakbCache<>(key -> key.toUpperCase(), 10);
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        ThreadPoolExeutorWrapper pool = new ThreadPoolExeutorWrapper();
+        pool.submit(() -> {}).get();
+
+        PrometheusHandler prometheus = new PrometheusHandler();
+        prometheus.setInterval(0L);
+        prometheus.addCache("names", cache);
+        prometheus.addExecutor("worker", pool);
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .metrics(true)
+                .handler("/json", new TestJsonHandler())
+                .handler("/metrics", prometheus)
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/json").openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        ETagFilterTest.read(conn);
+        Thread.sleep(100L);
+
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals(PrometheusHandler.MIME_TYPE_PROMETHEUS, conn.getContentType());
+        final String page = ETagFilterTest.read(conn);
+        System.out.println(page);
+        assertTrue(page.contains("# TYPE http_server_requests_seconds summary"));
+        assertTrue(page.contains("http_server_requests_seconds_count{path=\"/json\"} 1"));
+        assertTrue(page.contains("http_server_responses_total{path=\"/json\",code=\"200\"} 1"));
+        assertTrue(page.contains("http_server_response_bytes_total{path=\"/json\"} 16"));
+        assertTrue(page.contains("http_server_active_requests 1"));
+        assertTrue(page.contains("executor_completed_tasks_total{name=\"worker\"} 1"));
+        assertTrue(page.contains("executor_pool_threads{name=\"server\"}"));
+        assertTrue(page.contains("cache_hits_total{name=\"names\"} 1"));
+        assertTrue(page.contains("cache_misses_total{name=\"names\"} 2"));
+        // One type line per metric
+        assertEquals(page.indexOf("# TYPE executor_pool_threads"), page.lastIndexOf("# TYPE executor_pool_threads"));
+
+        // Served from the rendered page within the interval
+        prometheus.setInterval(60000L);
+        final byte[] rendered = prometheus.render();
+        assertSame(rendered, prometheus.render());
+
+        server.stop();
+        server.awaitTermination();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testEscape() throws Exception {
+        StringBuilder out = new StringBuilder();
+        PrometheusHandler.escape(out, "/a\"b\\c\n");
+        assertEquals("/a\\\"b\\\\c\\n", out.toString());
+    }
+}
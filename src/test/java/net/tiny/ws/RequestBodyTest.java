@@ -0,0 +1,155 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class RequestBodyTest {
+
+    @Test
+    public void testRead() throws Exception {
+        final BufferPool pool = new BufferPool(16, 4);
+        final byte[] data = "0123456789abcdefghijklmnopqrstuvwxyzABCD".getBytes();
+
+        // Fits a pooled buffer
+        RequestBody body = new RequestBody(new ByteArrayInputStream(data, 0, 10), 10L, pool);
+        ByteBuffer buffer = body.getByteBuffer();
+        assertEquals(16, buffer.capacity());
+        assertEquals("0123456789", StandardCharsets.US_ASCII.decode(buffer).toString());
+        assertEquals(0, pool.getFree());
+        body.close();
+        assertEquals(1, pool.getFree());
+
+        // Larger than a buffer, the chain is copied once into a buffer of its size
+        body = new RequestBody(new ByteArrayInputStream(data), data.length, pool);
+        buffer = body.getByteBuffer();
+        assertEquals(data.length, buffer.capacity());
+        body.close();
+
+        // A length announced far beyond the bytes sent allocates no more than a buffer
+        body = new RequestBody(new ByteArrayInputStream(data, 0, 10), 2000000000L, pool);
+        buffer = body.getByteBuffer();
+        assertEquals(16, buffer.capacity());
+        assertEquals(10, buffer.remaining());
+        body.close();
+        body = new RequestBody(new ByteArrayInputStream(data), 2000000000L, pool);
+        assertArrayEquals(data, body.toByteArray());
+        body.close();
+
+        // Chunked, read into the pooled chain
+        body = new RequestBody(new ByteArrayInputStream(data), -1L, pool);
+        assertEquals(new String(data), body.getString(StandardCharsets.US_ASCII));
+        body.close();
+        assertEquals(3, pool.getFree());
+
+        body = new RequestBody(new ByteArrayInputStream(data), data.length, pool);
+        assertArrayEquals(data, body.toByteArray());
+        body = new RequestBody(new ByteArrayInputStream(data), -1L, pool);
+        assertArrayEquals(data, body.toByteArray());
+
+        // A form across the buffers, with a raw UTF-8 value
+        final byte[] form = "name=%E5%90%8D+x&v=1&v=2;3&text=日本語&flag&long=0123456789012345678901234567890"
+                .getBytes(StandardCharsets.UTF_8);
+        body = new RequestBody(new ByteArrayInputStream(form), form.length, pool);
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        body.readForm(map);
+        assertEquals(Arrays.asList("name", "v", "text", "flag", "long"), Arrays.asList(map.keySet().toArray()));
+        assertEquals("名 x", map.get("name").get(0));
+        assertEquals(Arrays.asList("1", "2;3"), map.get("v"));
+        assertEquals("日本語", map.get("text").get(0));
+        assertNull(map.get("flag").get(0));
+        assertEquals(31, map.get("long").get(0).length());
+
+        InputStream limited = new RequestBody.LimitedInputStream(new ByteArrayInputStream(data), 32L);
+        assertThrows(RequestBody.TooLargeException.class,
+                () -> new RequestBody(limited, -1L, pool).toByteArray());
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        for (EmbeddedServer.Engine engine : EmbeddedServer.Engine.values()) {
+            EmbeddedServer server = new EmbeddedServer.Builder()
+                    .random()
+                    .engine(engine)
+                    .handler("/form", new FormHandler().setMaxBodySize(64L).filter(new ParameterFilter()))
+                    .handler("/large", new FormHandler().filter(new ParameterFilter()))
+                    .build();
+            final int port = server.port();
+            server.listen(callback -> {
+                if(!callback.success()) {
+                    callback.cause().printStackTrace();
+                }
+            });
+
+            HttpURLConnection conn = post(port, "/form", "a=1&b=%E5%90%8D", false);
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals("1|名", ETagFilterTest.read(conn));
+
+            // Refused by the length before the body is read
+            conn = post(port, "/form", "a=" + repeat('x', 100), false);
+            assertEquals(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, conn.getResponseCode());
+
+            // Refused while a chunked body is read
+            conn = post(port, "/form", "a=" + repeat('x', 100), true);
+            assertEquals(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, conn.getResponseCode());
+
+            // A form larger than the pooled buffers
+            final String large = repeat('y', 20000);
+            conn = post(port, "/large", "a=" + large + "&b=2", true);
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals(large + "|2", ETagFilterTest.read(conn));
+
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+
+    static HttpURLConnection post(int port, String path, String body, boolean chunked) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (chunked) {
+            conn.setChunkedStreamingMode(16);
+        } else {
+            conn.setFixedLengthStreamingMode(bytes.length);
+        }
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(bytes);
+        }
+        return conn;
+    }
+
+    static String repeat(char c, int count) {
+        final char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    static class FormHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            @SuppressWarnings("unchecked")
+            final Map<String, Object> parameters = (Map<String, Object>) he.getAttribute(HTTP_PARAMETER_ATTRIBUTE);
+            final byte[] body = (parameters.get("a") + "|" + parameters.get("b")).getBytes(StandardCharsets.UTF_8);
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            he.getResponseBody().write(body);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class RequestViewTest {
+
+    @Test
+    public void testDecode() throws Exception {
+        final String raw = "a=1&b=x+y%20z&c&d=%E6%97%A5%E6%9C%AC&a=2&&e=";
+        // No escape, the same chars
+        assertEquals("1", RequestView.decode(raw, 2, 3, true));
+        assertEquals("x y z", RequestView.decode(raw, 6, 13, true));
+        assertEquals("日本", RequestView.decode(raw, 18, 36, true));
+        // '+' is kept in a path
+        assertEquals("x+y z", RequestView.decode(raw, 6, 13, false));
+        assertThrows(IllegalArgumentException.class, () -> RequestView.decode("a%2", 0, 3, true));
+        assertThrows(IllegalArgumentException.class, () -> RequestView.decode("a%zz", 0, 4, true));
+
+        assertTrue(RequestView.matches("b%61r", 0, 5, "bar", true));
+        assertTrue(RequestView.matches("bar", 0, 3, "bar", true));
+        assertFalse(RequestView.matches("bars", 0, 4, "bar", true));
+
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        RequestView.parse(raw, map);
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), Arrays.asList(map.keySet().toArray()));
+        assertEquals(Arrays.asList("1", "2"), map.get("a"));
+        assertEquals("x y z", map.get("b").get(0));
+        assertNull(map.get("c").get(0));
+        assertEquals("", map.get("e").get(0));
+        // Split on '&' only as ParameterFilter did, ';' is part of the value
+        map.clear();
+        RequestView.parse("a=1;2&b=3", map);
+        assertEquals(Arrays.asList("1;2"), map.get("a"));
+        assertEquals("3", map.get("b").get(0));
+        // The query of RequestHelper is still split on ';'
+        map.clear();
+        RequestView.parse("a=1;b=2", map, true);
+        assertEquals(Arrays.asList("1"), map.get("a"));
+        assertEquals(Arrays.asList("2"), map.get("b"));
+
+        // The attribute of ParameterFilter
+        Map<String, List<String>> form = new LinkedHashMap<>();
+        RequestView.parse("c=%33", form);
+        Map<String, Object> parameters = new ParameterFilter.Parameters("a=1&a=2&b=x", form);
+        assertEquals(Arrays.asList("1", "2"), parameters.get("a"));
+        assertEquals("x", parameters.get("b"));
+        assertEquals("3", parameters.get("c"));
+        assertEquals(3, parameters.size());
+
+        assertEquals(3, RequestView.segmentCount("foo/fie/bar/"));
+        assertEquals(0, RequestView.segmentCount(""));
+        assertEquals("fie", RequestView.segment("foo/fie/bar", 1));
+        assertEquals("", RequestView.segment("foo//bar", 1));
+        assertNull(RequestView.segment("foo/fie", 2));
+    }
+
+    @Test
+    public void testView() throws Exception {
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .handler("/view", new ViewHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port
+                + "/view/users/a%20b?id=12&name=%E5%90%8D&flag&a=1;b=2").openConnection();
+        conn.setRequestProperty("Cookie", "RSSIDX=no; RSSID=\"abc\"; lang=ja");
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("12|名|true|null|users|a b|2|abc|ja|RSSID=\"abc\"|a%20b|1;b=2|1|2", ETagFilterTest.read(conn));
+
+        server.stop();
+        server.awaitTermination();
+    }
+
+    static class ViewHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            final RequestHelper helper = HttpHandlerHelper.getRequestHelper(he);
+            final RequestView view = helper.getView();
+            final String text = String.join("|", view.getParameter("id"), view.getParameter("name"),
+                    String.valueOf(view.hasParameter("flag")), view.getParameter("none"),
+                    view.getSegment(0), view.getSegment(1), String.valueOf(view.getSegmentCount()),
+                    view.getCookie("RSSID"), view.getCookie("lang"), helper.getCookie("RSSID", false),
+                    helper.getParameter(1), view.getParameter("a"),
+                    helper.getParameters().get("a").get(0), helper.getParameters().get("b").get(0));
+            final byte[] body = text.getBytes("UTF-8");
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            he.getResponseBody().write(body);
+        }
+    }
+}
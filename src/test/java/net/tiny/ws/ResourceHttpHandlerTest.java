@@ -0,0 +1,345 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.Headers;
+
+public class ResourceHttpHandlerTest {
+
+    static File root;
+    static File small;
+    static File large;
+    static File script;
+    static File style;
+    static File styleGzip;
+
+    @BeforeAll
+    public static void beforeAll() throws Exception {
+        root = Files.createTempDirectory("tiny-res").toFile();
+        small = new File(root, "small.txt");
+        Files.write(small.toPath(), "Hello resource".getBytes());
+        large = new File(root, "large.dat");
+        byte[] data = new byte[3 * 1024 * 1024 + 123];
+        new Random(1L).nextBytes(data);
+        Files.write(large.toPath(), data);
+        script = new File(root, "app.js");
+        StringBuilder js = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            js.append("function f").append(i).append("() { return ").append(i).append("; }\n");
+        }
+        Files.write(script.toPath(), js.toString().getBytes());
+        style = new File(root, "style.css");
+        Files.write(style.toPath(), "body { color: red; }".getBytes());
+        // Precompressed sibling
+        styleGzip = new File(root, "style.css.gz");
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(styleGzip))) {
+            out.write("/* precompressed */".getBytes());
+        }
+    }
+
+    @AfterAll
+    public static void afterAll() throws Exception {
+        small.delete();
+        large.delete();
+        script.delete();
+        style.delete();
+        styleGzip.delete();
+        root.delete();
+    }
+
+    static EmbeddedServer start(EmbeddedServer.Engine engine, WebServiceHandler handler) {
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .engine(engine)
+                .handler("/", handler)
+                .build();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+        return server;
+    }
+
+    static ResourceHttpHandler resources() {
+        ResourceHttpHandler handler = new ResourceHttpHandler();
+        handler.setPaths(Arrays.asList("data:" + root.getAbsolutePath()));
+        return handler;
+    }
+
+    static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testStreamLargeFile() throws Exception {
+        for (EmbeddedServer.Engine engine : EmbeddedServer.Engine.values()) {
+            ResourceHttpHandler handler = resources();
+            handler.setStreamThreshold(1024L);
+            EmbeddedServer server = start(engine, handler);
+            final int port = server.port();
+
+            for (int i = 0; i < 2; i++) {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/large.dat").openConnection();
+                assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+                assertEquals(large.length(), conn.getContentLengthLong());
+                assertArrayEquals(Files.readAllBytes(large.toPath()), readAll(conn.getInputStream()));
+            }
+
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/small.txt").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals("Hello resource", new String(readAll(conn.getInputStream())));
+
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+
+    @Test
+    public void testMappedCache() throws Exception {
+        for (EmbeddedServer.Engine engine : EmbeddedServer.Engine.values()) {
+            ResourceHttpHandler handler = resources();
+            handler.setCache(10, 1024L * 1024L);
+            EmbeddedServer server = start(engine, handler);
+            final int port = server.port();
+
+            for (int i = 0; i < 3; i++) {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/small.txt").openConnection();
+                assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+                assertEquals(14L, conn.getContentLengthLong());
+                assertEquals("Hello resource", new String(readAll(conn.getInputStream())));
+            }
+
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+
+    @Test
+    public void testCompressedVariants() throws Exception {
+        ResourceHttpHandler handler = resources();
+        handler.setCache(10, -1L);
+        EmbeddedServer server = start(EmbeddedServer.Engine.NIO, handler);
+        final int port = server.port();
+        final byte[] expected = Files.readAllBytes(script.toPath());
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+        assertTrue(conn.getContentLengthLong() < expected.length);
+        assertArrayEquals(expected, readAll(new GZIPInputStream(conn.getInputStream())));
+
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "deflate");
+        assertEquals("deflate", conn.getHeaderField("Content-Encoding"));
+        assertArrayEquals(expected, readAll(new InflaterInputStream(conn.getInputStream())));
+
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        assertNull(conn.getHeaderField("Content-Encoding"));
+        assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+        assertArrayEquals(expected, readAll(conn.getInputStream()));
+
+        // Served from the precompressed sibling
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/style.css").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        assertEquals("/* precompressed */", new String(readAll(new GZIPInputStream(conn.getInputStream()))));
+
+        // Not a compressible type
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/large.dat").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertNull(conn.getHeaderField("Content-Encoding"));
+        assertNull(conn.getHeaderField("Vary"));
+        readAll(conn.getInputStream());
+
+        server.stop();
+        server.awaitTermination();
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        final byte[] data = Files.readAllBytes(large.toPath());
+        final byte[] js = Files.readAllBytes(script.toPath());
+        for (EmbeddedServer.Engine engine : EmbeddedServer.Engine.values()) {
+            for (long budget : new long[] {-1L, 1024L * 1024L}) {
+                ResourceHttpHandler handler = resources();
+                handler.setCache(10, budget);
+                EmbeddedServer server = start(engine, handler);
+                final int port = server.port();
+
+                // Single range of a streamed file
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/large.dat").openConnection();
+                conn.setRequestProperty("Range", "bytes=100-1099");
+                assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+                assertEquals("bytes 100-1099/" + data.length, conn.getHeaderField("Content-Range"));
+                assertEquals(1000L, conn.getContentLengthLong());
+                assertArrayEquals(Arrays.copyOfRange(data, 100, 1100), readAll(conn.getInputStream()));
+
+                // Suffix range of a cached file, never compressed
+                conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+                conn.setRequestProperty("Range", "bytes=-10");
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+                assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+                assertNull(conn.getHeaderField("Content-Encoding"));
+                assertArrayEquals(Arrays.copyOfRange(js, js.length - 10, js.length), readAll(conn.getInputStream()));
+
+                // Multiple ranges
+                conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+                conn.setRequestProperty("Range", "bytes=0-4, 20-");
+                assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+                final String type = conn.getContentType();
+                assertTrue(type.startsWith("multipart/byteranges; boundary="));
+                final String boundary = type.substring(type.indexOf('=') + 1);
+                final String body = new String(readAll(conn.getInputStream()), "ISO-8859-1");
+                assertEquals(body.length(), conn.getContentLengthLong());
+                assertTrue(body.contains("Content-Range: bytes 0-4/" + js.length + "\r\n\r\n" + new String(js, 0, 5, "ISO-8859-1")));
+                assertTrue(body.contains("Content-Range: bytes 20-" + (js.length - 1) + "/" + js.length));
+                assertTrue(body.endsWith("\r\n--" + boundary + "--\r\n"));
+
+                // Not satisfiable
+                conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/small.txt").openConnection();
+                conn.setRequestProperty("Range", "bytes=100-200");
+                assertEquals(416, conn.getResponseCode());
+                assertEquals("bytes */14", conn.getHeaderField("Content-Range"));
+
+                // Stale validator, the whole content is sent
+                conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/small.txt").openConnection();
+                conn.setRequestProperty("Range", "bytes=0-4");
+                conn.setRequestProperty("If-Range", "Thu, 01 Jan 1970 00:00:00 GMT");
+                assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+                assertEquals("bytes", conn.getHeaderField("Accept-Ranges"));
+                assertEquals("Hello resource", new String(readAll(conn.getInputStream())));
+
+                // Matching validator
+                conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/small.txt").openConnection();
+                conn.setRequestProperty("Range", "bytes=6-");
+                conn.setRequestProperty("If-Range", HttpDateFormat.format(new Date(small.lastModified())));
+                assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+                assertEquals("resource", new String(readAll(conn.getInputStream())));
+
+                server.stop();
+                server.awaitTermination();
+            }
+        }
+    }
+
+    @Test
+    public void testETag() throws Exception {
+        ResourceHttpHandler handler = resources();
+        handler.setCache(10, -1L);
+        handler.setServerName("Tiny");
+        EmbeddedServer server = start(EmbeddedServer.Engine.NIO, handler);
+        final int port = server.port();
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("Tiny", conn.getHeaderField("Server"));
+        final String etag = conn.getHeaderField("ETag");
+        assertNotNull(etag);
+        assertTrue(etag.startsWith("\""));
+        readAll(conn.getInputStream());
+
+        // Revalidated by the tag, even with a stale date
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+        conn.setRequestProperty("If-None-Match", "\"other\", " + etag);
+        conn.setRequestProperty("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT");
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+        assertEquals(etag, conn.getHeaderField("ETag"));
+        // The same server name as the 200 response
+        assertEquals("Tiny", conn.getHeaderField("Server"));
+
+        // The gzip variant has its own tag
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        conn.setRequestProperty("If-None-Match", etag);
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        final String gzipTag = conn.getHeaderField("ETag");
+        assertNotEquals(etag, gzipTag);
+        readAll(conn.getInputStream());
+
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        conn.setRequestProperty("If-None-Match", "W/" + gzipTag);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+
+        // Range validated by the tag
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/app.js").openConnection();
+        conn.setRequestProperty("Range", "bytes=0-7");
+        conn.setRequestProperty("If-Range", etag);
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+        assertEquals("function", new String(readAll(conn.getInputStream())));
+
+        server.stop();
+        server.awaitTermination();
+    }
+
+    @Test
+    public void testHeaderBlock() throws Exception {
+        // A header of an applied block can be appended
+        final Map<String, List<String>> block = ResponseHeaderHelper.render(Constants.HEADER_VARY, Constants.HEADER_ACCEPT_ENCODING);
+        final Headers headers = new Headers();
+        new ResponseHeaderHelper(headers).setAll(block).set(Constants.HEADER_VARY, "Origin");
+        assertEquals(Arrays.asList(Constants.HEADER_ACCEPT_ENCODING, "Origin"), headers.get(Constants.HEADER_VARY));
+        assertEquals(1, block.get(Constants.HEADER_VARY).size());
+
+        for (int size : new int[] {-1, 10}) {
+            ResourceHttpHandler handler = resources();
+            handler.setCache(size, -1L);
+            EmbeddedServer server = start(EmbeddedServer.Engine.NIO, handler);
+            final int port = server.port();
+
+            for (int i = 0; i < 2; i++) {
+                HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/style.css").openConnection();
+                assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+                assertEquals("text/css;charset=utf-8", conn.getContentType());
+                assertEquals(HttpDateFormat.format(new Date(style.lastModified())), conn.getHeaderField("Last-Modified"));
+                assertEquals("max-age=86400", conn.getHeaderField("Cache-Control"));
+                assertEquals("*", conn.getHeaderField("Access-Control-Allow-Origin"));
+                assertEquals("GET, OPTIONS", conn.getHeaderField("Access-Control-Allow-Methods"));
+                assertEquals("timeout=10, max=1000", conn.getHeaderField("Keep-Alive"));
+                assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+                assertEquals(1, conn.getHeaderFields().get("Content-type").size());
+                assertEquals("body { color: red; }", new String(readAll(conn.getInputStream())));
+            }
+
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/data/style.css").openConnection();
+            conn.setIfModifiedSince(style.lastModified() + 1000L);
+            assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+            assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+            assertNull(conn.getHeaderField("Cache-Control"));
+
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+}
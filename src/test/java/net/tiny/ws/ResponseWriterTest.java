@@ -0,0 +1,92 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class ResponseWriterTest {
+
+    @Test
+    public void testJson() throws Exception {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("text", "a\"b\\c\nd\u0001 名前 😀");
+        map.put("int", 12);
+        map.put("double", 1.5d);
+        map.put("nan", Double.NaN);
+        map.put("flag", true);
+        map.put("none", null);
+        map.put("list", Arrays.asList(1, "x"));
+        map.put("array", new int[] {1, 2});
+        map.put("stream", IntStream.range(0, 3).boxed());
+        map.put("enum", Constants.HTTP_METHOD.GET);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JsonWriter(out).value(map);
+        assertEquals("{\"text\":\"a\\\"b\\\\c\\nd\\u0001 名前 😀\",\"int\":12,\"double\":1.5,"
+                + "\"nan\":null,\"flag\":true,\"none\":null,\"list\":[1,\"x\"],\"array\":[1,2],"
+                + "\"stream\":[0,1,2],\"enum\":\"GET\"}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testResponse() throws Exception {
+        for (EmbeddedServer.Engine engine : EmbeddedServer.Engine.values()) {
+            EmbeddedServer server = new EmbeddedServer.Builder()
+                    .random()
+                    .engine(engine)
+                    .handler("/list", new ListHandler())
+                    .build();
+            final int port = server.port();
+            server.listen(callback -> {
+                if(!callback.success()) {
+                    callback.cause().printStackTrace();
+                }
+            });
+
+            // Fits the buffer, sent with a length
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/list?size=3").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertEquals(Constants.MIME_TYPE_JSON, conn.getContentType());
+            // Set once, even if the handler gave one before
+            assertEquals(1, conn.getHeaderFields().entrySet().stream()
+                    .filter(e -> "Content-Type".equalsIgnoreCase(e.getKey()))
+                    .mapToInt(e -> e.getValue().size())
+                    .sum());
+            assertEquals("[\"item0\",\"item1\",\"item2\"]", ETagFilterTest.read(conn));
+            assertEquals("25", conn.getHeaderField("Content-Length"));
+            assertNull(conn.getHeaderField("Transfer-Encoding"));
+
+            // Larger than the buffer, sent chunked
+            conn = (HttpURLConnection) new URL("http://localhost:" + port + "/list?size=5000").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            final String expected = IntStream.range(0, 5000).mapToObj(i -> "\"item" + i + "\"")
+                    .collect(Collectors.joining(",", "[", "]"));
+            assertEquals(expected, ETagFilterTest.read(conn));
+            assertNull(conn.getHeaderField("Content-Length"));
+            assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+
+            server.stop();
+            server.awaitTermination();
+        }
+    }
+
+    static class ListHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            final int size = Integer.parseInt(RequestView.of(he).getParameter("size"));
+            he.getResponseHeaders().add(HEADER_CONTENT_TYPE, MIME_TYPE_HTML);
+            sendJson(he, HttpURLConnection.HTTP_OK, IntStream.range(0, size).mapToObj(i -> "item" + i));
+        }
+    }
+}
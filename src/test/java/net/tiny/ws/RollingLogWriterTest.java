@@ -0,0 +1,119 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+public class RollingLogWriterTest {
+
+    static final String LINE = "127.0.0.1 - - [30/Jun/2019:11:57:39 +0900] \"GET /index.html HTTP/1.1\" 200 420";
+
+    @Test
+    public void testRotateBySize() throws Exception {
+        for (boolean mapped : new boolean[] {false, true}) {
+            File dir = Files.createTempDirectory("tiny-log").toFile();
+            File file = new File(dir, "access.log");
+            RollingLogWriter rolling = new RollingLogWriter(file, 1000L, RollingLogWriter.Rollover.NONE, true, mapped);
+            PrintWriter writer = new PrintWriter(rolling);
+            for (int i = 0; i < 30; i++) {
+                writer.println(LINE);
+            }
+            writer.flush();
+            assertTrue(rolling.size() <= 1000L);
+            rolling.getLastCompression().get();
+            writer.close();
+
+            File[] segments = dir.listFiles((d, name) -> name.endsWith(".gz"));
+            assertEquals(2, segments.length, Arrays.toString(dir.list()));
+            int lines = 0;
+            for (File segment : segments) {
+                String text = new String(gunzip(segment), StandardCharsets.UTF_8);
+                assertTrue(text.length() <= 1000);
+                assertTrue(text.endsWith(System.lineSeparator()));
+                lines += text.split(System.lineSeparator()).length;
+            }
+            // The active file is truncated to its lines
+            String active = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            assertFalse(active.contains("\u0000"));
+            lines += active.split(System.lineSeparator()).length;
+            assertEquals(30, lines);
+
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testRotateByTime() throws Exception {
+        File dir = Files.createTempDirectory("tiny-log").toFile();
+        File file = new File(dir, "access.log");
+        // Reopen a mapped file left unclosed
+        Files.write(file.toPath(), (LINE + "\n").getBytes());
+        Files.write(file.toPath(), new byte[4096], StandardOpenOption.APPEND);
+
+        RollingLogWriter rolling = new RollingLogWriter(file, 0L, RollingLogWriter.Rollover.HOURLY, false, true);
+        assertEquals(LINE.length() + 1L, rolling.size());
+        final ZoneId zone = ZoneId.systemDefault();
+        rolling.clock = Clock.fixed(Instant.now().plusSeconds(3600L), zone);
+        rolling.write("next\n");
+        rolling.close();
+
+        String[] names = dir.list();
+        assertEquals(2, names.length, Arrays.toString(names));
+        assertEquals("next\n", new String(Files.readAllBytes(file.toPath())));
+        for (String name : names) {
+            if (!name.equals("access.log")) {
+                assertTrue(name.startsWith("access.log."));
+                assertEquals(LINE + "\n", new String(Files.readAllBytes(new File(dir, name).toPath())));
+            }
+            new File(dir, name).delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testUnmap() throws Exception {
+        assertTrue(RollingLogWriter.unmap(null));
+        Path path = Files.createTempFile("tiny-log", ".log");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0L, 4096L);
+            map.put("mapped".getBytes());
+            // Released now, the file can be truncated on any platform
+            assertTrue(RollingLogWriter.unmap(map));
+            channel.truncate(6L);
+        }
+        assertEquals("mapped", new String(Files.readAllBytes(path)));
+        Files.delete(path);
+    }
+
+    static byte[] gunzip(File file) throws Exception {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
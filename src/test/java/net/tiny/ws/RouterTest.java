@@ -0,0 +1,102 @@
+package net.tiny.ws;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import net.tiny.ws.client.SimpleClient;
+
+public class RouterTest {
+
+    @Test
+    public void testMatch() throws Exception {
+        Router router = new Router()
+                .add(new VoidHttpHandler().path("/"), new ArrayList<>())
+                .add(new VoidHttpHandler().path("/api/v1/{id}"), new ArrayList<>())
+                .add(new VoidHttpHandler().path("/api/v1/{id}/items/{item}"), new ArrayList<>())
+                .add(new VoidHttpHandler().path("/api/v1/search"), new ArrayList<>())
+                .add(new VoidHttpHandler().path("/healthcheck"), new ArrayList<>());
+
+        Router.Match match = router.match("/api/v1/123");
+        assertEquals("/api/v1/{id}", match.getPath());
+        assertEquals("123", match.getParameter("id"));
+        assertEquals("", match.getPathInfo());
+
+        match = router.match("/api/v1/123/items/a%20b");
+        assertEquals("/api/v1/{id}/items/{item}", match.getPath());
+        assertEquals("123", match.getParameter("id"));
+        assertEquals("a b", match.getParameter("item"));
+        assertEquals(2, match.getParameters().size());
+
+        // Literal segment is preferred
+        match = router.match("/api/v1/search");
+        assertEquals("/api/v1/search", match.getPath());
+        assertNull(match.getParameter("id"));
+
+        // Prefix match with sub path
+        match = router.match("/api/v1/123/other/path");
+        assertEquals("/api/v1/{id}", match.getPath());
+        assertEquals("other/path", match.getPathInfo());
+
+        match = router.match("/healthcheck");
+        assertEquals("/healthcheck", match.getPath());
+        match = router.match("/healthcheckx");
+        assertEquals("/", match.getPath());
+        assertEquals("healthcheckx", match.getPathInfo());
+
+        assertThrows(IllegalArgumentException.class, () -> {
+            router.add(new VoidHttpHandler().path("/api/v1/{key}"), new ArrayList<>());
+        });
+        assertNull(new Router().match("/any"));
+    }
+
+    @Test
+    public void testRoutedHandler() throws Exception {
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .handler("/users/{user}/posts/{post}", new PathParameterHandler())
+                .handler("/v1/ctl", new ControllableHandler())
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        SimpleClient client = new SimpleClient.Builder().build();
+        client.doGet(new URL("http://localhost:" + port + "/users/alice/posts/42"), callback -> {
+            assertTrue(callback.success());
+            assertEquals(HttpURLConnection.HTTP_OK, client.getStatus());
+            assertEquals("alice:42", new String(client.getContents()));
+        });
+        client.doGet(new URL("http://localhost:" + port + "/v1/ctl/status"), callback -> {
+            assertTrue(callback.success());
+            assertEquals("running", new String(client.getContents()));
+        });
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/none").openConnection();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, conn.getResponseCode());
+        client.close();
+
+        assertEquals(2, server.getRouter().getRoutes().size());
+        server.stop();
+        server.awaitTermination();
+    }
+
+    static class PathParameterHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            final RequestHelper request = new RequestHelper(he);
+            final byte[] body = (request.getPathParameter("user") + ":" + request.getPathParameter("post")).getBytes();
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            he.getResponseBody().write(body);
+        }
+    }
+}
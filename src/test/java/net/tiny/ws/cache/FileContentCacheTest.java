@@ -3,6 +3,7 @@ package net.tiny.ws.cache;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -50,4 +51,47 @@ public class FileContentCacheTest {
 
         cache.clear();
     }
+
+    @Test
+    public void testMapped() throws Exception {
+        Path dir = Files.createTempDirectory("tiny-mapped");
+        for (int i=1; i<=4; i++) {
+            Files.write(dir.resolve("file" + i), new byte[100 * i]);
+        }
+
+        // Cache max 10 files and 500 bytes
+        FileContentCache cache = new FileContentCache(10, 500L);
+        assertTrue(cache.isMapped());
+        FileContentCache.Entry entry = cache.getEntry(dir.resolve("file1").toString());
+        assertTrue(entry.isMapped());
+        assertNull(entry.getBytes());
+        ByteBuffer buffer = entry.getBuffer();
+        assertEquals(100, buffer.remaining());
+        assertTrue(buffer.isReadOnly());
+        assertSame(entry, cache.getEntry(dir.resolve("file1").toString()));
+
+        assertEquals(200, cache.get(dir.resolve("file2").toString()).length);
+        assertEquals(300L, cache.getBytes());
+        // Evict file1 and file2 over the budget
+        cache.getEntry(dir.resolve("file4").toString());
+        assertEquals(1, cache.size());
+        assertEquals(400L, cache.getBytes());
+        cache.getEntry(dir.resolve("file1").toString());
+        assertEquals(500L, cache.getBytes());
+        assertEquals("MappedCache(2/10, 500/500 bytes)", cache.toString());
+
+        // Reload a modified file
+        Path file1 = dir.resolve("file1");
+        Files.write(file1, new byte[50]);
+        file1.toFile().setLastModified(System.currentTimeMillis() + 2000L);
+        assertEquals(50L, cache.getEntry(file1.toString()).getLength());
+        assertEquals(450L, cache.getBytes());
+
+        cache.clear();
+        assertEquals(0L, cache.getBytes());
+        for (int i=1; i<=4; i++) {
+            Files.delete(dir.resolve("file" + i));
+        }
+        Files.delete(dir);
+    }
 }
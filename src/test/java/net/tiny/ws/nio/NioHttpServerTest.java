@@ -0,0 +1,179 @@
+package net.tiny.ws.nio;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import net.tiny.ws.AccessLogger;
+import net.tiny.ws.BaseWebService;
+import net.tiny.ws.EmbeddedServer;
+import net.tiny.ws.VoidHttpHandler;
+import net.tiny.ws.WebServiceHandler;
+
+public class NioHttpServerTest {
+
+    @Test
+    public void testNioEngine() throws Exception {
+        WebServiceHandler health = new VoidHttpHandler()
+                .path("/health")
+                .filter(new AccessLogger());
+        WebServiceHandler snap = new EchoHandler()
+                .path("/snap");
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .engine(EmbeddedServer.Engine.NIO)
+                .handler("/health", health)
+                .handler("/snap", snap)
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        // Keep-alive connection reused
+        for (int i=0; i<5; i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/health").openConnection();
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+            assertNotNull(conn.getHeaderField("Date"));
+            conn.getInputStream().close();
+        }
+
+        // POST with fixed length body
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/snap").openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write("Hello NIO".getBytes());
+        }
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("Hello NIO", new String(readAll(conn.getInputStream())));
+
+        // POST with chunked body
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/snap").openConnection();
+        conn.setDoOutput(true);
+        conn.setChunkedStreamingMode(4);
+        conn.setRequestMethod("POST");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write("Chunked request body".getBytes());
+        }
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("Chunked request body", new String(readAll(conn.getInputStream())));
+
+        // Not found context
+        conn = (HttpURLConnection) new URL("http://localhost:" + port + "/unknown").openConnection();
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, conn.getResponseCode());
+
+        server.stop();
+        server.awaitTermination();
+    }
+
+    @Test
+    public void testHttpsRefused() throws Exception {
+        EmbeddedServer.Builder builder = new EmbeddedServer.Builder()
+                .random()
+                .engine(EmbeddedServer.Engine.NIO)
+                .ssl("keystore.jks", "changeit")
+                .handler("/health", new VoidHttpHandler());
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> builder.build());
+        assertTrue(e.getMessage().contains("does not support HTTPS"));
+    }
+
+    @Test
+    public void testMultipleAcceptors() throws Exception {
+        NioHttpServer server = NioHttpServer.create(new InetSocketAddress(0), 10, 4);
+        server.createContext("/health", new VoidHttpHandler());
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        final int port = server.getAddress().getPort();
+        System.out.println(String.format("Acceptors: %d on port %d", server.getAcceptors(), port));
+        assertTrue(server.getAcceptors() >= 1);
+
+        for (int i=0; i<20; i++) {
+            HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/health").openConnection();
+            conn.setRequestProperty("Connection", "close");
+            assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        }
+        server.stop(1);
+    }
+
+    @Test
+    public void testExpectContinue() throws Exception {
+        EmbeddedServer server = new EmbeddedServer.Builder()
+                .random()
+                .engine(EmbeddedServer.Engine.NIO)
+                .handler("/snap", new EchoHandler().path("/snap"))
+                .build();
+        final int port = server.port();
+        server.listen(callback -> {
+            if(!callback.success()) {
+                callback.cause().printStackTrace();
+            }
+        });
+
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("POST /snap HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n"
+                    + "Expect: 100-continue\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            // The body is sent only once asked for
+            assertEquals("HTTP/1.1 100 Continue", readLine(in));
+            assertEquals("", readLine(in));
+            out.write("Hello".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals("HTTP/1.1 200 OK", readLine(in));
+            String response = new String(readAll(in), StandardCharsets.US_ASCII);
+            assertTrue(response.endsWith("\r\n\r\nHello"));
+        }
+
+        server.stop();
+        server.awaitTermination();
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    static class EchoHandler extends BaseWebService {
+        @Override
+        protected void execute(HTTP_METHOD method, HttpExchange he) throws IOException {
+            byte[] body = readAll(he.getRequestBody());
+            he.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            he.getResponseBody().write(body);
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}